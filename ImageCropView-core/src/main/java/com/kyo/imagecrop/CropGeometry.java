@@ -0,0 +1,441 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+/**
+ * Crop geometry over primitive types, shared by the view and by anything
+ * that has to replay a crop without Android, e.g. a server validating crop
+ * specs. Rects are 4 floats {left, top, right, bottom}, points and vectors
+ * are {x, y} and matrices are 9 floats as in {@link MatrixMath}.
+ */
+public final class CropGeometry {
+
+	private CropGeometry() {
+	}
+
+	public static float[] rect(float left, float top, float right,
+							   float bottom) {
+		return new float[]{left, top, right, bottom};
+	}
+
+	public static float width(float[] r) {
+		return r[2] - r[0];
+	}
+
+	public static float height(float[] r) {
+		return r[3] - r[1];
+	}
+
+	public static float centerX(float[] r) {
+		return (r[0] + r[2]) * 0.5f;
+	}
+
+	public static float centerY(float[] r) {
+		return (r[1] + r[3]) * 0.5f;
+	}
+
+	/**
+	 * Returns the corners of r, clockwise from the top left: left, top,
+	 * right, top, right, bottom, left, bottom.
+	 */
+	public static float[] getCorners(float[] r) {
+		return new float[]{r[0], r[1], r[2], r[1], r[2], r[3], r[0], r[3]};
+	}
+
+	/**
+	 * Returns true if (x, y) is within r or on its bounds, unlike
+	 * {@code RectF#contains} for the bottom and right bounds.
+	 */
+	public static boolean inclusiveContains(float[] r, float x, float y) {
+		return !(x > r[2] || x < r[0] || y > r[3] || y < r[1]);
+	}
+
+	/**
+	 * Returns the smallest rect containing the points [x0, y0, x1, y1, ...].
+	 */
+	public static float[] trapToRect(float[] points) {
+		float[] r = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+			Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		for (int i = 1; i < points.length; i += 2) {
+			float x = points[i - 1];
+			float y = points[i];
+			r[0] = (x < r[0]) ? x : r[0];
+			r[1] = (y < r[1]) ? y : r[1];
+			r[2] = (x > r[2]) ? x : r[2];
+			r[3] = (y > r[3]) ? y : r[3];
+		}
+		sort(r);
+		return r;
+	}
+
+	/**
+	 * Swaps left and right, top and bottom where they are reversed.
+	 */
+	public static void sort(float[] r) {
+		if (r[0] > r[2]) {
+			float t = r[0];
+			r[0] = r[2];
+			r[2] = t;
+		}
+		if (r[1] > r[3]) {
+			float t = r[1];
+			r[1] = r[3];
+			r[3] = t;
+		}
+	}
+
+	/**
+	 * Clamps the points [x0, y0, x1, y1, ...] to the edges of bound.
+	 */
+	public static void clampPoints(float[] bound, float[] points) {
+		for (int i = 0; i + 1 < points.length; i += 2) {
+			points[i] = clamp(points[i], bound[0], bound[2]);
+			points[i + 1] = clamp(points[i + 1], bound[1], bound[3]);
+		}
+	}
+
+	/**
+	 * Returns the two corners of the side of corners closest to point.
+	 */
+	public static float[] closestSide(float[] point, float[] corners) {
+		int len = corners.length;
+		float oldMag = Float.POSITIVE_INFINITY;
+		float[] bestLine = null;
+		for (int i = 0; i < len; i += 2) {
+			float[] line = {corners[i], corners[(i + 1) % len],
+				corners[(i + 2) % len], corners[(i + 3) % len]};
+			float mag = vectorLength(shortestVectorFromPointToLine(point, line));
+			if (mag < oldMag) {
+				oldMag = mag;
+				bestLine = line;
+			}
+		}
+		return bestLine;
+	}
+
+	/**
+	 * Returns true if point is within bound rotated by degrees about its
+	 * center.
+	 */
+	public static boolean pointInRotatedRect(float[] point, float[] bound,
+											 float degrees) {
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, degrees, centerX(bound), centerY(bound));
+		if (!MatrixMath.invert(m, m)) {
+			return false;
+		}
+		float[] p = {point[0], point[1]};
+		MatrixMath.mapPoints(m, p, p);
+		return inclusiveContains(bound, p[0], p[1]);
+	}
+
+	/**
+	 * Resizes r to the aspect ratio w:h, keeping its center.
+	 */
+	public static void fixAspectRatio(float[] r, float w, float h) {
+		float scale = Math.min(width(r) / w, height(r) / h);
+		float centX = centerX(r);
+		float centY = centerY(r);
+		float hw = scale * w / 2;
+		float hh = scale * h / 2;
+		r[0] = centX - hw;
+		r[1] = centY - hh;
+		r[2] = centX + hw;
+		r[3] = centY + hh;
+	}
+
+	/**
+	 * Shrinks r to the aspect ratio w:h, keeping its center.
+	 */
+	public static void fixAspectRatioContained(float[] r, float w, float h) {
+		float origW = width(r);
+		float origH = height(r);
+		float a = w / h;
+		if (origW / origH < a) {
+			float finalH = origW / a;
+			r[1] = centerY(r) - finalH / 2;
+			r[3] = r[1] + finalH;
+		} else {
+			float finalW = origH * a;
+			r[0] = centerX(r) - finalW / 2;
+			r[2] = r[0] + finalW;
+		}
+	}
+
+	/**
+	 * Constrains rotation to 0, 90, 180 or 270 degrees, rounding down.
+	 */
+	public static int constrainedRotation(float rotation) {
+		int r = (int) ((rotation % 360) / 90);
+		r = (r < 0) ? (r + 4) : r;
+		return r * 90;
+	}
+
+	/**
+	 * Returns the largest power of 2 sample size that keeps both sides of
+	 * the decoded image larger than the requested ones.
+	 */
+	public static int calculateInSampleSize(int rawWidth, int rawHeight,
+											int reqWidth, int reqHeight) {
+		int inSampleSize = 1;
+		if (rawHeight > reqHeight || rawWidth > reqWidth) {
+			final int halfHeight = rawHeight / 2;
+			final int halfWidth = rawWidth / 2;
+			while ((halfHeight / inSampleSize) > reqHeight
+				&& (halfWidth / inSampleSize) > reqWidth) {
+				inSampleSize *= 2;
+			}
+		}
+		return inSampleSize;
+	}
+
+	/**
+	 * Returns the power of 2 sample size that brings the shorter side if
+	 * useMin is true, otherwise the longer side of a width x height image
+	 * within maxSideLength.
+	 *
+	 * @return 0 if the image is empty or would vanish at that size
+	 */
+	public static int getConstrainedSampleSize(int width, int height,
+											   int maxSideLength, boolean useMin) {
+		if (width <= 0 || height <= 0) {
+			return 0;
+		}
+		int imageSide = useMin ? Math.min(width, height) : Math.max(width,
+			height);
+		int sampleSize = 1;
+		while (imageSide > maxSideLength) {
+			imageSide >>>= 1;
+			sampleSize <<= 1;
+		}
+		if (sampleSize <= 0 || Math.min(width, height) / sampleSize <= 0) {
+			return 0;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Sets dst to show image rotated by rotation degrees, centered in screen
+	 * and scaled down to fit unless imageOriginal already fits.
+	 */
+	public static void setImageToScreenMatrix(float[] dst, float[] image,
+											  float[] imageOriginal, float[] screen, int rotation) {
+		float[] rotatedImage = new float[4];
+		float[] rotatedImageOriginal = new float[4];
+		MatrixMath.setRotate(dst, rotation);
+		MatrixMath.mapRect(dst, rotatedImage, image);
+		MatrixMath.mapRect(dst, rotatedImageOriginal, imageOriginal);
+		float swidth = width(screen);
+		float sheight = height(screen);
+		float offsetDx = Math.abs(rotatedImage[0]);
+		float iwidth = width(rotatedImage);
+		float iheight = height(rotatedImage);
+		float scale;
+		if (width(rotatedImageOriginal) <= swidth
+			&& height(rotatedImageOriginal) <= sheight) {
+			scale = 1;
+		} else {
+			scale = Math.min(swidth / iwidth, sheight / iheight);
+		}
+		float dx = (swidth - iwidth * scale) * 0.5f;
+		float dy = (sheight - iheight * scale) * 0.5f;
+		MatrixMath.postTranslate(dst, offsetDx, 0);
+		MatrixMath.postScale(dst, scale, scale);
+		MatrixMath.postTranslate(dst, dx, dy);
+	}
+
+	/**
+	 * Sets dst to show crop centered in screen, scaled down to fit.
+	 */
+	public static void setCropToScreenMatrix(float[] dst, float[] crop,
+											 float[] screen) {
+		float swidth = width(screen);
+		float sheight = height(screen);
+		float cwidth = width(crop);
+		float cheight = height(crop);
+		float scale;
+		if (cwidth <= swidth && cheight <= sheight) {
+			scale = 1;
+		} else {
+			scale = Math.min(swidth / cwidth, sheight / cheight);
+		}
+		float dx = (swidth - cwidth * scale) * 0.5f;
+		float dy = (sheight - cheight * scale) * 0.5f;
+		MatrixMath.setScale(dst, scale, scale);
+		MatrixMath.postTranslate(dst, dx, dy);
+	}
+
+	/**
+	 * Computes the crop rect in image pixels, clipped to the image, from the
+	 * state of a crop view.
+	 *
+	 * @param initialImageMatrix image to display transform the image was
+	 *                           first shown with
+	 * @param imageCropInverse   how the image was moved relative to the crop
+	 *                           window since then
+	 * @param displayCropMatrix  crop to display transform
+	 * @param imageRect          the image bounds
+	 * @param cropRect           the crop window
+	 * @return the clipped crop rect, or null if a transform cannot be
+	 * inverted or the crop does not cover the image
+	 */
+	public static float[] getCropRect(float[] initialImageMatrix,
+									  float[] imageCropInverse, float[] displayCropMatrix,
+									  float[] imageRect, float[] cropRect) {
+		float[] displayImageRect = new float[4];
+		MatrixMath.mapRect(initialImageMatrix, displayImageRect, imageRect);
+
+		float[] m = new float[9];
+		if (!MatrixMath.invert(imageCropInverse, m)) {
+			return null;
+		}
+		MatrixMath.concat(m, m, displayCropMatrix);
+		float[] displayCropRect = new float[4];
+		MatrixMath.mapRect(m, displayCropRect, cropRect);
+
+		float[] corners = getCorners(displayCropRect);
+		clampPoints(displayImageRect, corners);
+		float[] intersection = trapToRect(corners);
+		if (width(intersection) == 0 || height(intersection) == 0) {
+			return null;
+		}
+
+		if (!MatrixMath.invert(initialImageMatrix, m)) {
+			return null;
+		}
+		MatrixMath.mapRect(m, intersection, intersection);
+		return intersection;
+	}
+
+	// Math operations for 2d vectors
+
+	public static float clamp(float i, float low, float high) {
+		return Math.max(Math.min(i, high), low);
+	}
+
+	/**
+	 * Returns the intersection of the lines through the segments
+	 * {x0, y0, x1, y1}, or null if they are parallel.
+	 */
+	public static float[] lineIntersect(float[] line1, float[] line2) {
+		float a0 = line1[0];
+		float a1 = line1[1];
+		float b0 = line1[2];
+		float b1 = line1[3];
+		float c0 = line2[0];
+		float c1 = line2[1];
+		float d0 = line2[2];
+		float d1 = line2[3];
+		float t0 = a0 - b0;
+		float t1 = a1 - b1;
+		float t2 = b0 - d0;
+		float t3 = d1 - b1;
+		float t4 = c0 - d0;
+		float t5 = c1 - d1;
+
+		float denom = t1 * t4 - t0 * t5;
+		if (denom == 0)
+			return null;
+		float u = (t3 * t4 + t5 * t2) / denom;
+		float[] intersect = {b0 + u * t0, b1 + u * t1};
+		return intersect;
+	}
+
+	public static float[] shortestVectorFromPointToLine(float[] point,
+														float[] line) {
+		float x1 = line[0];
+		float x2 = line[2];
+		float y1 = line[1];
+		float y2 = line[3];
+		float xdelt = x2 - x1;
+		float ydelt = y2 - y1;
+		if (xdelt == 0 && ydelt == 0)
+			return null;
+		float u = ((point[0] - x1) * xdelt + (point[1] - y1) * ydelt)
+			/ (xdelt * xdelt + ydelt * ydelt);
+		float[] ret = {(x1 + u * (x2 - x1)), (y1 + u * (y2 - y1))};
+		float[] vec = {ret[0] - point[0], ret[1] - point[1]};
+		return vec;
+	}
+
+	// A . B
+	public static float dotProduct(float[] a, float[] b) {
+		return a[0] * b[0] + a[1] * b[1];
+	}
+
+	public static float[] normalize(float[] a) {
+		float length = (float) Math.sqrt(a[0] * a[0] + a[1] * a[1]);
+		float[] b = {a[0] / length, a[1] / length};
+		return b;
+	}
+
+	// A onto B
+	public static float scalarProjection(float[] a, float[] b) {
+		float length = (float) Math.sqrt(b[0] * b[0] + b[1] * b[1]);
+		return dotProduct(a, b) / length;
+	}
+
+	public static float[] getVectorFromPoints(float[] point1, float[] point2) {
+		float[] p = {point2[0] - point1[0], point2[1] - point1[1]};
+		return p;
+	}
+
+	public static float[] getUnitVectorFromPoints(float[] point1, float[] point2) {
+		float[] p = {point2[0] - point1[0], point2[1] - point1[1]};
+		float length = (float) Math.sqrt(p[0] * p[0] + p[1] * p[1]);
+		p[0] = p[0] / length;
+		p[1] = p[1] / length;
+		return p;
+	}
+
+	// A - B
+	public static float[] vectorSubtract(float[] a, float[] b) {
+		int len = a.length;
+		if (len != b.length)
+			return null;
+		float[] ret = new float[len];
+		for (int i = 0; i < len; i++) {
+			ret[i] = a[i] - b[i];
+		}
+		return ret;
+	}
+
+	public static float vectorLength(float[] a) {
+		return (float) Math.sqrt(a[0] * a[0] + a[1] * a[1]);
+	}
+
+	public static float scale(float oldWidth, float oldHeight, float newWidth,
+							  float newHeight) {
+		if (oldHeight == 0 || oldWidth == 0
+			|| (oldWidth == newWidth && oldHeight == newHeight)) {
+			return 1;
+		}
+		return Math.min(newWidth / oldWidth, newHeight / oldHeight);
+	}
+
+	public static float getDistance(float x1, float y1, float x2, float y2) {
+		float x = x1 - x2;
+		float y = y1 - y2;
+		return (float) Math.sqrt(x * x + y * y);
+	}
+
+	public static float getDegrees(float x1, float y1, float x2, float y2) {
+		double deltaX = x1 - x2;
+		double deltaY = y1 - y2;
+		double radians = Math.atan2(deltaY, deltaX);
+		return (float) Math.toDegrees(radians);
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+/**
+ * What to decode for a crop, computed by {@link CropPlanner}: the smallest
+ * source rectangle that covers the output and the largest sample size that
+ * still gives at least one decoded pixel per output pixel.
+ */
+public class CropPlan {
+	/**
+	 * Decode rectangle in source pixels, aligned to the sample size.
+	 */
+	public final int left;
+	public final int top;
+	public final int right;
+	public final int bottom;
+	public final int sampleSize;
+	/**
+	 * Area of the source the output actually covers, in source pixels.
+	 */
+	public final double footprintArea;
+	public final long outputPixels;
+
+	CropPlan(int left, int top, int right, int bottom, int sampleSize,
+			 double footprintArea, long outputPixels) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+		this.sampleSize = sampleSize;
+		this.footprintArea = footprintArea;
+		this.outputPixels = outputPixels;
+	}
+
+	public int getWidth() {
+		return right - left;
+	}
+
+	public int getHeight() {
+		return bottom - top;
+	}
+
+	/**
+	 * @return pixels the decoder produces
+	 */
+	public long getDecodedPixels() {
+		long w = (getWidth() + sampleSize - 1) / sampleSize;
+		long h = (getHeight() + sampleSize - 1) / sampleSize;
+		return w * h;
+	}
+
+	/**
+	 * Decoded pixels per output pixel. Close to 1 is ideal, power of two
+	 * sampling alone can make it up to 4, more means the decode rectangle
+	 * is much larger than the footprint, e.g. under rotation.
+	 */
+	public float getOverheadRatio() {
+		return outputPixels == 0 ? 0 : getDecodedPixels() / (float) outputPixels;
+	}
+
+	@Override
+	public String toString() {
+		return "CropPlan[" + left + "," + top + "," + right + "," + bottom
+			+ " sample " + sampleSize + " overhead " + getOverheadRatio() + "]";
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+/**
+ * Plans the decode of a crop from the exact transform between source and
+ * output pixels. The output rectangle is mapped back into the source,
+ * clipped to the image, and the decode rectangle is the bounds of what is
+ * left, rather than the bounds of the unclipped, possibly rotated crop.
+ * The sample size follows the finer of the two source steps per output
+ * pixel, so zoomed out crops decode fewer pixels.
+ * <p/>
+ * Matrices are 9 values in {@link MatrixMath} order, as from Android's
+ * {@code Matrix#getValues}, and must be affine.
+ */
+public final class CropPlanner {
+
+	private CropPlanner() {
+	}
+
+	/**
+	 * @param sourceToOutput transform from source pixels to output pixels
+	 * @return the plan, or null if the transform is not invertible or the
+	 * output does not cover the source
+	 */
+	public static CropPlan plan(int sourceWidth, int sourceHeight,
+								float[] sourceToOutput, int outputWidth, int outputHeight) {
+		if (sourceToOutput[6] != 0 || sourceToOutput[7] != 0) {
+			throw new IllegalArgumentException("perspective is not supported");
+		}
+		double a = sourceToOutput[0];
+		double b = sourceToOutput[1];
+		double c = sourceToOutput[2];
+		double d = sourceToOutput[3];
+		double e = sourceToOutput[4];
+		double f = sourceToOutput[5];
+		double det = a * e - b * d;
+		if (det == 0 || Double.isNaN(det)) {
+			return null;
+		}
+		// inverse, output to source
+		double ia = e / det;
+		double ib = -b / det;
+		double id = -d / det;
+		double ie = a / det;
+		double ic = -(ia * c + ib * f);
+		double iff = -(id * c + ie * f);
+
+		double[] polygon = new double[]{
+			ic, iff,
+			ia * outputWidth + ic, id * outputWidth + iff,
+			ia * outputWidth + ib * outputHeight + ic,
+			id * outputWidth + ie * outputHeight + iff,
+			ib * outputHeight + ic, ie * outputHeight + iff};
+		polygon = clip(polygon, sourceWidth, sourceHeight);
+		if (polygon.length < 6) {
+			return null;
+		}
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < polygon.length; i += 2) {
+			minX = Math.min(minX, polygon[i]);
+			maxX = Math.max(maxX, polygon[i]);
+			minY = Math.min(minY, polygon[i + 1]);
+			maxY = Math.max(maxY, polygon[i + 1]);
+		}
+
+		// source pixels per output pixel along the output axes
+		double stepX = Math.hypot(ia, id);
+		double stepY = Math.hypot(ib, ie);
+		int sampleSize = 1;
+		while (sampleSize * 2 <= Math.min(stepX, stepY)) {
+			sampleSize *= 2;
+		}
+
+		// one decoded pixel of margin for filtering, aligned to the sample
+		// size so decoded pixels map to whole source pixels
+		int left = alignDown((int) Math.floor(minX) - sampleSize, sampleSize);
+		int top = alignDown((int) Math.floor(minY) - sampleSize, sampleSize);
+		int right = alignUp((int) Math.ceil(maxX) + sampleSize, sampleSize);
+		int bottom = alignUp((int) Math.ceil(maxY) + sampleSize, sampleSize);
+		left = Math.max(0, left);
+		top = Math.max(0, top);
+		right = Math.min(sourceWidth, right);
+		bottom = Math.min(sourceHeight, bottom);
+		if (right <= left || bottom <= top) {
+			return null;
+		}
+		return new CropPlan(left, top, right, bottom, sampleSize,
+			area(polygon), (long) outputWidth * outputHeight);
+	}
+
+	private static int alignDown(int value, int alignment) {
+		return (int) Math.floor(value / (double) alignment) * alignment;
+	}
+
+	private static int alignUp(int value, int alignment) {
+		return (int) Math.ceil(value / (double) alignment) * alignment;
+	}
+
+	/**
+	 * Clips a convex polygon of x, y pairs to [0, width] x [0, height].
+	 */
+	static double[] clip(double[] polygon, double width, double height) {
+		polygon = clipEdge(polygon, 0, 0, 1);
+		polygon = clipEdge(polygon, 0, width, -1);
+		polygon = clipEdge(polygon, 1, 0, 1);
+		return clipEdge(polygon, 1, height, -1);
+	}
+
+	/**
+	 * Keeps the part of polygon where sign * (coordinate axis - bound) >= 0.
+	 */
+	private static double[] clipEdge(double[] polygon, int axis, double bound,
+									 int sign) {
+		int count = polygon.length / 2;
+		double[] out = new double[polygon.length + 4];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			int j = (i + 1) % count;
+			double pi = sign * (polygon[i * 2 + axis] - bound);
+			double pj = sign * (polygon[j * 2 + axis] - bound);
+			if (pi >= 0) {
+				out[n++] = polygon[i * 2];
+				out[n++] = polygon[i * 2 + 1];
+			}
+			if ((pi >= 0) != (pj >= 0)) {
+				double t = pi / (pi - pj);
+				out[n++] = polygon[i * 2] + t * (polygon[j * 2] - polygon[i * 2]);
+				out[n++] = polygon[i * 2 + 1] + t
+					* (polygon[j * 2 + 1] - polygon[i * 2 + 1]);
+			}
+			if (n + 4 > out.length) {
+				double[] grown = new double[out.length * 2];
+				System.arraycopy(out, 0, grown, 0, n);
+				out = grown;
+			}
+		}
+		double[] result = new double[n];
+		System.arraycopy(out, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * Shoelace area of a polygon of x, y pairs.
+	 */
+	static double area(double[] polygon) {
+		int count = polygon.length / 2;
+		double sum = 0;
+		for (int i = 0; i < count; i++) {
+			int j = (i + 1) % count;
+			sum += polygon[i * 2] * polygon[j * 2 + 1] - polygon[j * 2]
+				* polygon[i * 2 + 1];
+		}
+		return Math.abs(sum) / 2;
+	}
+}
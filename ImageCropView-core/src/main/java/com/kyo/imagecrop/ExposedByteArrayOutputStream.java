@@ -0,0 +1,43 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A byte array stream whose contents can be read without copying.
+ */
+class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+	ExposedByteArrayOutputStream(int size) {
+		super(size);
+	}
+
+	/**
+	 * @return the contents, read only and valid until the next write
+	 */
+	ByteBuffer wrap() {
+		return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the capacity of the backing array
+	 */
+	int capacity() {
+		return buf.length;
+	}
+}
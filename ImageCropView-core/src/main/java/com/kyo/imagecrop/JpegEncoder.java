@@ -0,0 +1,551 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Baseline JPEG encoder that spreads the work over several threads. The
+ * image is cut into restart interval segments of whole MCU rows; colour
+ * conversion, DCT, quantisation and Huffman coding of every segment run
+ * independently, and the segments are joined with RST markers into one
+ * stream any decoder reads. Writes YCbCr 4:2:0 with the standard tables
+ * of the JPEG spec scaled like libjpeg does, and has no Android dependency.
+ */
+public final class JpegEncoder {
+
+	// a few segments per thread even out segments of uneven cost
+	private static final int SEGMENTS_PER_THREAD = 4;
+	private static final int MAX_RESTART_INTERVAL = 0xFFFF;
+	private static final int MAX_SIDE = 0xFFFF;
+
+	/**
+	 * Natural index of each coefficient in zigzag order.
+	 */
+	private static final int[] ZIGZAG = {
+		0, 1, 8, 16, 9, 2, 3, 10,
+		17, 24, 32, 25, 18, 11, 4, 5,
+		12, 19, 26, 33, 40, 48, 41, 34,
+		27, 20, 13, 6, 7, 14, 21, 28,
+		35, 42, 49, 56, 57, 50, 43, 36,
+		29, 22, 15, 23, 30, 37, 44, 51,
+		58, 59, 52, 45, 38, 31, 39, 46,
+		53, 60, 61, 54, 47, 55, 62, 63};
+
+	private static final int[] LUMINANCE_QUANTIZATION = {
+		16, 11, 10, 16, 24, 40, 51, 61,
+		12, 12, 14, 19, 26, 58, 60, 55,
+		14, 13, 16, 24, 40, 57, 69, 56,
+		14, 17, 22, 29, 51, 87, 80, 62,
+		18, 22, 37, 56, 68, 109, 103, 77,
+		24, 35, 55, 64, 81, 104, 113, 92,
+		49, 64, 78, 87, 103, 121, 120, 101,
+		72, 92, 95, 98, 112, 100, 103, 99};
+
+	private static final int[] CHROMINANCE_QUANTIZATION = {
+		17, 18, 24, 47, 99, 99, 99, 99,
+		18, 21, 26, 66, 99, 99, 99, 99,
+		24, 26, 56, 99, 99, 99, 99, 99,
+		47, 66, 99, 99, 99, 99, 99, 99,
+		99, 99, 99, 99, 99, 99, 99, 99,
+		99, 99, 99, 99, 99, 99, 99, 99,
+		99, 99, 99, 99, 99, 99, 99, 99,
+		99, 99, 99, 99, 99, 99, 99, 99};
+
+	private static final int[] DC_LUMINANCE_BITS = {
+		0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+	private static final int[] DC_LUMINANCE_VALUES = {
+		0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+	private static final int[] DC_CHROMINANCE_BITS = {
+		0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+	private static final int[] DC_CHROMINANCE_VALUES = DC_LUMINANCE_VALUES;
+
+	private static final int[] AC_LUMINANCE_BITS = {
+		0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7D};
+	private static final int[] AC_LUMINANCE_VALUES = {
+		0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+		0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+		0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xA1, 0x08,
+		0x23, 0x42, 0xB1, 0xC1, 0x15, 0x52, 0xD1, 0xF0,
+		0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0A, 0x16,
+		0x17, 0x18, 0x19, 0x1A, 0x25, 0x26, 0x27, 0x28,
+		0x29, 0x2A, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+		0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+		0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+		0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+		0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+		0x7A, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+		0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+		0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7,
+		0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6,
+		0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3, 0xC4, 0xC5,
+		0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4,
+		0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA, 0xE1, 0xE2,
+		0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA,
+		0xF1, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+		0xF9, 0xFA};
+	private static final int[] AC_CHROMINANCE_BITS = {
+		0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+	private static final int[] AC_CHROMINANCE_VALUES = {
+		0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+		0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+		0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+		0xA1, 0xB1, 0xC1, 0x09, 0x23, 0x33, 0x52, 0xF0,
+		0x15, 0x62, 0x72, 0xD1, 0x0A, 0x16, 0x24, 0x34,
+		0xE1, 0x25, 0xF1, 0x17, 0x18, 0x19, 0x1A, 0x26,
+		0x27, 0x28, 0x29, 0x2A, 0x35, 0x36, 0x37, 0x38,
+		0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+		0x49, 0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+		0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+		0x69, 0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+		0x79, 0x7A, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+		0x88, 0x89, 0x8A, 0x92, 0x93, 0x94, 0x95, 0x96,
+		0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5,
+		0xA6, 0xA7, 0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4,
+		0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3,
+		0xC4, 0xC5, 0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2,
+		0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA,
+		0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9,
+		0xEA, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+		0xF9, 0xFA};
+
+	private static final float[] AAN_SCALE = {1.0f, 1.387039845f,
+		1.306562965f, 1.175875602f, 1.0f, 0.785694958f, 0.541196100f,
+		0.275899379f};
+
+	private static final HuffmanTable DC_LUMINANCE = new HuffmanTable(
+		DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+	private static final HuffmanTable AC_LUMINANCE = new HuffmanTable(
+		AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+	private static final HuffmanTable DC_CHROMINANCE = new HuffmanTable(
+		DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+	private static final HuffmanTable AC_CHROMINANCE = new HuffmanTable(
+		AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+	private final int mQuality;
+	private final int[] mLuminanceTable = new int[64];
+	private final int[] mChrominanceTable = new int[64];
+	// quantisation divisors with the DCT output scale folded in
+	private final float[] mLuminanceDivisors = new float[64];
+	private final float[] mChrominanceDivisors = new float[64];
+
+	/**
+	 * @param quality 0 to 100, mapped to quantisation tables like libjpeg
+	 */
+	public JpegEncoder(int quality) {
+		if (quality < 0 || quality > 100) {
+			throw new IllegalArgumentException("bad quality " + quality);
+		}
+		mQuality = quality;
+		int q = Math.max(1, quality);
+		int scale = q < 50 ? 5000 / q : 200 - q * 2;
+		scaleTable(LUMINANCE_QUANTIZATION, scale, mLuminanceTable,
+			mLuminanceDivisors);
+		scaleTable(CHROMINANCE_QUANTIZATION, scale, mChrominanceTable,
+			mChrominanceDivisors);
+	}
+
+	private static void scaleTable(int[] base, int scale, int[] table,
+								   float[] divisors) {
+		for (int i = 0; i < 64; i++) {
+			table[i] = Math.min(255, Math.max(1, (base[i] * scale + 50) / 100));
+			divisors[i] = table[i] * AAN_SCALE[i >> 3] * AAN_SCALE[i & 7] * 8;
+		}
+	}
+
+	public int getQuality() {
+		return mQuality;
+	}
+
+	/**
+	 * Encodes width x height ARGB pixels, alpha is ignored.
+	 */
+	public void encode(final int[] pixels, final int width, int height,
+					   OutputStream out, Executor executor, int parallelism)
+		throws IOException {
+		if (pixels.length < width * height) {
+			throw new IllegalArgumentException("pixel buffer too small");
+		}
+		encode(new RowSource() {
+			@Override
+			public void readRows(int top, int rows, int[] dst) {
+				System.arraycopy(pixels, top * width, dst, 0, rows * width);
+			}
+		}, width, height, out, executor, parallelism);
+	}
+
+	/**
+	 * Encodes the image source supplies. The calling thread encodes
+	 * segments too, so it may itself run on executor.
+	 *
+	 * @param executor    runs segments next to the calling thread, null to
+	 *                    encode on the calling thread only
+	 * @param parallelism number of threads expected to encode at once
+	 */
+	public void encode(final RowSource source, final int width,
+					   final int height, OutputStream out, Executor executor,
+					   int parallelism) throws IOException {
+		if (width <= 0 || height <= 0 || width > MAX_SIDE
+			|| height > MAX_SIDE) {
+			throw new IllegalArgumentException("bad image size " + width
+				+ "x" + height);
+		}
+		int mcuCols = (width + 15) / 16;
+		int mcuRows = (height + 15) / 16;
+		int threads = executor == null ? 1 : Math.max(1, parallelism);
+		int rowsPerSegment = mcuRows;
+		if (threads > 1) {
+			int segments = threads * SEGMENTS_PER_THREAD;
+			rowsPerSegment = (mcuRows + segments - 1) / segments;
+		}
+		rowsPerSegment = Math.max(1, Math.min(rowsPerSegment,
+			MAX_RESTART_INTERVAL / mcuCols));
+		final int segmentRows = rowsPerSegment;
+		final int segments = (mcuRows + segmentRows - 1) / segmentRows;
+
+		final BitWriter[] encoded = new BitWriter[segments];
+		ParallelTasks.run(segments, executor, threads, new ParallelTasks.Task() {
+			@Override
+			public void run(int index) {
+				encoded[index] = encodeSegment(source, width, height,
+					index * segmentRows, segmentRows);
+			}
+		});
+
+		writeHeaders(out, width, height, segments > 1 ? segmentRows
+			* mcuCols : 0);
+		for (int i = 0; i < segments; i++) {
+			if (i > 0) {
+				out.write(0xFF);
+				out.write(0xD0 + ((i - 1) & 7));
+			}
+			encoded[i].writeTo(out);
+		}
+		out.write(0xFF);
+		out.write(0xD9);
+		out.flush();
+	}
+
+	/**
+	 * Encodes the MCU rows of one restart interval.
+	 */
+	private BitWriter encodeSegment(RowSource source, int width, int height,
+									int firstMcuRow, int mcuRows) {
+		BitWriter writer = new BitWriter(width * mcuRows * 4);
+		int[] rows = new int[width * 16];
+		float[][] luma = new float[4][64];
+		float[] cb = new float[64];
+		float[] cr = new float[64];
+		int[] coefficients = new int[64];
+		int dcY = 0;
+		int dcCb = 0;
+		int dcCr = 0;
+		int lastMcuRow = Math.min(firstMcuRow + mcuRows, (height + 15) / 16);
+		for (int mcuRow = firstMcuRow; mcuRow < lastMcuRow; mcuRow++) {
+			int top = mcuRow * 16;
+			int count = Math.min(16, height - top);
+			source.readRows(top, count, rows);
+			for (int left = 0; left < width; left += 16) {
+				convertMcu(rows, width, count, left, luma, cb, cr);
+				for (int b = 0; b < 4; b++) {
+					quantize(luma[b], mLuminanceDivisors, coefficients);
+					dcY = writeBlock(writer, coefficients, dcY, DC_LUMINANCE,
+						AC_LUMINANCE);
+				}
+				quantize(cb, mChrominanceDivisors, coefficients);
+				dcCb = writeBlock(writer, coefficients, dcCb, DC_CHROMINANCE,
+					AC_CHROMINANCE);
+				quantize(cr, mChrominanceDivisors, coefficients);
+				dcCr = writeBlock(writer, coefficients, dcCr, DC_CHROMINANCE,
+					AC_CHROMINANCE);
+			}
+		}
+		writer.pad();
+		return writer;
+	}
+
+	/**
+	 * Converts the 16x16 pixels at left to four level shifted luma blocks
+	 * and two chroma blocks averaged over 2x2 pixels. Edge pixels are
+	 * repeated past the image.
+	 */
+	private static void convertMcu(int[] rows, int width, int count, int left,
+								   float[][] luma, float[] cb, float[] cr) {
+		for (int i = 0; i < 64; i++) {
+			cb[i] = 0;
+			cr[i] = 0;
+		}
+		for (int y = 0; y < 16; y++) {
+			int offset = Math.min(y, count - 1) * width;
+			for (int x = 0; x < 16; x++) {
+				int color = rows[offset + Math.min(left + x, width - 1)];
+				int r = (color >> 16) & 0xFF;
+				int g = (color >> 8) & 0xFF;
+				int b = color & 0xFF;
+				luma[(y >> 3) * 2 + (x >> 3)][(y & 7) * 8 + (x & 7)] =
+					0.299f * r + 0.587f * g + 0.114f * b - 128;
+				int c = (y >> 1) * 8 + (x >> 1);
+				cb[c] += -0.168736f * r - 0.331264f * g + 0.5f * b;
+				cr[c] += 0.5f * r - 0.418688f * g - 0.081312f * b;
+			}
+		}
+		for (int i = 0; i < 64; i++) {
+			// the +128 offset cancels the level shift
+			cb[i] *= 0.25f;
+			cr[i] *= 0.25f;
+		}
+	}
+
+	/**
+	 * Forward DCT (the AAN float algorithm libjpeg uses) followed by
+	 * quantisation, destroys block.
+	 */
+	private static void quantize(float[] block, float[] divisors, int[] out) {
+		for (int pass = 0; pass < 2; pass++) {
+			// rows first, then columns
+			int step = pass == 0 ? 1 : 8;
+			int next = pass == 0 ? 8 : 1;
+			for (int line = 0; line < 8; line++) {
+				int p = line * next;
+				float tmp0 = block[p] + block[p + 7 * step];
+				float tmp7 = block[p] - block[p + 7 * step];
+				float tmp1 = block[p + step] + block[p + 6 * step];
+				float tmp6 = block[p + step] - block[p + 6 * step];
+				float tmp2 = block[p + 2 * step] + block[p + 5 * step];
+				float tmp5 = block[p + 2 * step] - block[p + 5 * step];
+				float tmp3 = block[p + 3 * step] + block[p + 4 * step];
+				float tmp4 = block[p + 3 * step] - block[p + 4 * step];
+
+				float tmp10 = tmp0 + tmp3;
+				float tmp13 = tmp0 - tmp3;
+				float tmp11 = tmp1 + tmp2;
+				float tmp12 = tmp1 - tmp2;
+				block[p] = tmp10 + tmp11;
+				block[p + 4 * step] = tmp10 - tmp11;
+				float z1 = (tmp12 + tmp13) * 0.707106781f;
+				block[p + 2 * step] = tmp13 + z1;
+				block[p + 6 * step] = tmp13 - z1;
+
+				tmp10 = tmp4 + tmp5;
+				tmp11 = tmp5 + tmp6;
+				tmp12 = tmp6 + tmp7;
+				float z5 = (tmp10 - tmp12) * 0.382683433f;
+				float z2 = 0.541196100f * tmp10 + z5;
+				float z4 = 1.306562965f * tmp12 + z5;
+				float z3 = tmp11 * 0.707106781f;
+				float z11 = tmp7 + z3;
+				float z13 = tmp7 - z3;
+				block[p + 5 * step] = z13 + z2;
+				block[p + 3 * step] = z13 - z2;
+				block[p + step] = z11 + z4;
+				block[p + 7 * step] = z11 - z4;
+			}
+		}
+		for (int i = 0; i < 64; i++) {
+			out[i] = Math.round(block[i] / divisors[i]);
+		}
+	}
+
+	/**
+	 * Huffman codes one quantised block.
+	 *
+	 * @return the DC value, predictor of the next block of the component
+	 */
+	private static int writeBlock(BitWriter writer, int[] coefficients,
+								  int prevDc, HuffmanTable dc, HuffmanTable ac) {
+		int value = coefficients[0];
+		int diff = value - prevDc;
+		int size = bitLength(diff);
+		writer.write(dc.codes[size], dc.sizes[size]);
+		writer.write(diff < 0 ? diff - 1 : diff, size);
+		int run = 0;
+		for (int k = 1; k < 64; k++) {
+			int coefficient = coefficients[ZIGZAG[k]];
+			if (coefficient == 0) {
+				run++;
+				continue;
+			}
+			while (run > 15) {
+				writer.write(ac.codes[0xF0], ac.sizes[0xF0]);
+				run -= 16;
+			}
+			size = bitLength(coefficient);
+			int symbol = (run << 4) | size;
+			writer.write(ac.codes[symbol], ac.sizes[symbol]);
+			writer.write(coefficient < 0 ? coefficient - 1 : coefficient, size);
+			run = 0;
+		}
+		if (run > 0) {
+			writer.write(ac.codes[0], ac.sizes[0]);
+		}
+		return value;
+	}
+
+	private static int bitLength(int value) {
+		return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+	}
+
+	private void writeHeaders(OutputStream out, int width, int height,
+							  int restartInterval) throws IOException {
+		// SOI, then a JFIF APP0 with square pixels and no thumbnail
+		out.write(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF,
+			(byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1,
+			0, 0});
+
+		writeMarker(out, 0xDB, 2 + 2 * 65);
+		out.write(0);
+		for (int k = 0; k < 64; k++) {
+			out.write(mLuminanceTable[ZIGZAG[k]]);
+		}
+		out.write(1);
+		for (int k = 0; k < 64; k++) {
+			out.write(mChrominanceTable[ZIGZAG[k]]);
+		}
+
+		writeMarker(out, 0xC0, 17);
+		out.write(8);
+		writeShort(out, height);
+		writeShort(out, width);
+		out.write(3);
+		// Y sampled 2x2, Cb and Cr 1x1 with the chrominance table
+		out.write(new byte[]{1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+		writeMarker(out, 0xC4, 2 + DC_LUMINANCE.length()
+			+ AC_LUMINANCE.length() + DC_CHROMINANCE.length()
+			+ AC_CHROMINANCE.length());
+		DC_LUMINANCE.writeTo(out, 0x00);
+		AC_LUMINANCE.writeTo(out, 0x10);
+		DC_CHROMINANCE.writeTo(out, 0x01);
+		AC_CHROMINANCE.writeTo(out, 0x11);
+
+		if (restartInterval > 0) {
+			writeMarker(out, 0xDD, 4);
+			writeShort(out, restartInterval);
+		}
+
+		writeMarker(out, 0xDA, 12);
+		out.write(new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+	}
+
+	private static void writeMarker(OutputStream out, int marker, int length)
+		throws IOException {
+		out.write(0xFF);
+		out.write(marker);
+		writeShort(out, length);
+	}
+
+	private static void writeShort(OutputStream out, int value)
+		throws IOException {
+		out.write(value >> 8);
+		out.write(value);
+	}
+
+	private static final class HuffmanTable {
+		final int[] bits;
+		final int[] values;
+		final int[] codes = new int[256];
+		final int[] sizes = new int[256];
+
+		HuffmanTable(int[] bits, int[] values) {
+			this.bits = bits;
+			this.values = values;
+			// canonical codes, see annex C of the spec
+			int code = 0;
+			int k = 0;
+			for (int length = 1; length <= 16; length++) {
+				for (int i = 0; i < bits[length - 1]; i++) {
+					codes[values[k]] = code++;
+					sizes[values[k]] = length;
+					k++;
+				}
+				code <<= 1;
+			}
+		}
+
+		/**
+		 * Size in a DHT segment.
+		 */
+		int length() {
+			return 1 + 16 + values.length;
+		}
+
+		void writeTo(OutputStream out, int classAndId) throws IOException {
+			out.write(classAndId);
+			for (int b : bits) {
+				out.write(b);
+			}
+			for (int v : values) {
+				out.write(v);
+			}
+		}
+	}
+
+	/**
+	 * Entropy coded bytes of one segment, with 0xFF bytes stuffed.
+	 */
+	private static final class BitWriter {
+		private byte[] mBuffer;
+		private int mCount;
+		private int mBits;
+		private int mBitCount;
+
+		BitWriter(int capacity) {
+			mBuffer = new byte[Math.max(64, capacity)];
+		}
+
+		/**
+		 * Appends the low size bits of value.
+		 */
+		void write(int value, int size) {
+			if (size == 0) {
+				return;
+			}
+			mBits = (mBits << size) | (value & ((1 << size) - 1));
+			mBitCount += size;
+			while (mBitCount >= 8) {
+				mBitCount -= 8;
+				putByte((mBits >> mBitCount) & 0xFF);
+			}
+		}
+
+		/**
+		 * Fills the last byte with 1 bits, as segments end.
+		 */
+		void pad() {
+			if (mBitCount > 0) {
+				write(0x7F, 8 - mBitCount);
+			}
+		}
+
+		private void putByte(int b) {
+			if (mCount + 2 > mBuffer.length) {
+				byte[] buffer = new byte[mBuffer.length * 2];
+				System.arraycopy(mBuffer, 0, buffer, 0, mCount);
+				mBuffer = buffer;
+			}
+			mBuffer[mCount++] = (byte) b;
+			if (b == 0xFF) {
+				mBuffer[mCount++] = 0;
+			}
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(mBuffer, 0, mCount);
+		}
+	}
+}
@@ -0,0 +1,471 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exif and ICC profile segments lifted from the header of a JPEG, to be
+ * spliced into a cropped output while it is being written. Reading stops
+ * at the first frame header, so only the header of the source is read,
+ * and the output is never read back. The Exif copy is rewritten for the
+ * output: orientation becomes normal, dimensions become the output size,
+ * the thumbnail of the uncropped image is dropped and location data is
+ * wiped unless asked for. Has no Android dependency.
+ */
+public final class JpegMetadata {
+
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int MARKER_APP1 = 0xE1;
+	private static final int MARKER_APP2 = 0xE2;
+
+	private static final byte[] EXIF_ID = {'E', 'x', 'i', 'f', 0, 0};
+	private static final byte[] ICC_ID = {'I', 'C', 'C', '_', 'P', 'R', 'O',
+		'F', 'I', 'L', 'E', 0};
+
+	private static final int TAG_IMAGE_WIDTH = 0x0100;
+	private static final int TAG_IMAGE_LENGTH = 0x0101;
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TAG_EXIF_IFD = 0x8769;
+	private static final int TAG_GPS_IFD = 0x8825;
+	private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+	private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+	private static final int ORIENTATION_NORMAL = 1;
+	// type sizes by TIFF field type
+	private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8,
+		4, 8};
+
+	// marker, length and identifier precede the TIFF header
+	private static final int TIFF_START = 4 + EXIF_ID.length;
+
+	private final byte[] mExif;
+	private final List<byte[]> mIccProfile;
+
+	private JpegMetadata(byte[] exif, List<byte[]> iccProfile) {
+		mExif = exif;
+		mIccProfile = iccProfile;
+	}
+
+	/**
+	 * Reads the header of a JPEG up to its first frame.
+	 *
+	 * @return the metadata found, null if in is not a JPEG
+	 */
+	public static JpegMetadata read(InputStream in) throws IOException {
+		if (in.read() != 0xFF || in.read() != MARKER_SOI) {
+			return null;
+		}
+		byte[] exif = null;
+		List<byte[]> icc = new ArrayList<byte[]>();
+		while (true) {
+			int marker = readMarker(in);
+			if (marker == MARKER_SOS || marker == MARKER_EOI || isFrame(marker)) {
+				break;
+			} else if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+				// standalone markers, no length
+				continue;
+			}
+			int length = (readByte(in) << 8) | readByte(in);
+			if (length < 2) {
+				throw new IOException("bad segment length " + length);
+			}
+			boolean keep = marker == MARKER_APP1 && exif == null
+				|| marker == MARKER_APP2;
+			if (!keep) {
+				skipFully(in, length - 2);
+				continue;
+			}
+			byte[] segment = new byte[length + 2];
+			segment[0] = (byte) 0xFF;
+			segment[1] = (byte) marker;
+			segment[2] = (byte) (length >> 8);
+			segment[3] = (byte) length;
+			readFully(in, segment, 4, length - 2);
+			if (marker == MARKER_APP1 && startsWith(segment, EXIF_ID)) {
+				exif = segment;
+			} else if (marker == MARKER_APP2 && startsWith(segment, ICC_ID)) {
+				icc.add(segment);
+			}
+			// other APP1 segments, e.g. XMP, may repeat the orientation and
+			// are left out
+		}
+		return new JpegMetadata(exif, icc);
+	}
+
+	public boolean hasExif() {
+		return mExif != null;
+	}
+
+	public boolean hasIccProfile() {
+		return !mIccProfile.isEmpty();
+	}
+
+	/**
+	 * @return the rotation the Exif orientation asks for, 0, 90, 180 or 270.
+	 *         0 without Exif, for mirrored orientations and for Exif that
+	 *         cannot be parsed
+	 */
+	public int getOrientation() {
+		if (mExif == null) {
+			return 0;
+		}
+		try {
+			switch (new ExifPatcher(mExif).getOrientation()) {
+				case 3:
+					return 180;
+				case 6:
+					return 90;
+				case 8:
+					return 270;
+				default:
+					return 0;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the segments to write into an output of width x height, the
+	 * Exif segment first and the profile chunks in their order. Exif that
+	 * cannot be parsed is left out rather than copied with a wrong
+	 * orientation.
+	 *
+	 * @param keepLocation whether to keep the GPS data
+	 */
+	public List<byte[]> getSegments(int width, int height,
+									boolean keepLocation) {
+		List<byte[]> segments = new ArrayList<byte[]>();
+		if (mExif != null) {
+			byte[] exif = mExif.clone();
+			try {
+				new ExifPatcher(exif).patch(width, height, keepLocation);
+				segments.add(exif);
+			} catch (IndexOutOfBoundsException e) {
+				// malformed, drop it
+			}
+		}
+		segments.addAll(mIccProfile);
+		return Collections.unmodifiableList(segments);
+	}
+
+	/**
+	 * Returns a stream that writes segments right after the start of image
+	 * marker of the JPEG written to it, and passes everything else through
+	 * to out.
+	 */
+	public static OutputStream splice(OutputStream out, List<byte[]> segments) {
+		return new SplicingOutputStream(out, segments);
+	}
+
+	/**
+	 * @return the total size of segments in bytes
+	 */
+	public static long getSize(List<byte[]> segments) {
+		long size = 0;
+		for (byte[] segment : segments) {
+			size += segment.length;
+		}
+		return size;
+	}
+
+	private static boolean isFrame(int marker) {
+		// SOF0 to SOF15, except DHT, JPG and DAC which share the range
+		return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+			&& marker != 0xC8 && marker != 0xCC;
+	}
+
+	private static int readMarker(InputStream in) throws IOException {
+		if (readByte(in) != 0xFF) {
+			throw new IOException("marker expected");
+		}
+		int marker;
+		do {
+			// any number of 0xFF may pad a marker
+			marker = readByte(in);
+		} while (marker == 0xFF);
+		return marker;
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("jpeg header ends early");
+		}
+		return b;
+	}
+
+	private static void readFully(InputStream in, byte[] b, int off, int len)
+		throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n < 0) {
+				throw new EOFException("jpeg header ends early");
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long n = in.skip(count);
+			if (n <= 0) {
+				readByte(in);
+				n = 1;
+			}
+			count -= n;
+		}
+	}
+
+	private static boolean startsWith(byte[] segment, byte[] id) {
+		if (segment.length < 4 + id.length) {
+			return false;
+		}
+		for (int i = 0; i < id.length; i++) {
+			if (segment[4 + i] != id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads and rewrites an Exif segment in place. Offsets are relative to
+	 * the TIFF header; any that point outside the segment throw
+	 * {@link IndexOutOfBoundsException}.
+	 */
+	private static final class ExifPatcher {
+		private final byte[] mData;
+		private boolean mLittleEndian;
+
+		ExifPatcher(byte[] data) {
+			mData = data;
+		}
+
+		/**
+		 * @return the orientation tag of IFD0, 0 if there is none
+		 */
+		int getOrientation() {
+			readByteOrder();
+			int ifd0 = getInt(TIFF_START + 4);
+			return findValue(TIFF_START + ifd0, getShort(TIFF_START + ifd0),
+				TAG_ORIENTATION);
+		}
+
+		void patch(int width, int height, boolean keepLocation) {
+			readByteOrder();
+			int ifd0 = getInt(TIFF_START + 4);
+			int count = getShort(TIFF_START + ifd0);
+			for (int i = 0; i < count; i++) {
+				int entry = TIFF_START + ifd0 + 2 + i * 12;
+				int tag = getShort(entry);
+				if (tag == TAG_ORIENTATION) {
+					setValue(entry, ORIENTATION_NORMAL);
+				} else if (tag == TAG_IMAGE_WIDTH) {
+					setValue(entry, width);
+				} else if (tag == TAG_IMAGE_LENGTH) {
+					setValue(entry, height);
+				} else if (tag == TAG_EXIF_IFD) {
+					patchExifIfd(getInt(entry + 8), width, height);
+				} else if (tag == TAG_GPS_IFD && !keepLocation) {
+					wipeIfd(getInt(entry + 8));
+				}
+			}
+			// IFD1 holds the thumbnail, which shows the uncropped image
+			int next = TIFF_START + ifd0 + 2 + count * 12;
+			int ifd1 = getInt(next);
+			if (ifd1 != 0) {
+				wipeIfd(ifd1);
+				setInt(next, 0);
+			}
+		}
+
+		private void readByteOrder() {
+			int order = getShort(TIFF_START, true);
+			if (order == 0x4949) {
+				mLittleEndian = true;
+			} else if (order != 0x4D4D) {
+				throw new IndexOutOfBoundsException("bad byte order");
+			}
+		}
+
+		private void patchExifIfd(int ifd, int width, int height) {
+			int count = getShort(TIFF_START + ifd);
+			for (int i = 0; i < count; i++) {
+				int entry = TIFF_START + ifd + 2 + i * 12;
+				int tag = getShort(entry);
+				if (tag == TAG_PIXEL_X_DIMENSION) {
+					setValue(entry, width);
+				} else if (tag == TAG_PIXEL_Y_DIMENSION) {
+					setValue(entry, height);
+				}
+			}
+		}
+
+		/**
+		 * Zeroes the entries of an IFD and the data they point to, and
+		 * leaves it with no entries.
+		 */
+		private void wipeIfd(int ifd) {
+			int start = TIFF_START + ifd;
+			int count = getShort(start);
+			for (int i = 0; i < count; i++) {
+				int entry = start + 2 + i * 12;
+				int tag = getShort(entry);
+				int type = getShort(entry + 2);
+				long size = (long) getInt(entry + 4)
+					* (type < TYPE_SIZES.length ? TYPE_SIZES[type] : 1);
+				if (size > 4) {
+					clear(TIFF_START + getInt(entry + 8), size);
+				}
+				if (tag == TAG_THUMBNAIL_OFFSET) {
+					int length = findValue(start, count, TAG_THUMBNAIL_LENGTH);
+					if (length > 0) {
+						clear(TIFF_START + getInt(entry + 8), length);
+					}
+				}
+			}
+			clear(start, 2 + count * 12L);
+		}
+
+		private int findValue(int start, int count, int tag) {
+			for (int i = 0; i < count; i++) {
+				int entry = start + 2 + i * 12;
+				if (getShort(entry) == tag) {
+					return getShort(entry + 2) == TYPE_SHORT ? getShort(entry + 8)
+						: getInt(entry + 8);
+				}
+			}
+			return 0;
+		}
+
+		private void setValue(int entry, int value) {
+			int type = getShort(entry + 2);
+			if (type == TYPE_SHORT && value <= 0xFFFF) {
+				setShort(entry + 8, value);
+			} else if (type == TYPE_LONG) {
+				setInt(entry + 8, value);
+			} else {
+				throw new IndexOutOfBoundsException("cannot store " + value);
+			}
+		}
+
+		private void clear(int offset, long length) {
+			if (offset < TIFF_START || offset + length > mData.length) {
+				throw new IndexOutOfBoundsException("bad offset " + offset);
+			}
+			for (int i = 0; i < length; i++) {
+				mData[offset + i] = 0;
+			}
+		}
+
+		private int getShort(int offset) {
+			return getShort(offset, mLittleEndian);
+		}
+
+		private int getShort(int offset, boolean littleEndian) {
+			check(offset, 2);
+			int b0 = mData[offset] & 0xFF;
+			int b1 = mData[offset + 1] & 0xFF;
+			return littleEndian ? b0 | (b1 << 8) : (b0 << 8) | b1;
+		}
+
+		private int getInt(int offset) {
+			check(offset, 4);
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int b = mData[offset + (mLittleEndian ? 3 - i : i)] & 0xFF;
+				value = (value << 8) | b;
+			}
+			if (value < 0) {
+				throw new IndexOutOfBoundsException("bad value " + value);
+			}
+			return value;
+		}
+
+		private void setShort(int offset, int value) {
+			check(offset, 2);
+			mData[offset + (mLittleEndian ? 0 : 1)] = (byte) value;
+			mData[offset + (mLittleEndian ? 1 : 0)] = (byte) (value >> 8);
+		}
+
+		private void setInt(int offset, int value) {
+			check(offset, 4);
+			for (int i = 0; i < 4; i++) {
+				mData[offset + (mLittleEndian ? i : 3 - i)] = (byte) (value >> (8 * i));
+			}
+		}
+
+		private void check(int offset, int length) {
+			if (offset < TIFF_START || offset + length > mData.length) {
+				throw new IndexOutOfBoundsException("bad offset " + offset);
+			}
+		}
+	}
+
+	private static final class SplicingOutputStream extends FilterOutputStream {
+		private final List<byte[]> mSegments;
+		private final byte[] mStart = new byte[2];
+		private int mPosition;
+
+		SplicingOutputStream(OutputStream out, List<byte[]> segments) {
+			super(out);
+			mSegments = segments;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (mPosition < 2 && len > 0) {
+				int head = Math.min(len, 2 - mPosition);
+				System.arraycopy(b, off, mStart, mPosition, head);
+				mPosition += head;
+				off += head;
+				len -= head;
+				if (mPosition < 2) {
+					return;
+				}
+				if ((mStart[0] & 0xFF) != 0xFF || (mStart[1] & 0xFF) != MARKER_SOI) {
+					throw new IOException("output is not a jpeg");
+				}
+				out.write(mStart);
+				for (byte[] segment : mSegments) {
+					out.write(segment);
+				}
+			}
+			out.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+/**
+ * 3x3 matrix operations over 9 floats in the order of Android's
+ * {@code Matrix#getValues}: scale x, skew x, translate x, skew y, scale y,
+ * translate y and the three perspective values. Results follow Android's
+ * matrix closely enough that crops computed on either side agree.
+ */
+public final class MatrixMath {
+
+	public static final int MSCALE_X = 0;
+	public static final int MSKEW_X = 1;
+	public static final int MTRANS_X = 2;
+	public static final int MSKEW_Y = 3;
+	public static final int MSCALE_Y = 4;
+	public static final int MTRANS_Y = 5;
+	public static final int MPERSP_0 = 6;
+	public static final int MPERSP_1 = 7;
+	public static final int MPERSP_2 = 8;
+
+	// sines and cosines this small are snapped to 0, like Android does
+	private static final float NEARLY_ZERO = 1f / (1 << 12);
+
+	private MatrixMath() {
+	}
+
+	/**
+	 * @return a new identity matrix
+	 */
+	public static float[] create() {
+		float[] m = new float[9];
+		reset(m);
+		return m;
+	}
+
+	public static void reset(float[] m) {
+		m[MSCALE_X] = 1;
+		m[MSKEW_X] = 0;
+		m[MTRANS_X] = 0;
+		m[MSKEW_Y] = 0;
+		m[MSCALE_Y] = 1;
+		m[MTRANS_Y] = 0;
+		m[MPERSP_0] = 0;
+		m[MPERSP_1] = 0;
+		m[MPERSP_2] = 1;
+	}
+
+	public static boolean isAffine(float[] m) {
+		return m[MPERSP_0] == 0 && m[MPERSP_1] == 0 && m[MPERSP_2] == 1;
+	}
+
+	public static void setScale(float[] m, float sx, float sy) {
+		reset(m);
+		m[MSCALE_X] = sx;
+		m[MSCALE_Y] = sy;
+	}
+
+	/**
+	 * Sets m to a rotation by degrees about the origin.
+	 */
+	public static void setRotate(float[] m, float degrees) {
+		setRotate(m, degrees, 0, 0);
+	}
+
+	/**
+	 * Sets m to a rotation by degrees about (px, py).
+	 */
+	public static void setRotate(float[] m, float degrees, float px, float py) {
+		double radians = Math.toRadians(degrees);
+		float sin = (float) Math.sin(radians);
+		float cos = (float) Math.cos(radians);
+		if (Math.abs(sin) <= NEARLY_ZERO) {
+			sin = 0;
+		}
+		if (Math.abs(cos) <= NEARLY_ZERO) {
+			cos = 0;
+		}
+		float oneMinusCos = 1 - cos;
+		reset(m);
+		m[MSCALE_X] = cos;
+		m[MSKEW_X] = -sin;
+		m[MTRANS_X] = sin * py + oneMinusCos * px;
+		m[MSKEW_Y] = sin;
+		m[MSCALE_Y] = cos;
+		m[MTRANS_Y] = -sin * px + oneMinusCos * py;
+	}
+
+	/**
+	 * Sets m to map rect src onto rect dst, scaling uniformly and centering
+	 * if center is true, like {@code Matrix.ScaleToFit.CENTER}, otherwise
+	 * filling dst. Rects are {left, top, right, bottom}.
+	 *
+	 * @return false if src is empty, m is reset then
+	 */
+	public static boolean setRectToRect(float[] m, float[] src, float[] dst,
+										boolean center) {
+		float srcWidth = src[2] - src[0];
+		float srcHeight = src[3] - src[1];
+		if (!(srcWidth > 0) || !(srcHeight > 0)) {
+			reset(m);
+			return false;
+		}
+		float dstWidth = dst[2] - dst[0];
+		float dstHeight = dst[3] - dst[1];
+		float sx = dstWidth / srcWidth;
+		float sy = dstHeight / srcHeight;
+		boolean xLarger = false;
+		if (center) {
+			if (sx > sy) {
+				xLarger = true;
+				sx = sy;
+			} else {
+				sy = sx;
+			}
+		}
+		float tx = dst[0] - src[0] * sx;
+		float ty = dst[1] - src[1] * sy;
+		if (center) {
+			if (xLarger) {
+				tx += (dstWidth - srcWidth * sy) / 2;
+			} else {
+				ty += (dstHeight - srcHeight * sy) / 2;
+			}
+		}
+		reset(m);
+		m[MSCALE_X] = sx;
+		m[MTRANS_X] = tx;
+		m[MSCALE_Y] = sy;
+		m[MTRANS_Y] = ty;
+		return true;
+	}
+
+	/**
+	 * Sets dst to a times b, i.e. b is applied first. dst may be a or b.
+	 */
+	public static void concat(float[] dst, float[] a, float[] b) {
+		float[] r = new float[9];
+		for (int row = 0; row < 3; row++) {
+			for (int col = 0; col < 3; col++) {
+				r[row * 3 + col] = a[row * 3] * b[col]
+					+ a[row * 3 + 1] * b[3 + col]
+					+ a[row * 3 + 2] * b[6 + col];
+			}
+		}
+		System.arraycopy(r, 0, dst, 0, 9);
+	}
+
+	/**
+	 * Like {@code Matrix#postTranslate}, m becomes the translation times m.
+	 */
+	public static void postTranslate(float[] m, float dx, float dy) {
+		for (int col = 0; col < 3; col++) {
+			m[col] += dx * m[6 + col];
+			m[3 + col] += dy * m[6 + col];
+		}
+	}
+
+	/**
+	 * Like {@code Matrix#postScale}, m becomes the scale times m.
+	 */
+	public static void postScale(float[] m, float sx, float sy) {
+		for (int col = 0; col < 3; col++) {
+			m[col] *= sx;
+			m[3 + col] *= sy;
+		}
+	}
+
+	/**
+	 * Sets dst to the inverse of m. dst may be m.
+	 *
+	 * @return false if m cannot be inverted, dst is unchanged then
+	 */
+	public static boolean invert(float[] m, float[] dst) {
+		double a = m[0], b = m[1], c = m[2];
+		double d = m[3], e = m[4], f = m[5];
+		double g = m[6], h = m[7], i = m[8];
+		double c0 = e * i - f * h;
+		double c1 = f * g - d * i;
+		double c2 = d * h - e * g;
+		double det = a * c0 + b * c1 + c * c2;
+		if (Math.abs(det) <= (double) NEARLY_ZERO * NEARLY_ZERO * NEARLY_ZERO) {
+			return false;
+		}
+		double s = 1 / det;
+		float[] r = {
+			(float) (c0 * s), (float) ((c * h - b * i) * s), (float) ((b * f - c * e) * s),
+			(float) (c1 * s), (float) ((a * i - c * g) * s), (float) ((c * d - a * f) * s),
+			(float) (c2 * s), (float) ((b * g - a * h) * s), (float) ((a * e - b * d) * s)};
+		if (isAffine(m)) {
+			// keep affine inverses exactly affine
+			r[MPERSP_0] = 0;
+			r[MPERSP_1] = 0;
+			r[MPERSP_2] = 1;
+		}
+		System.arraycopy(r, 0, dst, 0, 9);
+		return true;
+	}
+
+	/**
+	 * Maps the points [x0, y0, x1, y1, ...] of src into dst, which may be
+	 * src.
+	 */
+	public static void mapPoints(float[] m, float[] dst, float[] src) {
+		boolean affine = isAffine(m);
+		for (int i = 0; i + 1 < src.length; i += 2) {
+			float x = src[i];
+			float y = src[i + 1];
+			float mx = m[MSCALE_X] * x + m[MSKEW_X] * y + m[MTRANS_X];
+			float my = m[MSKEW_Y] * x + m[MSCALE_Y] * y + m[MTRANS_Y];
+			if (!affine) {
+				float w = m[MPERSP_0] * x + m[MPERSP_1] * y + m[MPERSP_2];
+				if (w != 0) {
+					w = 1 / w;
+				}
+				mx *= w;
+				my *= w;
+			}
+			dst[i] = mx;
+			dst[i + 1] = my;
+		}
+	}
+
+	/**
+	 * Sets dst to the bounds of rect src mapped by m, dst may be src. Rects
+	 * are {left, top, right, bottom}.
+	 *
+	 * @return true if the mapped rect is still a rect, i.e. m only scales,
+	 * translates and rotates by multiples of 90 degrees
+	 */
+	public static boolean mapRect(float[] m, float[] dst, float[] src) {
+		float[] corners = CropGeometry.getCorners(src);
+		mapPoints(m, corners, corners);
+		float[] bounds = CropGeometry.trapToRect(corners);
+		System.arraycopy(bounds, 0, dst, 0, 4);
+		return rectStaysRect(m);
+	}
+
+	public static boolean rectStaysRect(float[] m) {
+		if (!isAffine(m)) {
+			return false;
+		}
+		if (m[MSKEW_X] == 0 && m[MSKEW_Y] == 0) {
+			return m[MSCALE_X] != 0 && m[MSCALE_Y] != 0;
+		}
+		return m[MSCALE_X] == 0 && m[MSCALE_Y] == 0 && m[MSKEW_X] != 0
+			&& m[MSKEW_Y] != 0;
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs numbered tasks, e.g. strips of an image, on an executor and the
+ * calling thread together. The calling thread keeps taking tasks until
+ * none are left, so it may itself be a thread of the executor without
+ * risking a deadlock.
+ */
+final class ParallelTasks {
+
+	interface Task {
+		void run(int index);
+	}
+
+	private ParallelTasks() {
+	}
+
+	/**
+	 * Runs task for 0 to count - 1 and returns when all are done.
+	 *
+	 * @param executor    runs tasks next to the calling thread, null to run
+	 *                    all on the calling thread
+	 * @param parallelism number of threads expected to run at once
+	 * @throws RuntimeException the first one a task threw
+	 */
+	static void run(final int count, Executor executor, int parallelism,
+					final Task task) throws InterruptedIOException {
+		final RuntimeException[] error = new RuntimeException[1];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(count);
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int i;
+				while ((i = next.getAndIncrement()) < count) {
+					try {
+						task.run(i);
+					} catch (RuntimeException e) {
+						synchronized (error) {
+							if (error[0] == null) {
+								error[0] = e;
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+		int helpers = executor == null ? 0 : Math.min(parallelism, count) - 1;
+		try {
+			for (int i = 0; i < helpers; i++) {
+				executor.execute(worker);
+			}
+		} catch (RejectedExecutionException e) {
+			// the calling thread takes the tasks nobody else picks up
+		}
+		worker.run();
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for tasks");
+		}
+		synchronized (error) {
+			if (error[0] != null) {
+				throw error[0];
+			}
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG row by row, so that an image never has to be held in memory
+ * as a whole. Rows come in as ARGB ints, get the adaptive filter with the
+ * smallest sum of absolute differences, as libpng picks it, and are
+ * deflated straight into IDAT chunks of the output stream. Has no Android
+ * dependency.
+ */
+public final class PngEncoder {
+
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G',
+		'\r', '\n', 0x1A, '\n'};
+	private static final int CHUNK_SIZE = 32 * 1024;
+	private static final int FILTER_COUNT = 5;
+
+	private final OutputStream mOut;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mBytesPerPixel;
+	private final Deflater mDeflater;
+	private final CRC32 mCrc = new CRC32();
+	private final byte[] mChunk = new byte[CHUNK_SIZE];
+	private final byte[] mHeader = new byte[8];
+	private byte[] mRow;
+	private byte[] mPrevRow;
+	// one candidate per filter type, each prefixed with its type byte
+	private final byte[][] mFiltered = new byte[FILTER_COUNT][];
+	private int mChunkLength;
+	private int mRowsWritten;
+
+	/**
+	 * Writes the signature and header to out.
+	 *
+	 * @param alpha whether to keep the alpha channel, rows are written as
+	 *              RGB otherwise
+	 * @param level {@link Deflater} compression level
+	 */
+	public PngEncoder(OutputStream out, int width, int height, boolean alpha,
+					  int level) throws IOException {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("bad image size " + width
+				+ "x" + height);
+		}
+		mOut = out;
+		mWidth = width;
+		mHeight = height;
+		mBytesPerPixel = alpha ? 4 : 3;
+		int rowBytes = width * mBytesPerPixel;
+		mRow = new byte[rowBytes];
+		mPrevRow = new byte[rowBytes];
+		for (int i = 0; i < FILTER_COUNT; i++) {
+			mFiltered[i] = new byte[rowBytes + 1];
+			mFiltered[i][0] = (byte) i;
+		}
+		mDeflater = new Deflater(level);
+
+		mOut.write(SIGNATURE);
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = 8; // bit depth
+		ihdr[9] = (byte) (alpha ? 6 : 2); // truecolor, with alpha or not
+		// compression, filter and interlace methods are all 0
+		writeChunk("IHDR", ihdr, ihdr.length);
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Appends rows to the image.
+	 *
+	 * @param pixels ARGB pixels, rows of {@link #getWidth()} starting at
+	 *               offset and stride apart
+	 */
+	public void writeRows(int[] pixels, int offset, int stride, int rows)
+		throws IOException {
+		if (mRowsWritten + rows > mHeight) {
+			throw new IllegalStateException("more rows than the image has");
+		}
+		for (int r = 0; r < rows; r++) {
+			byte[] swap = mPrevRow;
+			mPrevRow = mRow;
+			mRow = swap;
+			unpack(pixels, offset + r * stride, mRow);
+			byte[] filtered = filter(mRow, mRowsWritten == 0 ? null : mPrevRow);
+			deflate(filtered, filtered.length);
+			mRowsWritten++;
+		}
+	}
+
+	/**
+	 * Flushes the compressed data and writes the end of the image. Does not
+	 * close the stream.
+	 *
+	 * @throws IllegalStateException if not all rows were written
+	 */
+	public void finish() throws IOException {
+		if (mRowsWritten != mHeight) {
+			throw new IllegalStateException("only " + mRowsWritten + " of "
+				+ mHeight + " rows written");
+		}
+		mDeflater.finish();
+		while (!mDeflater.finished()) {
+			drain();
+		}
+		if (mChunkLength > 0) {
+			writeChunk("IDAT", mChunk, mChunkLength);
+			mChunkLength = 0;
+		}
+		writeChunk("IEND", mChunk, 0);
+		mOut.flush();
+		end();
+	}
+
+	/**
+	 * Releases the native compressor, e.g. after a failure. Called by
+	 * {@link #finish()}.
+	 */
+	public void end() {
+		mDeflater.end();
+	}
+
+	private void unpack(int[] pixels, int offset, byte[] row) {
+		int i = 0;
+		boolean alpha = mBytesPerPixel == 4;
+		for (int x = 0; x < mWidth; x++) {
+			int color = pixels[offset + x];
+			row[i++] = (byte) (color >> 16);
+			row[i++] = (byte) (color >> 8);
+			row[i++] = (byte) color;
+			if (alpha) {
+				row[i++] = (byte) (color >>> 24);
+			}
+		}
+	}
+
+	/**
+	 * Applies every filter type to row and returns the candidate with the
+	 * smallest sum of absolute values.
+	 *
+	 * @param prev the row above, null for the first row
+	 */
+	private byte[] filter(byte[] row, byte[] prev) {
+		int bpp = mBytesPerPixel;
+		int length = row.length;
+		byte[] none = mFiltered[0];
+		byte[] sub = mFiltered[1];
+		byte[] up = mFiltered[2];
+		byte[] average = mFiltered[3];
+		byte[] paeth = mFiltered[4];
+		long[] sums = new long[FILTER_COUNT];
+		for (int i = 0; i < length; i++) {
+			int x = row[i] & 0xFF;
+			int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+			int b = prev != null ? prev[i] & 0xFF : 0;
+			int c = i >= bpp && prev != null ? prev[i - bpp] & 0xFF : 0;
+
+			byte v0 = (byte) x;
+			byte v1 = (byte) (x - a);
+			byte v2 = (byte) (x - b);
+			byte v3 = (byte) (x - ((a + b) >>> 1));
+			byte v4 = (byte) (x - paethPredictor(a, b, c));
+			none[i + 1] = v0;
+			sub[i + 1] = v1;
+			up[i + 1] = v2;
+			average[i + 1] = v3;
+			paeth[i + 1] = v4;
+			sums[0] += Math.abs(v0);
+			sums[1] += Math.abs(v1);
+			sums[2] += Math.abs(v2);
+			sums[3] += Math.abs(v3);
+			sums[4] += Math.abs(v4);
+		}
+		int best = 0;
+		for (int i = 1; i < FILTER_COUNT; i++) {
+			if (sums[i] < sums[best]) {
+				best = i;
+			}
+		}
+		return mFiltered[best];
+	}
+
+	private static int paethPredictor(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		} else if (pb <= pc) {
+			return b;
+		}
+		return c;
+	}
+
+	private void deflate(byte[] data, int length) throws IOException {
+		mDeflater.setInput(data, 0, length);
+		while (!mDeflater.needsInput()) {
+			drain();
+		}
+	}
+
+	/**
+	 * Moves compressed bytes into the current chunk, writing it out when
+	 * it is full.
+	 */
+	private void drain() throws IOException {
+		mChunkLength += mDeflater.deflate(mChunk, mChunkLength,
+			CHUNK_SIZE - mChunkLength);
+		if (mChunkLength == CHUNK_SIZE) {
+			writeChunk("IDAT", mChunk, mChunkLength);
+			mChunkLength = 0;
+		}
+	}
+
+	private void writeChunk(String type, byte[] data, int length)
+		throws IOException {
+		putInt(mHeader, 0, length);
+		for (int i = 0; i < 4; i++) {
+			mHeader[4 + i] = (byte) type.charAt(i);
+		}
+		mCrc.reset();
+		mCrc.update(mHeader, 4, 4);
+		mCrc.update(data, 0, length);
+		mOut.write(mHeader, 0, 8);
+		mOut.write(data, 0, length);
+		putInt(mHeader, 0, (int) mCrc.getValue());
+		mOut.write(mHeader, 0, 4);
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Scales a rectangle of an ARGB image to a new size with a separable box,
+ * bilinear or Lanczos kernel. Kernel weights are computed once per output
+ * column and row; output rows are produced in strips in parallel, each
+ * strip reading only the source rows under it, so memory beyond the
+ * output stays proportional to the strip. Unlike bilinear drawing, the
+ * kernels widen on reduction and so take every source pixel into
+ * account. Has no Android dependency.
+ */
+public final class Resampler {
+
+	public static final int KERNEL_BOX = 1;
+	public static final int KERNEL_BILINEAR = 2;
+	/**
+	 * Lanczos with 3 lobes, sharpest but slowest.
+	 */
+	public static final int KERNEL_LANCZOS = 3;
+
+	/**
+	 * Receives output rows, called from several threads at once with
+	 * disjoint rows.
+	 */
+	public interface RowTarget {
+		/**
+		 * @param src rows of the output width, packed without padding
+		 */
+		void writeRows(int top, int rows, int[] src);
+	}
+
+	private static final int ROWS_PER_STRIP = 32;
+	private static final int WEIGHT_BITS = 14;
+	private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+	private final int mSourceWidth;
+	private final int mSourceHeight;
+	private final int mWidth;
+	private final int mHeight;
+	private final Weights mHorizontal;
+	private final Weights mVertical;
+
+	/**
+	 * Maps the rectangle left, top, right, bottom of a source image of
+	 * sourceWidth x sourceHeight onto width x height output pixels. Kernels
+	 * reaching past the source edges are renormalised over the pixels
+	 * inside.
+	 *
+	 * @param kernel one of the KERNEL constants
+	 */
+	public Resampler(int sourceWidth, int sourceHeight, float left, float top,
+					 float right, float bottom, int width, int height,
+					 int kernel) {
+		if (sourceWidth <= 0 || sourceHeight <= 0 || width <= 0
+			|| height <= 0 || right <= left || bottom <= top) {
+			throw new IllegalArgumentException("bad resample from "
+				+ sourceWidth + "x" + sourceHeight + " to " + width + "x"
+				+ height);
+		}
+		if (kernel != KERNEL_BOX && kernel != KERNEL_BILINEAR
+			&& kernel != KERNEL_LANCZOS) {
+			throw new IllegalArgumentException("bad kernel " + kernel);
+		}
+		mSourceWidth = sourceWidth;
+		mSourceHeight = sourceHeight;
+		mWidth = width;
+		mHeight = height;
+		mHorizontal = new Weights(kernel, sourceWidth, left, right, width);
+		mVertical = new Weights(kernel, sourceHeight, top, bottom, height);
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Resamples source into target.
+	 *
+	 * @param executor    runs strips next to the calling thread, null to
+	 *                    run on the calling thread only
+	 * @param parallelism number of threads expected to run at once
+	 */
+	public void resample(final RowSource source, final RowTarget target,
+						 Executor executor, int parallelism)
+		throws InterruptedIOException {
+		int strips = (mHeight + ROWS_PER_STRIP - 1) / ROWS_PER_STRIP;
+		ParallelTasks.run(strips, executor, parallelism,
+			new ParallelTasks.Task() {
+				@Override
+				public void run(int index) {
+					int top = index * ROWS_PER_STRIP;
+					resampleStrip(source, target, top, Math.min(mHeight,
+						top + ROWS_PER_STRIP));
+				}
+			});
+	}
+
+	/**
+	 * Convenience for a packed source and output.
+	 */
+	public void resample(final int[] source, final int[] out,
+						 Executor executor, int parallelism)
+		throws InterruptedIOException {
+		if (source.length < mSourceWidth * mSourceHeight
+			|| out.length < mWidth * mHeight) {
+			throw new IllegalArgumentException("pixel buffer too small");
+		}
+		resample(new RowSource() {
+			@Override
+			public void readRows(int top, int rows, int[] dst) {
+				System.arraycopy(source, top * mSourceWidth, dst, 0,
+					rows * mSourceWidth);
+			}
+		}, new RowTarget() {
+			@Override
+			public void writeRows(int top, int rows, int[] src) {
+				System.arraycopy(src, 0, out, top * mWidth, rows * mWidth);
+			}
+		}, executor, parallelism);
+	}
+
+	private void resampleStrip(RowSource source, RowTarget target, int top,
+							   int bottom) {
+		Weights v = mVertical;
+		int first = v.starts[top];
+		int last = first;
+		for (int y = top; y < bottom; y++) {
+			first = Math.min(first, v.starts[y]);
+			last = Math.max(last, v.starts[y] + v.counts[y]);
+		}
+		int rows = last - first;
+		int[] sourceRows = new int[rows * mSourceWidth];
+		source.readRows(first, rows, sourceRows);
+
+		// horizontal pass, 4 channels per pixel kept at full precision
+		Weights h = mHorizontal;
+		int[] scaled = new int[rows * mWidth * 4];
+		for (int r = 0; r < rows; r++) {
+			int in = r * mSourceWidth;
+			int out = r * mWidth * 4;
+			for (int x = 0; x < mWidth; x++, out += 4) {
+				int a = 0;
+				int red = 0;
+				int g = 0;
+				int b = 0;
+				int w = x * h.taps;
+				int p = in + h.starts[x];
+				for (int k = 0; k < h.counts[x]; k++, w++, p++) {
+					int color = sourceRows[p];
+					int weight = h.weights[w];
+					a += (color >>> 24) * weight;
+					red += ((color >> 16) & 0xFF) * weight;
+					g += ((color >> 8) & 0xFF) * weight;
+					b += (color & 0xFF) * weight;
+				}
+				scaled[out] = a;
+				scaled[out + 1] = red;
+				scaled[out + 2] = g;
+				scaled[out + 3] = b;
+			}
+		}
+
+		// vertical pass, weights of 14 bits on values of 8 + 14 bits
+		int[] pixels = new int[(bottom - top) * mWidth];
+		for (int y = top; y < bottom; y++) {
+			int out = (y - top) * mWidth;
+			int base = (v.starts[y] - first) * mWidth * 4;
+			int w0 = y * v.taps;
+			for (int x = 0; x < mWidth; x++) {
+				long a = 0;
+				long red = 0;
+				long g = 0;
+				long b = 0;
+				int p = base + x * 4;
+				for (int k = 0; k < v.counts[y]; k++, p += mWidth * 4) {
+					int weight = v.weights[w0 + k];
+					a += (long) scaled[p] * weight;
+					red += (long) scaled[p + 1] * weight;
+					g += (long) scaled[p + 2] * weight;
+					b += (long) scaled[p + 3] * weight;
+				}
+				pixels[out + x] = (clamp(a) << 24) | (clamp(red) << 16)
+					| (clamp(g) << 8) | clamp(b);
+			}
+		}
+		target.writeRows(top, bottom - top, pixels);
+	}
+
+	private static int clamp(long value) {
+		long rounded = (value + (1L << (2 * WEIGHT_BITS - 1))) >> (2 * WEIGHT_BITS);
+		return rounded < 0 ? 0 : rounded > 255 ? 255 : (int) rounded;
+	}
+
+	private static double kernel(int kernel, double x) {
+		x = Math.abs(x);
+		switch (kernel) {
+			case KERNEL_BOX:
+				return x < 0.5 ? 1 : x == 0.5 ? 0.5 : 0;
+			case KERNEL_BILINEAR:
+				return x < 1 ? 1 - x : 0;
+			default:
+				if (x == 0) {
+					return 1;
+				} else if (x >= 3) {
+					return 0;
+				}
+				double px = Math.PI * x;
+				return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+		}
+	}
+
+	private static double support(int kernel) {
+		return kernel == KERNEL_BOX ? 0.5 : kernel == KERNEL_BILINEAR ? 1 : 3;
+	}
+
+	/**
+	 * Fixed point weights along one axis: output pixel i takes counts[i]
+	 * source pixels from starts[i] on, weighted by weights[i * taps + k].
+	 */
+	private static final class Weights {
+		final int[] starts;
+		final int[] counts;
+		final int[] weights;
+		final int taps;
+
+		Weights(int kernel, int sourceSize, float from, float to, int size) {
+			double scale = (to - from) / (double) size;
+			// widen the kernel on reduction so that it covers every source
+			// pixel
+			double stretch = Math.max(1, scale);
+			double support = support(kernel) * stretch;
+			taps = (int) Math.ceil(support * 2) + 1;
+			starts = new int[size];
+			counts = new int[size];
+			weights = new int[size * taps];
+			double[] raw = new double[taps];
+			for (int i = 0; i < size; i++) {
+				double center = from + (i + 0.5) * scale;
+				// source pixel j covers j to j + 1, its center is j + 0.5
+				int first = (int) Math.floor(center - support - 0.5) + 1;
+				first = Math.max(0, Math.min(first, sourceSize - 1));
+				int end = (int) Math.ceil(center + support - 0.5);
+				end = Math.max(first + 1, Math.min(end, sourceSize));
+				int count = Math.min(end - first, taps);
+				double sum = 0;
+				for (int k = 0; k < count; k++) {
+					raw[k] = kernel(kernel, (first + k + 0.5 - center) / stretch);
+					sum += raw[k];
+				}
+				if (sum == 0) {
+					// between two box samples, take the nearest pixel
+					int nearest = Math.max(0, Math.min((int) center,
+						sourceSize - 1));
+					first = nearest;
+					count = 1;
+					raw[0] = 1;
+					sum = 1;
+				}
+				starts[i] = first;
+				counts[i] = count;
+				int total = 0;
+				for (int k = 0; k < count; k++) {
+					int weight = (int) Math.round(raw[k] / sum * WEIGHT_ONE);
+					weights[i * taps + k] = weight;
+					total += weight;
+				}
+				// rounding must not change the brightness
+				weights[i * taps + count / 2] += WEIGHT_ONE - total;
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+/**
+ * Supplies rows of ARGB pixels to the encoders and the {@link Resampler},
+ * e.g. from a bitmap. May be called from several threads at once.
+ */
+public interface RowSource {
+	/**
+	 * @param dst receives rows of the image width starting at top, packed
+	 *            without padding
+	 */
+	void readRows(int top, int rows, int[] dst);
+}
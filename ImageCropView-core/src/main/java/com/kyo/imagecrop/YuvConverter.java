@@ -0,0 +1,190 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Converts the part of a {@link YuvFrame} an output covers straight to
+ * ARGB pixels, rotating, scaling and cropping in the same pass: every
+ * output pixel is mapped back into the frame and sampled bilinearly, so
+ * pixels outside the crop footprint are never touched. Rows are split into
+ * strips that run in parallel, the calling thread converting strips too.
+ * Uses full range BT.601 (JFIF) coefficients and has no Android
+ * dependency.
+ */
+public final class YuvConverter {
+
+	private static final int WHITE = 0xFFFFFFFF;
+	private static final int ROWS_PER_STRIP = 32;
+
+	private YuvConverter() {
+	}
+
+	/**
+	 * Converts on the calling thread.
+	 *
+	 * @param sourceToOutput affine transform from frame pixels to output
+	 *                       pixels, 9 values in row major order
+	 * @param out            receives width x height ARGB pixels, white
+	 *                       where the output is outside the frame
+	 */
+	public static void convert(YuvFrame frame, float[] sourceToOutput,
+							   int[] out, int width, int height) {
+		convertRows(frame, invert(sourceToOutput, out, width, height), out,
+			width, 0, height);
+	}
+
+	/**
+	 * Like {@link #convert(YuvFrame, float[], int[], int, int)}, with strips
+	 * also running on executor. The calling thread takes strips itself, so
+	 * it may be a thread of executor.
+	 *
+	 * @param executor    runs strips next to the calling thread, null to
+	 *                    convert on the calling thread only
+	 * @param parallelism number of threads expected to convert at once
+	 */
+	public static void convert(final YuvFrame frame, float[] sourceToOutput,
+							   final int[] out, final int width, final int height,
+							   Executor executor, int parallelism)
+		throws InterruptedIOException {
+		final double[] inverse = invert(sourceToOutput, out, width, height);
+		int strips = (height + ROWS_PER_STRIP - 1) / ROWS_PER_STRIP;
+		ParallelTasks.run(strips, executor, parallelism,
+			new ParallelTasks.Task() {
+				@Override
+				public void run(int index) {
+					int top = index * ROWS_PER_STRIP;
+					convertRows(frame, inverse, out, width, top,
+						Math.min(height, top + ROWS_PER_STRIP));
+				}
+			});
+	}
+
+	/**
+	 * Returns the output to frame transform as 6 affine values.
+	 */
+	private static double[] invert(float[] sourceToOutput, int[] out,
+								   int width, int height) {
+		if (out.length < width * height) {
+			throw new IllegalArgumentException("output buffer too small");
+		}
+		double scaleX = sourceToOutput[0];
+		double skewX = sourceToOutput[1];
+		double transX = sourceToOutput[2];
+		double skewY = sourceToOutput[3];
+		double scaleY = sourceToOutput[4];
+		double transY = sourceToOutput[5];
+		double det = scaleX * scaleY - skewX * skewY;
+		if (det == 0 || Double.isNaN(det)) {
+			throw new IllegalArgumentException("transform is not invertible");
+		}
+		// inverse, output to frame
+		double[] inverse = new double[6];
+		inverse[0] = scaleY / det;
+		inverse[1] = -skewX / det;
+		inverse[3] = -skewY / det;
+		inverse[4] = scaleX / det;
+		inverse[2] = -(inverse[0] * transX + inverse[1] * transY);
+		inverse[5] = -(inverse[3] * transX + inverse[4] * transY);
+		return inverse;
+	}
+
+	static void convertRows(YuvFrame frame, double[] inverse, int[] out,
+							int width, int top, int bottom) {
+		int fw = frame.width;
+		int fh = frame.height;
+		int cw = (fw + 1) / 2;
+		int ch = (fh + 1) / 2;
+		for (int row = top; row < bottom; row++) {
+			// frame position of the center of the first pixel in the row
+			double sx = inverse[0] * 0.5 + inverse[1] * (row + 0.5) + inverse[2];
+			double sy = inverse[3] * 0.5 + inverse[4] * (row + 0.5) + inverse[5];
+			int index = row * width;
+			for (int col = 0; col < width; col++, index++) {
+				double x = sx + inverse[0] * col;
+				double y = sy + inverse[3] * col;
+				if (x < 0 || y < 0 || x >= fw || y >= fh) {
+					out[index] = WHITE;
+					continue;
+				}
+				int luma = sampleLuma(frame, x - 0.5, y - 0.5);
+				// chroma samples sit at the center of 2x2 luma blocks
+				double cx = clamp(x / 2 - 0.5, cw);
+				double cy = clamp(y / 2 - 0.5, ch);
+				int cx0 = (int) cx;
+				int cy0 = (int) cy;
+				int cx1 = Math.min(cx0 + 1, cw - 1);
+				int cy1 = Math.min(cy0 + 1, ch - 1);
+				int fx = (int) ((cx - cx0) * 256);
+				int fy = (int) ((cy - cy0) * 256);
+				int cb = bilinear(frame.u, frame.uvRowStride,
+					frame.uvPixelStride, cx0, cy0, cx1, cy1, fx, fy);
+				int cr = bilinear(frame.v, frame.uvRowStride,
+					frame.uvPixelStride, cx0, cy0, cx1, cy1, fx, fy);
+				out[index] = toArgb(luma, cb - 128, cr - 128);
+			}
+		}
+	}
+
+	private static int sampleLuma(YuvFrame frame, double x, double y) {
+		x = clamp(x, frame.width);
+		y = clamp(y, frame.height);
+		int x0 = (int) x;
+		int y0 = (int) y;
+		int x1 = Math.min(x0 + 1, frame.width - 1);
+		int y1 = Math.min(y0 + 1, frame.height - 1);
+		return bilinear(frame.y, frame.yRowStride, 1, x0, y0, x1, y1,
+			(int) ((x - x0) * 256), (int) ((y - y0) * 256));
+	}
+
+	private static double clamp(double value, int size) {
+		return value < 0 ? 0 : value > size - 1 ? size - 1 : value;
+	}
+
+	/**
+	 * Interpolates a plane with 8 bit fractions fx and fy.
+	 */
+	private static int bilinear(ByteBuffer plane, int rowStride,
+								int pixelStride, int x0, int y0, int x1, int y1, int fx,
+								int fy) {
+		int row0 = y0 * rowStride;
+		int row1 = y1 * rowStride;
+		int p00 = plane.get(row0 + x0 * pixelStride) & 0xff;
+		int p01 = plane.get(row0 + x1 * pixelStride) & 0xff;
+		int p10 = plane.get(row1 + x0 * pixelStride) & 0xff;
+		int p11 = plane.get(row1 + x1 * pixelStride) & 0xff;
+		int top = (p00 << 8) + (p01 - p00) * fx;
+		int bottom = (p10 << 8) + (p11 - p10) * fx;
+		return ((top << 8) + (bottom - top) * fy + (1 << 15)) >> 16;
+	}
+
+	/**
+	 * Full range BT.601 in 16.16 fixed point.
+	 */
+	static int toArgb(int y, int cb, int cr) {
+		int yy = y << 16;
+		int r = (yy + 91881 * cr + (1 << 15)) >> 16;
+		int g = (yy - 22554 * cb - 46802 * cr + (1 << 15)) >> 16;
+		int b = (yy + 116130 * cb + (1 << 15)) >> 16;
+		r = r < 0 ? 0 : r > 255 ? 255 : r;
+		g = g < 0 ? 0 : g > 255 ? 255 : g;
+		b = b < 0 ? 0 : b > 255 ? 255 : b;
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A 4:2:0 camera frame, e.g. an NV21 preview buffer or the planes of a
+ * YUV_420_888 image. Planes are read with absolute gets only, so they can
+ * be shared between threads. Pure Java, usable off Android.
+ */
+public class YuvFrame {
+
+	final int width;
+	final int height;
+	final ByteBuffer y;
+	final int yRowStride;
+	final ByteBuffer u;
+	final ByteBuffer v;
+	final int uvRowStride;
+	final int uvPixelStride;
+	final int rotation;
+
+	/**
+	 * @param u             Cb plane
+	 * @param v             Cr plane
+	 * @param uvRowStride   row stride of both chroma planes in bytes
+	 * @param uvPixelStride distance between chroma samples in bytes, 2 for
+	 *                      interleaved planes
+	 * @param rotation      clockwise degrees that make the frame upright
+	 */
+	public YuvFrame(int width, int height, ByteBuffer y, int yRowStride,
+					ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+					int rotation) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("bad frame size " + width + "x"
+				+ height);
+		}
+		this.width = width;
+		this.height = height;
+		this.y = y;
+		this.yRowStride = yRowStride;
+		this.u = u;
+		this.v = v;
+		this.uvRowStride = uvRowStride;
+		this.uvPixelStride = uvPixelStride;
+		this.rotation = rotation;
+	}
+
+	/**
+	 * Wraps an NV21 buffer: full Y plane followed by interleaved V and U.
+	 */
+	public static YuvFrame fromNV21(byte[] data, int width, int height,
+									int rotation) {
+		int ySize = width * height;
+		int uvSize = ((width + 1) / 2) * ((height + 1) / 2) * 2;
+		if (data.length < ySize + uvSize) {
+			throw new IllegalArgumentException("NV21 buffer too small: "
+				+ data.length);
+		}
+		ByteBuffer all = ByteBuffer.wrap(data);
+		ByteBuffer y = all.duplicate();
+		y.limit(ySize);
+		ByteBuffer v = slice(all, ySize);
+		ByteBuffer u = slice(all, ySize + 1);
+		int uvRowStride = ((width + 1) / 2) * 2;
+		return new YuvFrame(width, height, y, width, u, v, uvRowStride, 2,
+			rotation);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(offset);
+		return dup.slice();
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getRotation() {
+		return rotation;
+	}
+}
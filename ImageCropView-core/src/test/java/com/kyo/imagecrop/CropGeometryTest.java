@@ -0,0 +1,206 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CropGeometryTest {
+
+	private static final float EPSILON = 1e-3f;
+
+	@Test
+	public void trapToRectBoundsPoints() {
+		assertArrayEquals(new float[]{-3, -1, 7, 9}, CropGeometry.trapToRect(
+			new float[]{7, -1, -3, 4, 2, 9}), 0);
+	}
+
+	@Test
+	public void cornersRoundTrip() {
+		float[] r = {1, 2, 3, 4};
+		assertArrayEquals(new float[]{1, 2, 3, 2, 3, 4, 1, 4},
+			CropGeometry.getCorners(r), 0);
+		assertArrayEquals(r, CropGeometry.trapToRect(CropGeometry.getCorners(r)),
+			0);
+	}
+
+	@Test
+	public void containsIncludesEdges() {
+		float[] r = {0, 0, 10, 10};
+		assertTrue(CropGeometry.inclusiveContains(r, 10, 10));
+		assertTrue(CropGeometry.inclusiveContains(r, 0, 5));
+		assertFalse(CropGeometry.inclusiveContains(r, 10.01f, 5));
+	}
+
+	@Test
+	public void clampPointsToBound() {
+		float[] points = {-5, 5, 15, 20, 3, 4};
+		CropGeometry.clampPoints(new float[]{0, 0, 10, 10}, points);
+		assertArrayEquals(new float[]{0, 5, 10, 10, 3, 4}, points, 0);
+	}
+
+	@Test
+	public void fixAspectRatioKeepsCenter() {
+		float[] r = {0, 0, 100, 50};
+		CropGeometry.fixAspectRatio(r, 1, 1);
+		assertArrayEquals(new float[]{25, 0, 75, 50}, r, 0);
+		r = new float[]{0, 0, 100, 100};
+		CropGeometry.fixAspectRatioContained(r, 2, 1);
+		assertArrayEquals(new float[]{0, 25, 100, 75}, r, 0);
+		r = new float[]{0, 0, 100, 100};
+		CropGeometry.fixAspectRatioContained(r, 1, 4);
+		assertArrayEquals(new float[]{37.5f, 0, 62.5f, 100}, r, 0);
+	}
+
+	@Test
+	public void rotationIsConstrainedToRightAngles() {
+		assertEquals(0, CropGeometry.constrainedRotation(89));
+		assertEquals(90, CropGeometry.constrainedRotation(90));
+		assertEquals(270, CropGeometry.constrainedRotation(359));
+		assertEquals(270, CropGeometry.constrainedRotation(-90));
+		assertEquals(180, CropGeometry.constrainedRotation(540));
+	}
+
+	@Test
+	public void sampleSizeKeepsRequestedSize() {
+		assertEquals(1, CropGeometry.calculateInSampleSize(100, 100, 100, 100));
+		assertEquals(4, CropGeometry.calculateInSampleSize(4000, 3000, 900, 700));
+		assertEquals(2, CropGeometry.calculateInSampleSize(4000, 3000, 1000, 750));
+	}
+
+	@Test
+	public void constrainedSampleSize() {
+		assertEquals(4, CropGeometry.getConstrainedSampleSize(4000, 3000, 1024,
+			false));
+		assertEquals(4, CropGeometry.getConstrainedSampleSize(4000, 1000, 1024,
+			false));
+		assertEquals(1, CropGeometry.getConstrainedSampleSize(4000, 1000, 1024,
+			true));
+		assertEquals(1, CropGeometry.getConstrainedSampleSize(800, 600, 1024,
+			false));
+		assertEquals(0, CropGeometry.getConstrainedSampleSize(0, 600, 1024,
+			false));
+		// the short side would vanish
+		assertEquals(0, CropGeometry.getConstrainedSampleSize(100000, 10, 256,
+			false));
+	}
+
+	@Test
+	public void imageFitsScreenRotated() {
+		float[] m = new float[9];
+		float[] image = {0, 0, 400, 300};
+		CropGeometry.setImageToScreenMatrix(m, image, image,
+			new float[]{0, 0, 1000, 1000}, 90);
+		float[] r = new float[4];
+		MatrixMath.mapRect(m, r, image);
+		// fits unscaled, centered
+		assertArrayEquals(new float[]{350, 300, 650, 700}, r, EPSILON);
+
+		CropGeometry.setImageToScreenMatrix(m, image, image,
+			new float[]{0, 0, 200, 400}, 90);
+		MatrixMath.mapRect(m, r, image);
+		assertArrayEquals(new float[]{0, 66.667f, 200, 333.333f}, r, EPSILON);
+	}
+
+	@Test
+	public void cropFitsScreen() {
+		float[] m = new float[9];
+		CropGeometry.setCropToScreenMatrix(m, new float[]{0, 0, 200, 100},
+			new float[]{0, 0, 100, 100});
+		float[] r = new float[4];
+		MatrixMath.mapRect(m, r, new float[]{0, 0, 200, 100});
+		assertArrayEquals(new float[]{0, 25, 100, 75}, r, EPSILON);
+	}
+
+	@Test
+	public void cropRectIsMappedIntoImage() {
+		float[] imageMatrix = MatrixMath.create();
+		MatrixMath.setScale(imageMatrix, 0.5f, 0.5f);
+		MatrixMath.postTranslate(imageMatrix, 10, 10);
+		float[] identity = MatrixMath.create();
+		float[] crop = CropGeometry.getCropRect(imageMatrix, identity, identity,
+			new float[]{0, 0, 400, 300}, new float[]{20, 20, 110, 60});
+		assertArrayEquals(new float[]{20, 20, 200, 100}, crop, EPSILON);
+	}
+
+	@Test
+	public void cropRectIsClippedToImage() {
+		float[] imageMatrix = MatrixMath.create();
+		MatrixMath.setScale(imageMatrix, 0.5f, 0.5f);
+		MatrixMath.postTranslate(imageMatrix, 10, 10);
+		float[] identity = MatrixMath.create();
+		float[] crop = CropGeometry.getCropRect(imageMatrix, identity, identity,
+			new float[]{0, 0, 400, 300}, new float[]{0, 20, 300, 100});
+		// the image shows at 10 .. 210 x 10 .. 160
+		assertArrayEquals(new float[]{0, 20, 400, 180}, crop, EPSILON);
+	}
+
+	@Test
+	public void cropRectFollowsImageMovement() {
+		float[] identity = MatrixMath.create();
+		// the image was moved 30 right, so the crop window sees 30 less
+		float[] imageCrop = MatrixMath.create();
+		MatrixMath.postTranslate(imageCrop, 30, 0);
+		float[] displayCrop = MatrixMath.create();
+		MatrixMath.setScale(displayCrop, 2, 2);
+		float[] crop = CropGeometry.getCropRect(identity, imageCrop, displayCrop,
+			new float[]{0, 0, 400, 300}, new float[]{40, 10, 90, 60});
+		assertArrayEquals(new float[]{50, 20, 150, 120}, crop, EPSILON);
+	}
+
+	@Test
+	public void cropOutsideImageIsNull() {
+		float[] identity = MatrixMath.create();
+		assertNull(CropGeometry.getCropRect(identity, identity, identity,
+			new float[]{0, 0, 100, 100}, new float[]{200, 200, 300, 300}));
+		float[] singular = new float[9];
+		assertNull(CropGeometry.getCropRect(identity, singular, identity,
+			new float[]{0, 0, 100, 100}, new float[]{0, 0, 50, 50}));
+	}
+
+	@Test
+	public void pointInRotatedRect() {
+		float[] bound = {0, 0, 10, 2};
+		assertTrue(CropGeometry.pointInRotatedRect(new float[]{5, 5}, bound, 90));
+		assertFalse(CropGeometry.pointInRotatedRect(new float[]{5, 5}, bound, 0));
+	}
+
+	@Test
+	public void closestSideOfSquare() {
+		float[] corners = CropGeometry.getCorners(new float[]{0, 0, 10, 10});
+		assertArrayEquals(new float[]{10, 0, 10, 10}, CropGeometry.closestSide(
+			new float[]{9, 5}, corners), 0);
+	}
+
+	@Test
+	public void vectors() {
+		assertArrayEquals(new float[]{5, 5}, CropGeometry.lineIntersect(
+			new float[]{0, 0, 10, 10}, new float[]{0, 10, 10, 0}), EPSILON);
+		assertNull(CropGeometry.lineIntersect(new float[]{0, 0, 1, 0},
+			new float[]{0, 1, 1, 1}));
+		assertArrayEquals(new float[]{0, -3}, CropGeometry
+			.shortestVectorFromPointToLine(new float[]{2, 3},
+				new float[]{0, 0, 10, 0}), EPSILON);
+		assertEquals(5, CropGeometry.getDistance(0, 0, 3, 4), 0);
+		assertEquals(90, CropGeometry.getDegrees(0, 1, 0, 0), EPSILON);
+		assertEquals(0.5f, CropGeometry.scale(200, 100, 100, 100), 0);
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CropPlannerTest {
+
+	@Test
+	public void unscaledCropDecodesCropWithMargin() {
+		float[] m = MatrixMath.create();
+		MatrixMath.postTranslate(m, -100, -50);
+		CropPlan plan = CropPlanner.plan(1000, 800, m, 200, 100);
+		assertNotNull(plan);
+		assertEquals(1, plan.sampleSize);
+		assertEquals(99, plan.left);
+		assertEquals(49, plan.top);
+		assertEquals(301, plan.right);
+		assertEquals(151, plan.bottom);
+		assertEquals(200 * 100, plan.footprintArea, 1e-6);
+		assertEquals(200 * 100, plan.outputPixels);
+	}
+
+	@Test
+	public void reductionPicksPowerOfTwoSampleSize() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setScale(m, 0.25f, 0.25f);
+		CropPlan plan = CropPlanner.plan(1000, 800, m, 250, 200);
+		assertEquals(4, plan.sampleSize);
+		// clamped to the source
+		assertEquals(0, plan.left);
+		assertEquals(0, plan.top);
+		assertEquals(1000, plan.right);
+		assertEquals(800, plan.bottom);
+		assertEquals(250 * 200, plan.getDecodedPixels());
+		assertEquals(1, plan.getOverheadRatio(), 1e-6);
+
+		MatrixMath.setScale(m, 0.3f, 0.3f);
+		assertEquals(2, CropPlanner.plan(1000, 800, m, 300, 240).sampleSize);
+		// the finer axis decides
+		MatrixMath.setScale(m, 0.25f, 0.5f);
+		assertEquals(2, CropPlanner.plan(1000, 800, m, 250, 400).sampleSize);
+	}
+
+	@Test
+	public void boundsAreAlignedToSampleSize() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setScale(m, 0.25f, 0.25f);
+		MatrixMath.postTranslate(m, -33, -17);
+		CropPlan plan = CropPlanner.plan(1000, 800, m, 100, 80);
+		assertEquals(4, plan.sampleSize);
+		assertEquals(0, plan.left % 4);
+		assertEquals(0, plan.top % 4);
+		assertTrue(plan.left <= 33 * 4 - 4);
+		assertTrue(plan.right >= (33 + 100) * 4);
+	}
+
+	@Test
+	public void rotatedCropCoversFootprint() {
+		// rotate 90 about the origin, then shift back into view
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, 90);
+		MatrixMath.postTranslate(m, 800, 0);
+		CropPlan plan = CropPlanner.plan(1000, 800, m, 800, 1000);
+		assertEquals(1, plan.sampleSize);
+		assertArrayEquals(new int[]{0, 0, 1000, 800}, new int[]{plan.left,
+			plan.top, plan.right, plan.bottom});
+		assertEquals(800 * 1000, plan.footprintArea, 1e-3);
+	}
+
+	@Test
+	public void partlyOutsideCropClipsFootprint() {
+		float[] m = MatrixMath.create();
+		MatrixMath.postTranslate(m, 50, 0);
+		// half of the output lies left of the source
+		CropPlan plan = CropPlanner.plan(1000, 800, m, 100, 100);
+		assertEquals(0, plan.left);
+		assertEquals(51, plan.right);
+		assertEquals(50 * 100, plan.footprintArea, 1e-6);
+	}
+
+	@Test
+	public void cropOutsideSourceHasNoPlan() {
+		float[] m = MatrixMath.create();
+		MatrixMath.postTranslate(m, -2000, 0);
+		assertNull(CropPlanner.plan(1000, 800, m, 100, 100));
+	}
+
+	@Test
+	public void singularTransformHasNoPlan() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setScale(m, 0, 1);
+		assertNull(CropPlanner.plan(1000, 800, m, 100, 100));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsPerspective() {
+		CropPlanner.plan(100, 100, new float[]{1, 0, 0, 0, 1, 0, 0.1f, 0, 1},
+			10, 10);
+	}
+
+	@Test
+	public void clipsPolygonToBounds() {
+		// a diamond around the top left corner
+		double[] clipped = CropPlanner.clip(new double[]{0, -10, 10, 0, 0, 10,
+			-10, 0}, 100, 100);
+		assertEquals(50, CropPlanner.area(clipped), 1e-9);
+		assertEquals(200, CropPlanner.area(new double[]{0, -10, 10, 0, 0, 10,
+			-10, 0}), 1e-9);
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegEncoderTest {
+
+	private static ExecutorService sExecutor;
+
+	@BeforeClass
+	public static void startExecutor() {
+		sExecutor = Executors.newFixedThreadPool(3);
+	}
+
+	@AfterClass
+	public static void stopExecutor() {
+		sExecutor.shutdown();
+	}
+
+	@Test
+	public void serialOutputDecodesClose() throws Exception {
+		int[] pixels = createImage(320, 240);
+		BufferedImage image = decode(encode(pixels, 320, 240, 90, false));
+		assertTrue(psnr(pixels, image) > 32);
+	}
+
+	@Test
+	public void parallelOutputDecodesLikeSerial() throws Exception {
+		int[] pixels = createImage(333, 517);
+		byte[] serial = encode(pixels, 333, 517, 85, false);
+		byte[] parallel = encode(pixels, 333, 517, 85, true);
+		// restart markers split the entropy coded data into segments
+		assertTrue(countRestartMarkers(parallel) > 0);
+		assertEquals(0, countRestartMarkers(serial));
+		BufferedImage serialImage = decode(serial);
+		BufferedImage parallelImage = decode(parallel);
+		assertTrue(psnr(pixels, parallelImage) > 30);
+		assertArrayEquals(getPixels(serialImage), getPixels(parallelImage));
+	}
+
+	@Test
+	public void lowerQualityIsSmallerAndWorse() throws Exception {
+		int[] pixels = createImage(200, 150);
+		byte[] high = encode(pixels, 200, 150, 95, false);
+		byte[] low = encode(pixels, 200, 150, 30, false);
+		assertTrue(low.length < high.length);
+		assertTrue(psnr(pixels, decode(low)) < psnr(pixels, decode(high)));
+		assertTrue(psnr(pixels, decode(low)) > 24);
+	}
+
+	@Test
+	public void singlePixelEncodes() throws Exception {
+		int[] pixels = {0xff336699};
+		for (boolean parallel : new boolean[]{false, true}) {
+			BufferedImage image = decode(encode(pixels, 1, 1, 90, parallel));
+			assertEquals(1, image.getWidth());
+			assertEquals(1, image.getHeight());
+			assertTrue(psnr(pixels, image) > 30);
+		}
+	}
+
+	@Test
+	public void wideStripEncodes() throws Exception {
+		int[] pixels = createImage(3000, 40);
+		for (boolean parallel : new boolean[]{false, true}) {
+			BufferedImage image = decode(encode(pixels, 3000, 40, 90, parallel));
+			assertEquals(3000, image.getWidth());
+			assertEquals(40, image.getHeight());
+			assertTrue(psnr(pixels, image) > 30);
+		}
+	}
+
+	@Test
+	public void tallStripEncodes() throws Exception {
+		int[] pixels = createImage(7, 2000);
+		BufferedImage image = decode(encode(pixels, 7, 2000, 90, true));
+		assertEquals(7, image.getWidth());
+		assertTrue(psnr(pixels, image) > 30);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsBadQuality() {
+		new JpegEncoder(101);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyImage() throws Exception {
+		new JpegEncoder(90).encode(new int[0], 0, 0, new ByteArrayOutputStream(),
+			null, 1);
+	}
+
+	private static byte[] encode(int[] pixels, int width, int height,
+								 int quality, boolean parallel) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JpegEncoder(quality).encode(pixels, width, height, out,
+			parallel ? sExecutor : null, parallel ? 4 : 1);
+		return out.toByteArray();
+	}
+
+	private static BufferedImage decode(byte[] jpeg) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		assertNotNull(image);
+		return image;
+	}
+
+	private static int[] getPixels(BufferedImage image) {
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+			image.getWidth());
+	}
+
+	private static int countRestartMarkers(byte[] jpeg) {
+		int count = 0;
+		for (int i = 0; i + 1 < jpeg.length; i++) {
+			if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xf8) == 0xd0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	static double psnr(int[] pixels, BufferedImage image) {
+		int[] decoded = getPixels(image);
+		double sum = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			for (int shift = 0; shift < 24; shift += 8) {
+				int d = (pixels[i] >> shift & 0xff) - (decoded[i] >> shift & 0xff);
+				sum += d * d;
+			}
+		}
+		double mse = sum / (pixels.length * 3);
+		return mse == 0 ? Double.POSITIVE_INFINITY
+			: 10 * Math.log10(255 * 255 / mse);
+	}
+
+	/**
+	 * Smooth gradients with mild noise, roughly like a photo.
+	 */
+	static int[] createImage(int width, int height) {
+		Random random = new Random(width * 7 + height);
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = clamp(128 + (int) (100 * Math.sin(x / 23.0)) + random.nextInt(7) - 3);
+				int g = clamp(y * 255 / height + random.nextInt(7) - 3);
+				int b = clamp(128 + (int) (90 * Math.cos((x + y) / 31.0)));
+				pixels[y * width + x] = 0xff000000 | r << 16 | g << 8 | b;
+			}
+		}
+		return pixels;
+	}
+
+	private static int clamp(int c) {
+		return Math.max(0, Math.min(255, c));
+	}
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegMetadataTest {
+
+	// offsets from the TIFF header of the fixture built by createExif
+	private static final int IFD0 = 8;
+	private static final int IFD0_COUNT = 6;
+	private static final int IFD0_NEXT = IFD0 + 2 + IFD0_COUNT * 12;
+	private static final int MAKE = IFD0_NEXT + 4;
+	private static final int EXIF_IFD = MAKE + 12;
+	private static final int GPS_IFD = EXIF_IFD + 30;
+	private static final int GPS_LATITUDE = GPS_IFD + 30;
+	private static final int IFD1 = GPS_LATITUDE + 24;
+	private static final int THUMBNAIL = IFD1 + 30;
+	private static final int THUMBNAIL_LENGTH = 16;
+	private static final int TIFF_LENGTH = THUMBNAIL + THUMBNAIL_LENGTH;
+	// marker, length and "Exif\0\0" precede the TIFF header
+	private static final int TIFF_START = 10;
+
+	@Test
+	public void readsExifAndIccUpToFrame() throws Exception {
+		byte[] exif = createExif(false);
+		List<byte[]> icc = createIccSegments(getSrgbProfile(), 1000);
+		byte[] xmp = createSegment(0xE1, "http://ns.adobe.com/xap/1.0/\0".getBytes("US-ASCII"));
+		JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(
+			createJpeg(exif, xmp, icc)));
+		assertNotNull(metadata);
+		assertTrue(metadata.hasExif());
+		assertTrue(metadata.hasIccProfile());
+		List<byte[]> segments = metadata.getSegments(4000, 3000, true);
+		// the xmp segment is left out
+		assertEquals(1 + icc.size(), segments.size());
+		assertEquals(exif.length, segments.get(0).length);
+		for (int i = 0; i < icc.size(); i++) {
+			assertArrayEquals(icc.get(i), segments.get(1 + i));
+		}
+	}
+
+	@Test
+	public void readsOrientation() throws Exception {
+		for (boolean littleEndian : new boolean[]{false, true}) {
+			byte[] exif = createExif(littleEndian);
+			assertEquals(90, read(exif).getOrientation());
+			new Tiff(exif, littleEndian).setShort(entry(IFD0, 2) + 8, 3);
+			assertEquals(180, read(exif).getOrientation());
+			// mirrored
+			new Tiff(exif, littleEndian).setShort(entry(IFD0, 2) + 8, 5);
+			assertEquals(0, read(exif).getOrientation());
+		}
+		assertEquals(0, JpegMetadata.read(new ByteArrayInputStream(
+			encodeJpeg(8, 8))).getOrientation());
+	}
+
+	@Test
+	public void nonJpegReadsAsNull() throws Exception {
+		assertNull(JpegMetadata.read(new ByteArrayInputStream(new byte[]{
+			(byte) 0x89, 'P', 'N', 'G'})));
+	}
+
+	@Test
+	public void jpegWithoutMetadataHasNoSegments() throws Exception {
+		JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(
+			encodeJpeg(8, 8)));
+		assertFalse(metadata.hasExif());
+		assertFalse(metadata.hasIccProfile());
+		assertTrue(metadata.getSegments(8, 8, false).isEmpty());
+	}
+
+	@Test
+	public void patchesBigEndianExif() throws Exception {
+		checkPatch(false);
+	}
+
+	@Test
+	public void patchesLittleEndianExif() throws Exception {
+		checkPatch(true);
+	}
+
+	private static void checkPatch(boolean littleEndian) throws IOException {
+		byte[] exif = createExif(littleEndian);
+		byte[] patched = readSegments(exif, 1200, 900, false).get(0);
+		assertEquals(exif.length, patched.length);
+		Tiff tiff = new Tiff(patched, littleEndian);
+		assertEquals(IFD0_COUNT, tiff.getShort(IFD0));
+		// width is a SHORT tag, length a LONG one
+		assertEquals(1200, tiff.getShort(entry(IFD0, 0) + 8));
+		assertEquals(900, tiff.getInt(entry(IFD0, 1) + 8));
+		assertEquals(1, tiff.getShort(entry(IFD0, 2) + 8));
+		// the make is untouched
+		assertArrayEquals(Arrays.copyOfRange(exif, TIFF_START + MAKE,
+			TIFF_START + MAKE + 12), Arrays.copyOfRange(patched,
+			TIFF_START + MAKE, TIFF_START + MAKE + 12));
+		assertEquals(1200, tiff.getInt(entry(EXIF_IFD, 0) + 8));
+		assertEquals(900, tiff.getShort(entry(EXIF_IFD, 1) + 8));
+		// still points at the gps IFD, which has no entries left
+		assertEquals(GPS_IFD, tiff.getInt(entry(IFD0, 5) + 8));
+		assertEquals(0, tiff.getShort(GPS_IFD));
+		assertZero(patched, GPS_IFD, GPS_LATITUDE + 24);
+		// the thumbnail IFD is unlinked and wiped with its data
+		assertEquals(0, tiff.getInt(IFD0_NEXT));
+		assertZero(patched, IFD1, TIFF_LENGTH);
+	}
+
+	@Test
+	public void dropsExifWhenSizeDoesNotFitItsTag() throws Exception {
+		// 70000 does not fit the SHORT width tag, so the Exif is dropped
+		// rather than left with the old width
+		assertTrue(readSegments(createExif(false), 70000, 10, false).isEmpty());
+	}
+
+	@Test
+	public void keepsLocationWhenAsked() throws Exception {
+		byte[] exif = createExif(true);
+		byte[] patched = readSegments(exif, 100, 50, true).get(0);
+		Tiff tiff = new Tiff(patched, true);
+		assertEquals(2, tiff.getShort(GPS_IFD));
+		assertArrayEquals(Arrays.copyOfRange(exif, TIFF_START + GPS_IFD,
+			TIFF_START + IFD1), Arrays.copyOfRange(patched,
+			TIFF_START + GPS_IFD, TIFF_START + IFD1));
+	}
+
+	@Test
+	public void dropsExifWithOffsetsOutsideSegment() throws Exception {
+		byte[] exif = createExif(false);
+		// point the Exif IFD past the end
+		new Tiff(exif, false).setInt(entry(IFD0, 4) + 8, 60000);
+		assertTrue(readSegments(exif, 10, 10, false).isEmpty());
+	}
+
+	@Test
+	public void splicesSegmentsAfterStartOfImage() throws Exception {
+		byte[] jpeg = encodeJpeg(64, 48);
+		List<byte[]> icc = createIccSegments(getSrgbProfile(), 60000);
+		byte[] exif = readSegments(createExif(false), 64, 48, false).get(0);
+		List<byte[]> segments = new ArrayList<byte[]>();
+		segments.add(exif);
+		segments.addAll(icc);
+
+		ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+		OutputStream out = JpegMetadata.splice(spliced, segments);
+		// a byte at a time through the start of image marker
+		out.write(jpeg[0]);
+		out.write(jpeg, 1, 1);
+		out.write(jpeg, 2, jpeg.length - 2);
+		out.close();
+
+		byte[] result = spliced.toByteArray();
+		assertEquals(jpeg.length + JpegMetadata.getSize(segments), result.length);
+		assertEquals(0xFF, result[0] & 0xFF);
+		assertEquals(0xD8, result[1] & 0xFF);
+		int position = 2;
+		for (byte[] segment : segments) {
+			assertArrayEquals(segment, Arrays.copyOfRange(result, position,
+				position + segment.length));
+			position += segment.length;
+		}
+		assertArrayEquals(Arrays.copyOfRange(jpeg, 2, jpeg.length),
+			Arrays.copyOfRange(result, position, result.length));
+
+		// decodes, and reads back the same metadata
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(result));
+		assertEquals(64, image.getWidth());
+		JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(
+			result));
+		assertTrue(metadata.hasExif());
+		assertEquals(segments.size(), metadata.getSegments(64, 48, false)
+			.size());
+	}
+
+	@Test(expected = IOException.class)
+	public void spliceRejectsNonJpeg() throws Exception {
+		OutputStream out = JpegMetadata.splice(new ByteArrayOutputStream(),
+			Collections.<byte[]>emptyList());
+		out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G'});
+	}
+
+	private static List<byte[]> readSegments(byte[] exif, int width,
+											 int height, boolean keepLocation) throws IOException {
+		return read(exif).getSegments(width, height, keepLocation);
+	}
+
+	private static JpegMetadata read(byte[] exif) throws IOException {
+		return JpegMetadata.read(new ByteArrayInputStream(createJpeg(exif,
+			null, Collections.<byte[]>emptyList())));
+	}
+
+	private static void assertZero(byte[] segment, int from, int to) {
+		for (int i = from; i < to; i++) {
+			assertEquals("byte " + i, 0, segment[TIFF_START + i]);
+		}
+	}
+
+	private static int entry(int ifd, int index) {
+		return ifd + 2 + index * 12;
+	}
+
+	/**
+	 * An APP1 Exif segment: IFD0 with width, length, orientation 6, make,
+	 * Exif and GPS pointers, an Exif IFD with pixel dimensions, a GPS IFD
+	 * with latitude and a thumbnail IFD1.
+	 */
+	static byte[] createExif(boolean littleEndian) {
+		byte[] segment = new byte[TIFF_START + TIFF_LENGTH];
+		segment[0] = (byte) 0xFF;
+		segment[1] = (byte) 0xE1;
+		segment[2] = (byte) ((segment.length - 2) >> 8);
+		segment[3] = (byte) (segment.length - 2);
+		System.arraycopy(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, segment, 4, 6);
+		Tiff tiff = new Tiff(segment, littleEndian);
+		segment[TIFF_START] = segment[TIFF_START + 1] = (byte) (littleEndian
+			? 'I' : 'M');
+		tiff.setShort(2, 42);
+		tiff.setInt(4, IFD0);
+
+		tiff.setShort(IFD0, IFD0_COUNT);
+		tiff.setEntry(entry(IFD0, 0), 0x0100, 3, 1, 4000);
+		tiff.setEntry(entry(IFD0, 1), 0x0101, 4, 1, 3000);
+		tiff.setEntry(entry(IFD0, 2), 0x0112, 3, 1, 6);
+		tiff.setEntry(entry(IFD0, 3), 0x010F, 2, 12, MAKE);
+		tiff.setEntry(entry(IFD0, 4), 0x8769, 4, 1, EXIF_IFD);
+		tiff.setEntry(entry(IFD0, 5), 0x8825, 4, 1, GPS_IFD);
+		tiff.setInt(IFD0_NEXT, IFD1);
+		byte[] make = {'K', 'y', 'o', 'C', 'a', 'm', 'e', 'r', 'a', ' ', '1', 0};
+		System.arraycopy(make, 0, segment, TIFF_START + MAKE, make.length);
+
+		tiff.setShort(EXIF_IFD, 2);
+		tiff.setEntry(entry(EXIF_IFD, 0), 0xA002, 4, 1, 4000);
+		tiff.setEntry(entry(EXIF_IFD, 1), 0xA003, 3, 1, 3000);
+
+		tiff.setShort(GPS_IFD, 2);
+		// 'N' fits into the value field
+		tiff.setEntry(entry(GPS_IFD, 0), 0x0001, 2, 2, 0);
+		segment[TIFF_START + entry(GPS_IFD, 0) + 8] = 'N';
+		tiff.setEntry(entry(GPS_IFD, 1), 0x0002, 5, 3, GPS_LATITUDE);
+		for (int i = 0; i < 24; i += 4) {
+			tiff.setInt(GPS_LATITUDE + i, i + 1);
+		}
+
+		tiff.setShort(IFD1, 2);
+		tiff.setEntry(entry(IFD1, 0), 0x0201, 4, 1, THUMBNAIL);
+		tiff.setEntry(entry(IFD1, 1), 0x0202, 4, 1, THUMBNAIL_LENGTH);
+		Arrays.fill(segment, TIFF_START + THUMBNAIL, segment.length, (byte) 0xAB);
+		return segment;
+	}
+
+	/**
+	 * Splits profile into APP2 ICC_PROFILE chunks of at most chunk bytes.
+	 */
+	static List<byte[]> createIccSegments(byte[] profile, int chunk)
+		throws IOException {
+		List<byte[]> segments = new ArrayList<byte[]>();
+		int count = (profile.length + chunk - 1) / chunk;
+		for (int i = 0; i < count; i++) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			data.write("ICC_PROFILE\0".getBytes("US-ASCII"));
+			data.write(i + 1);
+			data.write(count);
+			int off = i * chunk;
+			data.write(profile, off, Math.min(chunk, profile.length - off));
+			segments.add(createSegment(0xE2, data.toByteArray()));
+		}
+		return segments;
+	}
+
+	private static byte[] createSegment(int marker, byte[] data) {
+		byte[] segment = new byte[data.length + 4];
+		segment[0] = (byte) 0xFF;
+		segment[1] = (byte) marker;
+		segment[2] = (byte) ((data.length + 2) >> 8);
+		segment[3] = (byte) (data.length + 2);
+		System.arraycopy(data, 0, segment, 4, data.length);
+		return segment;
+	}
+
+	private static byte[] getSrgbProfile() {
+		return ICC_Profile.getInstance(ColorSpace.CS_sRGB).getData();
+	}
+
+	private static byte[] encodeJpeg(int width, int height) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JpegEncoder(80).encode(JpegEncoderTest.createImage(width, height),
+			width, height, out, null, 1);
+		return out.toByteArray();
+	}
+
+	/**
+	 * A small JPEG with the given segments after its start of image.
+	 */
+	private static byte[] createJpeg(byte[] exif, byte[] other,
+									 List<byte[]> icc) throws IOException {
+		byte[] jpeg = encodeJpeg(16, 16);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(jpeg, 0, 2);
+		if (other != null) {
+			out.write(other);
+		}
+		if (exif != null) {
+			out.write(exif);
+		}
+		for (byte[] segment : icc) {
+			out.write(segment);
+		}
+		out.write(jpeg, 2, jpeg.length - 2);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads and writes TIFF values of an Exif segment.
+	 */
+	private static final class Tiff {
+		private final byte[] mData;
+		private final boolean mLittleEndian;
+
+		Tiff(byte[] data, boolean littleEndian) {
+			mData = data;
+			mLittleEndian = littleEndian;
+		}
+
+		int getShort(int offset) {
+			return (int) get(offset, 2);
+		}
+
+		int getInt(int offset) {
+			return (int) get(offset, 4);
+		}
+
+		void setShort(int offset, int value) {
+			set(offset, 2, value);
+		}
+
+		void setInt(int offset, int value) {
+			set(offset, 4, value);
+		}
+
+		void setEntry(int entry, int tag, int type, int count, int value) {
+			setShort(entry, tag);
+			setShort(entry + 2, type);
+			setInt(entry + 4, count);
+			if (type == 3 && count == 1) {
+				setShort(entry + 8, value);
+			} else {
+				setInt(entry + 8, value);
+			}
+		}
+
+		private long get(int offset, int size) {
+			long value = 0;
+			for (int i = 0; i < size; i++) {
+				int b = mData[TIFF_START + offset + (mLittleEndian ? size - 1 - i
+					: i)] & 0xFF;
+				value = (value << 8) | b;
+			}
+			return value;
+		}
+
+		private void set(int offset, int size, int value) {
+			for (int i = 0; i < size; i++) {
+				mData[TIFF_START + offset + (mLittleEndian ? i : size - 1 - i)] =
+					(byte) (value >> (8 * i));
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MatrixMathTest {
+
+	private static final float EPSILON = 1e-4f;
+
+	@Test
+	public void rotationByRightAnglesIsExact() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, 90);
+		assertArrayEquals(new float[]{0, -1, 0, 1, 0, 0, 0, 0, 1}, m, 0);
+		MatrixMath.setRotate(m, 180);
+		assertArrayEquals(new float[]{-1, 0, 0, 0, -1, 0, 0, 0, 1}, m, 0);
+		MatrixMath.setRotate(m, -90);
+		assertArrayEquals(new float[]{0, 1, 0, -1, 0, 0, 0, 0, 1}, m, 0);
+	}
+
+	@Test
+	public void rotationAboutPointKeepsPoint() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, 33, 120, -45);
+		float[] p = {120, -45};
+		MatrixMath.mapPoints(m, p, p);
+		assertArrayEquals(new float[]{120, -45}, p, EPSILON);
+		float[] q = {130, -45};
+		MatrixMath.mapPoints(m, q, q);
+		assertEquals(120 + 10 * Math.cos(Math.toRadians(33)), q[0], EPSILON);
+		assertEquals(-45 + 10 * Math.sin(Math.toRadians(33)), q[1], EPSILON);
+	}
+
+	@Test
+	public void concatAppliesRightOperandFirst() {
+		float[] scale = MatrixMath.create();
+		MatrixMath.setScale(scale, 2, 3);
+		float[] translate = MatrixMath.create();
+		MatrixMath.postTranslate(translate, 10, 20);
+		float[] m = new float[9];
+		MatrixMath.concat(m, translate, scale);
+		float[] p = {1, 1};
+		MatrixMath.mapPoints(m, p, p);
+		assertArrayEquals(new float[]{12, 23}, p, 0);
+		// dst may be an operand
+		MatrixMath.concat(scale, scale, translate);
+		p = new float[]{1, 1};
+		MatrixMath.mapPoints(scale, p, p);
+		assertArrayEquals(new float[]{22, 63}, p, 0);
+	}
+
+	@Test
+	public void postOperationsApplyAfterMatrix() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, 90);
+		MatrixMath.postScale(m, 2, 2);
+		MatrixMath.postTranslate(m, 5, 0);
+		float[] p = {1, 0};
+		MatrixMath.mapPoints(m, p, p);
+		assertArrayEquals(new float[]{5, 2}, p, 0);
+	}
+
+	@Test
+	public void invertRoundTrips() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, 27, 3, 4);
+		MatrixMath.postScale(m, 1.5f, 0.75f);
+		MatrixMath.postTranslate(m, -8, 11);
+		float[] inverse = new float[9];
+		assertTrue(MatrixMath.invert(m, inverse));
+		float[] product = new float[9];
+		MatrixMath.concat(product, m, inverse);
+		assertArrayEquals(MatrixMath.create(), product, EPSILON);
+		assertTrue(MatrixMath.isAffine(inverse));
+	}
+
+	@Test
+	public void singularMatrixDoesNotInvert() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setScale(m, 0, 1);
+		float[] dst = {9, 9, 9, 9, 9, 9, 9, 9, 9};
+		assertFalse(MatrixMath.invert(m, dst));
+		assertArrayEquals(new float[]{9, 9, 9, 9, 9, 9, 9, 9, 9}, dst, 0);
+	}
+
+	@Test
+	public void perspectiveDividesByW() {
+		float[] m = {1, 0, 0, 0, 1, 0, 0.5f, 0, 1};
+		float[] p = {2, 4};
+		MatrixMath.mapPoints(m, p, p);
+		assertArrayEquals(new float[]{1, 2}, p, EPSILON);
+		assertFalse(MatrixMath.rectStaysRect(m));
+	}
+
+	@Test
+	public void rectToRectFills() {
+		float[] m = MatrixMath.create();
+		assertTrue(MatrixMath.setRectToRect(m, new float[]{0, 0, 100, 50},
+			new float[]{10, 10, 110, 210}, false));
+		float[] r = new float[4];
+		assertTrue(MatrixMath.mapRect(m, r, new float[]{0, 0, 100, 50}));
+		assertArrayEquals(new float[]{10, 10, 110, 210}, r, EPSILON);
+	}
+
+	@Test
+	public void rectToRectCenters() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setRectToRect(m, new float[]{0, 0, 100, 50},
+			new float[]{10, 10, 110, 210}, true);
+		float[] r = new float[4];
+		MatrixMath.mapRect(m, r, new float[]{0, 0, 100, 50});
+		assertArrayEquals(new float[]{10, 85, 110, 135}, r, EPSILON);
+		// taller source, centered horizontally
+		MatrixMath.setRectToRect(m, new float[]{0, 0, 50, 100},
+			new float[]{0, 0, 200, 100}, true);
+		MatrixMath.mapRect(m, r, new float[]{0, 0, 50, 100});
+		assertArrayEquals(new float[]{75, 0, 125, 100}, r, EPSILON);
+	}
+
+	@Test
+	public void rectToRectFromEmptyResets() {
+		float[] m = {2, 0, 3, 0, 2, 3, 0, 0, 1};
+		assertFalse(MatrixMath.setRectToRect(m, new float[]{5, 5, 5, 10},
+			new float[]{0, 0, 10, 10}, false));
+		assertArrayEquals(MatrixMath.create(), m, 0);
+	}
+
+	@Test
+	public void mapRectOfRotationIsBounds() {
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, 45);
+		float[] r = {0, 0, 10, 10};
+		assertFalse(MatrixMath.mapRect(m, r, r));
+		float half = (float) (10 / Math.sqrt(2));
+		assertArrayEquals(new float[]{-half, 0, half, 2 * half}, r, EPSILON);
+		MatrixMath.setRotate(m, 90);
+		r = new float[]{0, 0, 10, 20};
+		assertTrue(MatrixMath.mapRect(m, r, r));
+		assertArrayEquals(new float[]{-20, 0, 0, 10}, r, 0);
+	}
+}
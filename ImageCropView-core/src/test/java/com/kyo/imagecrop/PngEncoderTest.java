@@ -0,0 +1,108 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class PngEncoderTest {
+
+	@Test
+	public void rgbRoundTripsThroughImageIO() throws Exception {
+		checkRoundTrip(37, 23, false, 5);
+	}
+
+	@Test
+	public void rgbaRoundTripsThroughImageIO() throws Exception {
+		checkRoundTrip(41, 19, true, 7);
+	}
+
+	@Test
+	public void singleRowBatchesRoundTrip() throws Exception {
+		checkRoundTrip(1, 13, true, 1);
+		checkRoundTrip(29, 1, false, 1);
+	}
+
+	@Test
+	public void wholeImageInOneBatchRoundTrips() throws Exception {
+		checkRoundTrip(300, 201, true, 201);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void finishFailsOnMissingRows() throws Exception {
+		PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), 4, 4,
+			false, Deflater.DEFAULT_COMPRESSION);
+		encoder.writeRows(new int[16], 0, 4, 3);
+		encoder.finish();
+	}
+
+	private static void checkRoundTrip(int width, int height, boolean alpha,
+									   int batch) throws IOException {
+		int[] pixels = createPixels(width, height);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PngEncoder encoder = new PngEncoder(out, width, height, alpha,
+			Deflater.DEFAULT_COMPRESSION);
+		for (int top = 0; top < height; top += batch) {
+			encoder.writeRows(pixels, top * width, width,
+				Math.min(batch, height - top));
+		}
+		encoder.finish();
+
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+			out.toByteArray()));
+		assertNotNull(image);
+		assertEquals(width, image.getWidth());
+		assertEquals(height, image.getHeight());
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int expected = pixels[y * width + x];
+				if (!alpha) {
+					expected |= 0xff000000;
+				}
+				assertEquals("pixel " + x + "," + y, expected, image.getRGB(x, y));
+			}
+		}
+	}
+
+	/**
+	 * Noise over gradients, so that every filter type gets picked somewhere.
+	 */
+	static int[] createPixels(int width, int height) {
+		Random random = new Random(width * 31 + height);
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int a = (x * 7 + y * 3) & 0xff;
+				int r = (x * 255 / width) & 0xff;
+				int g = (y * 255 / height) & 0xff;
+				int b = (x + y) % 3 == 0 ? random.nextInt(256) : (x ^ y) & 0xff;
+				pixels[y * width + x] = a << 24 | r << 16 | g << 8 | b;
+			}
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResamplerTest {
+
+	private static final int[] KERNELS = {Resampler.KERNEL_BOX,
+		Resampler.KERNEL_BILINEAR, Resampler.KERNEL_LANCZOS};
+
+	@Test
+	public void sameSizeCopiesSource() throws Exception {
+		int[] src = opaque(PngEncoderTest.createPixels(53, 31));
+		for (int kernel : KERNELS) {
+			int[] out = new int[src.length];
+			new Resampler(53, 31, 0, 0, 53, 31, 53, 31, kernel)
+				.resample(src, out, null, 1);
+			assertArrayEquals("kernel " + kernel, src, out);
+		}
+	}
+
+	@Test
+	public void sameSizeSubRectCopiesSource() throws Exception {
+		int[] src = opaque(PngEncoderTest.createPixels(40, 30));
+		for (int kernel : KERNELS) {
+			int[] out = new int[20 * 10];
+			new Resampler(40, 30, 7, 11, 27, 21, 20, 10, kernel)
+				.resample(src, out, null, 1);
+			for (int y = 0; y < 10; y++) {
+				for (int x = 0; x < 20; x++) {
+					assertEquals("kernel " + kernel, src[(y + 11) * 40 + x + 7],
+						out[y * 20 + x]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void downscaledCheckerboardIsMidGrey() throws Exception {
+		int[] src = new int[64 * 64];
+		for (int y = 0; y < 64; y++) {
+			for (int x = 0; x < 64; x++) {
+				src[y * 64 + x] = ((x + y) & 1) == 0 ? 0xffffffff : 0xff000000;
+			}
+		}
+		for (int kernel : KERNELS) {
+			int[] out = new int[16 * 16];
+			new Resampler(64, 64, 0, 0, 64, 64, 16, 16, kernel)
+				.resample(src, out, null, 1);
+			for (int pixel : out) {
+				assertEquals(0xff, pixel >>> 24);
+				for (int shift = 0; shift < 24; shift += 8) {
+					int c = pixel >> shift & 0xff;
+					assertTrue("kernel " + kernel + " gave " + c,
+						c >= 126 && c <= 129);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void upscaledConstantStaysConstant() throws Exception {
+		int[] src = new int[5 * 4];
+		Arrays.fill(src, 0xff336699);
+		for (int kernel : KERNELS) {
+			int[] out = new int[23 * 17];
+			new Resampler(5, 4, 0, 0, 5, 4, 23, 17, kernel)
+				.resample(src, out, null, 1);
+			for (int pixel : out) {
+				assertEquals("kernel " + kernel, 0xff336699, pixel);
+			}
+		}
+	}
+
+	@Test
+	public void upscaledRampStaysLinear() throws Exception {
+		// 8 per pixel, sampled at pixel centers
+		int[] src = ramp(32, 4);
+		int[] out = new int[128 * 4];
+		new Resampler(32, 4, 0, 0, 32, 4, 128, 4, Resampler.KERNEL_BILINEAR)
+			.resample(src, out, null, 1);
+		for (int x = 4; x < 124; x++) {
+			float sourceX = (x + 0.5f) / 4 - 0.5f;
+			assertEquals("x " + x, sourceX * 8, out[x] & 0xff, 1);
+			if (x > 4) {
+				assertTrue((out[x] & 0xff) >= (out[x - 1] & 0xff));
+			}
+		}
+	}
+
+	@Test
+	public void fractionalBoundsSampleTheRightSpot() throws Exception {
+		int[] src = ramp(32, 4);
+		int[] out = new int[10 * 2];
+		// 10 output pixels over 5.25 .. 25.25, every second source pixel
+		new Resampler(32, 4, 5.25f, 1, 25.25f, 3, 10, 2,
+			Resampler.KERNEL_BILINEAR).resample(src, out, null, 1);
+		for (int x = 0; x < 10; x++) {
+			float sourceX = 5.25f + (x + 0.5f) * 2 - 0.5f;
+			assertEquals("x " + x, sourceX * 8, out[x] & 0xff, 1);
+			assertEquals(out[x], out[10 + x]);
+		}
+	}
+
+	@Test
+	public void parallelMatchesSerial() throws Exception {
+		int[] src = opaque(PngEncoderTest.createPixels(301, 257));
+		int[] serial = new int[97 * 131];
+		int[] parallel = new int[97 * 131];
+		Resampler resampler = new Resampler(301, 257, 3.5f, 2, 290, 250.5f,
+			97, 131, Resampler.KERNEL_LANCZOS);
+		resampler.resample(src, serial, null, 1);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			resampler.resample(src, parallel, executor, 4);
+		} finally {
+			executor.shutdown();
+		}
+		assertArrayEquals(serial, parallel);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyBounds() {
+		new Resampler(10, 10, 5, 0, 5, 10, 4, 4, Resampler.KERNEL_BOX);
+	}
+
+	private static int[] ramp(int width, int height) {
+		int[] src = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int c = x * 8;
+				src[y * width + x] = 0xff000000 | c << 16 | c << 8 | c;
+			}
+		}
+		return src;
+	}
+
+	private static int[] opaque(int[] pixels) {
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] |= 0xff000000;
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class YuvConverterTest {
+
+	@Test
+	public void convertsKnownColors() {
+		assertEquals(0xFF808080, YuvConverter.toArgb(128, 0, 0));
+		assertEquals(0xFF000000, YuvConverter.toArgb(0, 0, 0));
+		assertEquals(0xFFFFFFFF, YuvConverter.toArgb(255, 0, 0));
+		// JFIF red, green and blue
+		assertClose(0xFFFF0000, YuvConverter.toArgb(76, 85 - 128, 255 - 128));
+		assertClose(0xFF00FF00, YuvConverter.toArgb(150, 44 - 128, 21 - 128));
+		assertClose(0xFF0000FF, YuvConverter.toArgb(29, 255 - 128, 107 - 128));
+	}
+
+	@Test
+	public void identityKeepsLuma() {
+		YuvFrame frame = createFrame(37, 21);
+		int[] out = new int[37 * 21];
+		YuvConverter.convert(frame, MatrixMath.create(), out, 37, 21);
+		for (int y = 0; y < 21; y++) {
+			for (int x = 0; x < 37; x++) {
+				// neutral chroma, so every channel is the luma
+				assertEquals(0xFF000000 | luma(x, y) * 0x010101, out[y * 37 + x]);
+			}
+		}
+	}
+
+	@Test
+	public void outsideFrameIsWhite() {
+		YuvFrame frame = createFrame(10, 10);
+		float[] m = MatrixMath.create();
+		MatrixMath.postTranslate(m, 5, 0);
+		int[] out = new int[10 * 10];
+		YuvConverter.convert(frame, m, out, 10, 10);
+		assertEquals(0xFFFFFFFF, out[4]);
+		assertEquals(0xFF000000 | luma(0, 0) * 0x010101, out[5]);
+	}
+
+	@Test
+	public void rotationMapsPixels() {
+		YuvFrame frame = createFrame(8, 6);
+		// 90 degrees clockwise: frame (x, y) lands on output (5 - y, x)
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, 90);
+		MatrixMath.postTranslate(m, 6, 0);
+		int[] out = new int[6 * 8];
+		YuvConverter.convert(frame, m, out, 6, 8);
+		for (int y = 0; y < 6; y++) {
+			for (int x = 0; x < 8; x++) {
+				assertEquals(luma(x, y), out[x * 6 + 5 - y] & 0xFF);
+			}
+		}
+	}
+
+	@Test
+	public void planarMatchesInterleaved() {
+		int width = 9;
+		int height = 7;
+		byte[] nv21 = createNV21(width, height);
+		int cw = (width + 1) / 2;
+		int ch = (height + 1) / 2;
+		byte[] u = new byte[cw * ch];
+		byte[] v = new byte[cw * ch];
+		for (int i = 0; i < cw * ch; i++) {
+			v[i] = nv21[width * height + i * 2];
+			u[i] = nv21[width * height + i * 2 + 1];
+		}
+		YuvFrame planar = new YuvFrame(width, height, ByteBuffer.wrap(nv21), width,
+			ByteBuffer.wrap(u), ByteBuffer.wrap(v), cw, 1, 0);
+		YuvFrame interleaved = YuvFrame.fromNV21(nv21, width, height, 0);
+		float[] m = MatrixMath.create();
+		MatrixMath.setScale(m, 1.7f, 1.3f);
+		int[] a = new int[15 * 9];
+		int[] b = new int[15 * 9];
+		YuvConverter.convert(planar, m, a, 15, 9);
+		YuvConverter.convert(interleaved, m, b, 15, 9);
+		assertArrayEquals(a, b);
+	}
+
+	@Test
+	public void parallelMatchesSerial() throws Exception {
+		YuvFrame frame = createFrame(640, 480);
+		float[] m = MatrixMath.create();
+		MatrixMath.setRotate(m, 30, 320, 240);
+		int[] serial = new int[500 * 300];
+		int[] parallel = new int[500 * 300];
+		YuvConverter.convert(frame, m, serial, 500, 300);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			YuvConverter.convert(frame, m, parallel, 500, 300, executor, 4);
+		} finally {
+			executor.shutdown();
+		}
+		assertArrayEquals(serial, parallel);
+	}
+
+	@Test
+	public void convertsFromThreadOfBusyPool() throws Exception {
+		final YuvFrame frame = createFrame(320, 240);
+		final int[] out = new int[320 * 240];
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			// the only thread of the pool waits for strips queued behind it
+			Future<Void> done = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					YuvConverter.convert(frame, MatrixMath.create(), out, 320,
+						240, executor, 4);
+					return null;
+				}
+			});
+			done.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(0xFF000000 | luma(319, 239) * 0x010101, out[out.length - 1]);
+	}
+
+	@Test
+	public void convertsWhenExecutorRejects() throws Exception {
+		YuvFrame frame = createFrame(64, 100);
+		int[] out = new int[64 * 100];
+		YuvConverter.convert(frame, MatrixMath.create(), out, 64, 100,
+			new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					throw new RejectedExecutionException();
+				}
+			}, 4);
+		int[] serial = new int[64 * 100];
+		YuvConverter.convert(frame, MatrixMath.create(), serial, 64, 100);
+		assertArrayEquals(serial, out);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsSingularTransform() {
+		YuvConverter.convert(createFrame(4, 4), new float[9], new int[16], 4, 4);
+	}
+
+	private static void assertClose(int expected, int actual) {
+		for (int shift = 0; shift < 32; shift += 8) {
+			assertEquals(expected >>> shift & 0xFF, actual >>> shift & 0xFF, 2);
+		}
+	}
+
+	private static int luma(int x, int y) {
+		return (x * 7 + y * 13) & 0xFF;
+	}
+
+	/**
+	 * NV21 with a luma pattern and neutral chroma.
+	 */
+	private static YuvFrame createFrame(int width, int height) {
+		byte[] data = createNV21(width, height);
+		int chroma = ((width + 1) / 2) * ((height + 1) / 2) * 2;
+		for (int i = 0; i < chroma; i++) {
+			data[width * height + i] = (byte) 128;
+		}
+		return YuvFrame.fromNV21(data, width, height, 0);
+	}
+
+	private static byte[] createNV21(int width, int height) {
+		int chroma = ((width + 1) / 2) * ((height + 1) / 2) * 2;
+		byte[] data = new byte[width * height + chroma];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				data[y * width + x] = (byte) luma(x, y);
+			}
+		}
+		for (int i = 0; i < chroma; i++) {
+			data[width * height + i] = (byte) (i * 37);
+		}
+		return data;
+	}
+}
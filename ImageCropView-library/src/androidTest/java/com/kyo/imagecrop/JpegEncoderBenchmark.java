@@ -0,0 +1,129 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Times {@link JpegEncoder}, serial and in parallel, against
+ * {@code Bitmap.compress} at equal file size: the encoder runs at the
+ * quality whose output comes closest to that of compress without
+ * exceeding it. Results go to logcat, e.g.
+ * {@code adb logcat -s JpegEncoderBenchmark}.
+ */
+public class JpegEncoderBenchmark extends AndroidTestCase {
+
+	private static final String LOGTAG = "JpegEncoderBenchmark";
+	private static final int RUNS = 3;
+	private static final int QUALITY = 90;
+
+	public void testTwelveMegapixels() throws Exception {
+		benchmark(4000, 3000);
+	}
+
+	public void testScreenSize() throws Exception {
+		benchmark(1080, 1920);
+	}
+
+	private void benchmark(int width, int height) throws Exception {
+		int[] pixels = createPattern(width, height);
+		Bitmap bitmap = Bitmap.createBitmap(pixels, width, height,
+			Bitmap.Config.ARGB_8888);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(width * height);
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			out.reset();
+			long start = System.nanoTime();
+			bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		report("compress q" + QUALITY, width, height, best, out.size());
+		bitmap.recycle();
+
+		int quality = matchQuality(pixels, width, height, out.size());
+		JpegEncoder encoder = new JpegEncoder(quality);
+		best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			out.reset();
+			long start = System.nanoTime();
+			encoder.encode(pixels, width, height, out, null, 1);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		report("serial q" + quality, width, height, best, out.size());
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(cores);
+		try {
+			best = Long.MAX_VALUE;
+			for (int i = 0; i < RUNS; i++) {
+				out.reset();
+				long start = System.nanoTime();
+				encoder.encode(pixels, width, height, out, executor, cores);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			report("parallel q" + quality + " x" + cores, width, height, best,
+				out.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Binary searches the highest quality whose output fits maxBytes.
+	 */
+	private static int matchQuality(int[] pixels, int width, int height,
+									int maxBytes) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(maxBytes);
+		int low = 1;
+		int high = 100;
+		while (low < high) {
+			int mid = (low + high + 1) / 2;
+			out.reset();
+			new JpegEncoder(mid).encode(pixels, width, height, out, null, 1);
+			if (out.size() <= maxBytes) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private static void report(String name, int width, int height, long nanos,
+							   int bytes) {
+		Log.i(LOGTAG, name + " " + width + "x" + height + ": " + nanos / 1000000
+			+ " ms, " + bytes + " bytes");
+	}
+
+	private static int[] createPattern(int width, int height) {
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = 128 + (int) (100 * Math.sin(x / 37.0));
+				int b = 128 + (int) (90 * Math.cos((x + y) / 53.0));
+				pixels[y * width + x] = 0xff000000 | r << 16
+					| (y * 255 / height) << 8 | b;
+			}
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Times {@link Resampler} against filtered Canvas drawing, the path crops
+ * take without a resample kernel. Results go to logcat, e.g.
+ * {@code adb logcat -s ResamplerBenchmark}.
+ */
+public class ResamplerBenchmark extends AndroidTestCase {
+
+	private static final String LOGTAG = "ResamplerBenchmark";
+	private static final int RUNS = 5;
+
+	public void testReduceByFour() throws Exception {
+		benchmark(4000, 3000, 1000, 750);
+	}
+
+	public void testReduceSlightly() throws Exception {
+		benchmark(4000, 3000, 3000, 2250);
+	}
+
+	public void testEnlarge() throws Exception {
+		benchmark(1000, 750, 2000, 1500);
+	}
+
+	private void benchmark(final int srcWidth, int srcHeight, int width,
+						   int height) throws Exception {
+		final Bitmap src = createPattern(srcWidth, srcHeight);
+		Bitmap dst = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(dst);
+		Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		Matrix matrix = new Matrix();
+		matrix.setScale((float) width / srcWidth, (float) height / srcHeight);
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			long start = System.nanoTime();
+			canvas.drawBitmap(src, matrix, paint);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		report("canvas", srcWidth, srcHeight, width, height, best);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(cores);
+		int[] out = new int[width * height];
+		RowSource source = new RowSource() {
+			@Override
+			public void readRows(int top, int rows, int[] dst) {
+				src.getPixels(dst, 0, srcWidth, 0, top, srcWidth, rows);
+			}
+		};
+		try {
+			int[] kernels = {Resampler.KERNEL_BOX, Resampler.KERNEL_BILINEAR,
+				Resampler.KERNEL_LANCZOS};
+			String[] names = {"box", "bilinear", "lanczos"};
+			for (int k = 0; k < kernels.length; k++) {
+				Resampler resampler = new Resampler(srcWidth, srcHeight, 0, 0,
+					srcWidth, srcHeight, width, height, kernels[k]);
+				best = Long.MAX_VALUE;
+				for (int i = 0; i < RUNS; i++) {
+					long start = System.nanoTime();
+					resampler.resample(source, new PackedTarget(out, width),
+						executor, cores);
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				report(names[k], srcWidth, srcHeight, width, height, best);
+			}
+		} finally {
+			executor.shutdown();
+			src.recycle();
+			dst.recycle();
+		}
+	}
+
+	private static void report(String name, int srcWidth, int srcHeight,
+							   int width, int height, long nanos) {
+		Log.i(LOGTAG, name + " " + srcWidth + "x" + srcHeight + " -> " + width
+			+ "x" + height + ": " + nanos / 1000000 + " ms");
+	}
+
+	private static Bitmap createPattern(int width, int height) {
+		int[] row = new int[width];
+		Bitmap bitmap = Bitmap.createBitmap(width, height,
+			Bitmap.Config.ARGB_8888);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				row[x] = 0xff000000 | (x & 0xff) << 16 | (y & 0xff) << 8
+					| ((x ^ y) & 0xff);
+			}
+			bitmap.setPixels(row, 0, width, 0, y, width, 1);
+		}
+		return bitmap;
+	}
+
+	private static class PackedTarget implements Resampler.RowTarget {
+		private final int[] mOut;
+		private final int mWidth;
+
+		PackedTarget(int[] out, int width) {
+			mOut = out;
+			mWidth = width;
+		}
+
+		@Override
+		public void writeRows(int top, int rows, int[] src) {
+			System.arraycopy(src, 0, mOut, top * mWidth, rows * mWidth);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs many crops on a bounded pool of background threads. Jobs are queued
+ * in submission order; a worker only starts decoding once the bitmaps of the
+ * crops already running leave room in the crop share of
+ * {@link CropMemoryBudget}, so memory stays bounded however many jobs are
+ * queued. Results stream to the listener as jobs complete.
+ */
+public class CropBatch {
+
+	private static final String LOGTAG = "CropBatch";
+	// rough heap a worker needs for a full resolution crop
+	private static final long BYTES_PER_WORKER = 32 * 1024 * 1024;
+
+	public static class Job {
+		public final Uri source;
+		public final CropSpec crop;
+		public final OutputSpec output;
+
+		public Job(Uri source, CropSpec crop, OutputSpec output) {
+			this.source = source;
+			this.crop = crop;
+			this.output = output;
+		}
+	}
+
+	public interface Listener {
+		void onJobFinished(Job job, Uri result);
+
+		void onJobFailed(Job job, Throwable error);
+	}
+
+	private final Context mContext;
+	private final ThreadPoolExecutor mExecutor;
+	private Listener mListener;
+	private Executor mListenerExecutor;
+	private final AtomicInteger mFinishedCount = new AtomicInteger();
+	private final AtomicInteger mFailedCount = new AtomicInteger();
+	private long mStartTime;
+	private long mLastFinishTime;
+
+	public CropBatch(Context context) {
+		this(context, getDefaultPoolSize());
+	}
+
+	public CropBatch(Context context, int poolSize) {
+		mContext = context.getApplicationContext();
+		mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 1,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new WorkerFactory(LOGTAG));
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * One worker per core, fewer on small heaps.
+	 */
+	public static int getDefaultPoolSize() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		long bytes = Runtime.getRuntime().maxMemory() / BYTES_PER_WORKER;
+		return (int) Math.max(1, Math.min(cores, bytes));
+	}
+
+	/**
+	 * Sets the listener notified of every job, on executor.
+	 */
+	public void setListener(Listener listener, Executor executor) {
+		synchronized (this) {
+			mListener = listener;
+			mListenerExecutor = executor;
+		}
+	}
+
+	/**
+	 * Queues job, cancelling the returned future removes it from the queue
+	 * if it has not started yet.
+	 */
+	public CropFuture<Uri> submit(final Job job) {
+		final CropFuture<Uri> future = new CropFuture<Uri>();
+		Listener listener;
+		Executor executor;
+		synchronized (this) {
+			listener = mListener;
+			executor = mListenerExecutor;
+		}
+		if (listener != null) {
+			future.addCallback(new ListenerCallback(job, listener), executor);
+		}
+		final JobTask task = new JobTask(job, future);
+		future.setCancelAction(new Runnable() {
+			@Override
+			public void run() {
+				mExecutor.remove(task);
+			}
+		});
+		mExecutor.execute(task);
+		return future;
+	}
+
+	public List<CropFuture<Uri>> submitAll(List<Job> jobs) {
+		List<CropFuture<Uri>> futures = new ArrayList<CropFuture<Uri>>(
+			jobs.size());
+		for (Job job : jobs) {
+			futures.add(submit(job));
+		}
+		return futures;
+	}
+
+	private void runJob(Job job, CropFuture<Uri> future) {
+		if (future.isDone()) {
+			return;
+		}
+		synchronized (this) {
+			if (mStartTime == 0) {
+				mStartTime = System.nanoTime();
+			}
+		}
+		try {
+			Uri result = CropEngine.crop(mContext, job.source, job.crop,
+				job.output);
+			mFinishedCount.incrementAndGet();
+			future.set(result);
+		} catch (IOException e) {
+			Log.w(LOGTAG, "failed to crop " + job.source, e);
+			mFailedCount.incrementAndGet();
+			future.setException(e);
+		} catch (RuntimeException e) {
+			Log.w(LOGTAG, "failed to crop " + job.source, e);
+			mFailedCount.incrementAndGet();
+			future.setException(e);
+		} finally {
+			synchronized (this) {
+				mLastFinishTime = System.nanoTime();
+			}
+		}
+	}
+
+	public int getFinishedCount() {
+		return mFinishedCount.get();
+	}
+
+	public int getFailedCount() {
+		return mFailedCount.get();
+	}
+
+	/**
+	 * Jobs not yet started.
+	 */
+	public int getQueuedCount() {
+		return mExecutor.getQueue().size();
+	}
+
+	/**
+	 * Finished images per second between the start of the first job and the
+	 * end of the last one, 0 before any job finished.
+	 */
+	public float getThroughput() {
+		long elapsed;
+		synchronized (this) {
+			if (mStartTime == 0) {
+				return 0;
+			}
+			elapsed = mLastFinishTime - mStartTime;
+		}
+		if (elapsed <= 0) {
+			return 0;
+		}
+		return mFinishedCount.get() * 1e9f / elapsed;
+	}
+
+	/**
+	 * Lets queued jobs finish but accepts no new ones.
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Cancels the futures of queued jobs, running ones are finished.
+	 */
+	public void shutdownNow() {
+		for (Runnable r : mExecutor.shutdownNow()) {
+			((JobTask) r).mFuture.cancel(false);
+		}
+	}
+
+	private class JobTask implements Runnable {
+		final Job mJob;
+		final CropFuture<Uri> mFuture;
+
+		JobTask(Job job, CropFuture<Uri> future) {
+			mJob = job;
+			mFuture = future;
+		}
+
+		@Override
+		public void run() {
+			runJob(mJob, mFuture);
+		}
+	}
+
+	private static class ListenerCallback implements CropFuture.Callback<Uri> {
+		private final Job mJob;
+		private final Listener mListener;
+
+		ListenerCallback(Job job, Listener listener) {
+			mJob = job;
+			mListener = listener;
+		}
+
+		@Override
+		public void onSuccess(Uri result) {
+			mListener.onJobFinished(mJob, result);
+		}
+
+		@Override
+		public void onFailure(Throwable t) {
+			mListener.onJobFailed(mJob, t);
+		}
+	}
+
+	/**
+	 * Creates background priority threads.
+	 */
+	static class WorkerFactory implements ThreadFactory {
+		private final String mName;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		WorkerFactory(String name) {
+			mName = name;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, mName + " #" + mCount.incrementAndGet());
+		}
+	}
+}
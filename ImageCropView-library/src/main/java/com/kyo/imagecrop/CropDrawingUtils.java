@@ -24,13 +24,55 @@ import android.graphics.RectF;
 import android.graphics.Region;
 import android.graphics.drawable.Drawable;
 
+/**
+ * Crop drawing helpers. The static ones take all drawing objects as
+ * arguments and may be used from any thread. The paint* instance ones draw
+ * with default paints and scratch objects owned by the instance, so that
+ * nothing is allocated per frame; use one instance per drawing thread, e.g.
+ * one per view.
+ */
 public class CropDrawingUtils {
 
+	// serves the deprecated static methods, guarded by itself
+	private static final CropDrawingUtils sDefault = new CropDrawingUtils();
+
+	private final Paint mRuleOfThirdPaint = new Paint();
+	private final Paint mCropRectPaint = new Paint();
+	private final Paint mShadePaint = new Paint();
+	private final RectF mTempRect = new RectF();
+	private final RectF mFrameRect1 = new RectF();
+	private final RectF mFrameRect2 = new RectF();
+	private final Path mFramePath = new Path();
+
+	public CropDrawingUtils() {
+		mRuleOfThirdPaint.setStyle(Paint.Style.STROKE);
+		mRuleOfThirdPaint.setColor(Color.argb(128, 255, 255, 255));
+		mRuleOfThirdPaint.setStrokeWidth(2);
+
+		mCropRectPaint.setStyle(Paint.Style.STROKE);
+		mCropRectPaint.setColor(Color.parseColor("#57f401"));
+		mCropRectPaint.setStrokeWidth(3);
+
+		mShadePaint.setStyle(Paint.Style.FILL);
+		mShadePaint.setColor(Color.BLACK & 0x88000000);
+	}
+
+	/**
+	 * @deprecated use {@link #paintRuleOfThird(Canvas, RectF)} of an
+	 *             instance, or pass a paint
+	 */
+	@Deprecated
 	public static void drawRuleOfThird(Canvas canvas, RectF bounds) {
-		Paint p = new Paint();
-		p.setStyle(Paint.Style.STROKE);
-		p.setColor(Color.argb(128, 255, 255, 255));
-		p.setStrokeWidth(2);
+		synchronized (sDefault) {
+			sDefault.paintRuleOfThird(canvas, bounds);
+		}
+	}
+
+	public void paintRuleOfThird(Canvas canvas, RectF bounds) {
+		drawRuleOfThird(canvas, mRuleOfThirdPaint, bounds);
+	}
+
+	public static void drawRuleOfThird(Canvas canvas, Paint p, RectF bounds) {
 		float stepX = bounds.width() / 3.0f;
 		float stepY = bounds.height() / 3.0f;
 		float x = bounds.left + stepX;
@@ -45,26 +87,40 @@ public class CropDrawingUtils {
 		}
 	}
 
+	/**
+	 * @deprecated use {@link #paintCropRect(Canvas, RectF)} of an instance,
+	 *             or pass a paint
+	 */
+	@Deprecated
 	public static void drawCropRect(Canvas canvas, RectF bounds) {
-		Paint p = new Paint();
-		p.setStyle(Paint.Style.STROKE);
-		p.setColor(Color.parseColor("#57f401"));
-		p.setStrokeWidth(3);
-		canvas.drawRect(bounds, p);
+		synchronized (sDefault) {
+			sDefault.paintCropRect(canvas, bounds);
+		}
+	}
+
+	public void paintCropRect(Canvas canvas, RectF bounds) {
+		canvas.drawRect(bounds, mCropRectPaint);
 	}
 
 	public static void drawCropRect(Canvas canvas, Paint paint, RectF bounds) {
 		canvas.drawRect(bounds, paint);
 	}
 
+	/**
+	 * @deprecated use {@link #paintShade(Canvas, RectF)} of an instance
+	 */
+	@Deprecated
 	public static void drawShade(Canvas canvas, RectF bounds) {
+		synchronized (sDefault) {
+			sDefault.paintShade(canvas, bounds);
+		}
+	}
+
+	public void paintShade(Canvas canvas, RectF bounds) {
 		int w = canvas.getWidth();
 		int h = canvas.getHeight();
-		Paint p = new Paint();
-		p.setStyle(Paint.Style.FILL);
-		p.setColor(Color.BLACK & 0x88000000);
-
-		RectF r = new RectF();
+		Paint p = mShadePaint;
+		RectF r = mTempRect;
 		r.set(0, 0, w, bounds.top);
 		canvas.drawRect(r, p);
 		r.set(0, bounds.top, bounds.left, h);
@@ -87,25 +143,43 @@ public class CropDrawingUtils {
 		indicator.draw(canvas);
 	}
 
+	/**
+	 * @deprecated use
+	 *             {@link #paintWallpaperSelectionFrame(Canvas, RectF, float, float, Paint, Paint)}
+	 *             of an instance
+	 */
+	@Deprecated
 	public static void drawWallpaperSelectionFrame(Canvas canvas,
 			RectF cropBounds, float spotX, float spotY, Paint p,
 			Paint shadowPaint) {
+		synchronized (sDefault) {
+			sDefault.paintWallpaperSelectionFrame(canvas, cropBounds, spotX,
+					spotY, p, shadowPaint);
+		}
+	}
+
+	public void paintWallpaperSelectionFrame(Canvas canvas,
+			RectF cropBounds, float spotX, float spotY, Paint p,
+			Paint shadowPaint) {
 		float sx = cropBounds.width() * spotX;
 		float sy = cropBounds.height() * spotY;
 		float cx = cropBounds.centerX();
 		float cy = cropBounds.centerY();
-		RectF r1 = new RectF(cx - sx / 2, cy - sy / 2, cx + sx / 2, cy + sy / 2);
+		RectF r1 = mFrameRect1;
+		r1.set(cx - sx / 2, cy - sy / 2, cx + sx / 2, cy + sy / 2);
 		float temp = sx;
 		sx = sy;
 		sy = temp;
-		RectF r2 = new RectF(cx - sx / 2, cy - sy / 2, cx + sx / 2, cy + sy / 2);
+		RectF r2 = mFrameRect2;
+		r2.set(cx - sx / 2, cy - sy / 2, cx + sx / 2, cy + sy / 2);
 		canvas.save();
 		canvas.clipRect(cropBounds);
 		canvas.clipRect(r1, Region.Op.DIFFERENCE);
 		canvas.clipRect(r2, Region.Op.DIFFERENCE);
 		canvas.drawPaint(shadowPaint);
 		canvas.restore();
-		Path path = new Path();
+		Path path = mFramePath;
+		path.rewind();
 		path.moveTo(r1.left, r1.top);
 		path.lineTo(r1.right, r1.top);
 		path.moveTo(r1.left, r1.top);
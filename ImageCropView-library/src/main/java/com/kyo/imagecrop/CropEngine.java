@@ -0,0 +1,1596 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Crops full resolution images without a view: decodes only the region a
+ * {@link CropSpec} covers, composites it into the output size and writes
+ * it. Runs on the calling thread and takes its bitmap memory from
+ * {@link CropMemoryBudget}, waiting while other crops hold it.
+ * <p/>
+ * Several renditions of one crop share a single decode: the region is
+ * composited at the size of the largest rendition, each smaller one is
+ * scaled down from the next larger, and all of them are encoded in
+ * parallel. Outputs with a {@link OutputSpec#setBandHeight band height}
+ * are rendered and encoded band by band instead.
+ */
+public final class CropEngine {
+
+	private static final String LOGTAG = "CropEngine";
+	private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+	private static ThreadPoolExecutor sEncodeExecutor;
+	private static volatile PlanObserver sPlanObserver;
+	private static volatile CropResultCache sResultCache;
+
+	/**
+	 * Sees the decode plan of every crop, e.g. to monitor
+	 * {@link CropPlan#getOverheadRatio()}, once per band for banded outputs.
+	 * Called on the cropping thread.
+	 */
+	public interface PlanObserver {
+		void onPlan(CropSource source, CropPlan plan);
+	}
+
+	private CropEngine() {
+	}
+
+	public static void setPlanObserver(PlanObserver observer) {
+		sPlanObserver = observer;
+	}
+
+	/**
+	 * Reuses earlier results of the same crop from cache, null to always
+	 * crop, the default.
+	 */
+	public static void setResultCache(CropResultCache cache) {
+		sResultCache = cache;
+	}
+
+	private static synchronized ThreadPoolExecutor getEncodeExecutor() {
+		if (sEncodeExecutor == null) {
+			int cores = Runtime.getRuntime().availableProcessors();
+			sEncodeExecutor = new ThreadPoolExecutor(cores, cores, 1,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new CropBatch.WorkerFactory("CropEncoder"));
+			sEncodeExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sEncodeExecutor;
+	}
+
+	/**
+	 * Crops source and writes the result as described by output.
+	 *
+	 * @return uri the result was written to
+	 * @throws IOException if the source cannot be decoded or the output
+	 *                     cannot be written
+	 */
+	public static Uri crop(Context context, Uri source, CropSpec spec,
+						   OutputSpec output) throws IOException {
+		return crop(context, CropSource.fromUri(source), spec, output);
+	}
+
+	public static Uri crop(Context context, CropSource source, CropSpec spec,
+						   OutputSpec output) throws IOException {
+		return crop(context, source, spec, Collections.singletonList(output))
+			.get(0);
+	}
+
+	public static List<Uri> crop(Context context, Uri source, CropSpec spec,
+								 List<OutputSpec> outputs) throws IOException {
+		return crop(context, CropSource.fromUri(source), spec, outputs);
+	}
+
+	/**
+	 * Crops source once and writes one rendition per output.
+	 *
+	 * @return uris the renditions were written to, in the order of outputs
+	 * @throws IOException if the source cannot be decoded or any output
+	 *                     cannot be written
+	 */
+	public static List<Uri> crop(Context context, CropSource source,
+								 CropSpec spec, List<OutputSpec> outputs) throws IOException {
+		boolean success = false;
+		try {
+			CropResultCache cache = sResultCache;
+			List<Uri> results = cache == null ? cropUncached(context, source,
+				spec, outputs) : cropCached(context, cache, source, spec, outputs);
+			success = true;
+			return results;
+		} finally {
+			if (!success) {
+				for (OutputSpec output : outputs) {
+					cancelSink(output);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the outputs found in cache to their sinks and crops the rest,
+	 * storing their results.
+	 */
+	private static List<Uri> cropCached(Context context, CropResultCache cache,
+										CropSource source, CropSpec spec, List<OutputSpec> outputs)
+		throws IOException {
+		int count = outputs.size();
+		String[] keys = getCacheKeys(context, source, spec, outputs);
+		Uri[] results = new Uri[count];
+		List<OutputSpec> misses = new ArrayList<OutputSpec>();
+		List<Integer> missIndices = new ArrayList<Integer>();
+		// sinks resolved here, the caller only cancels those of outputs
+		List<OutputSpec> resolved = new ArrayList<OutputSpec>();
+		boolean success = false;
+		try {
+			for (int i = 0; i < count; i++) {
+				CropResultCache.Entry cached = keys[i] == null ? null
+					: cache.open(keys[i]);
+				if (cached == null) {
+					OutputSpec output = outputs.get(i);
+					// resolve the sink now, storeResult needs its encode report
+					if (output.getSink() == null) {
+						output = output.withSink(getSink(context, output));
+						resolved.add(output);
+					}
+					misses.add(output);
+					missIndices.add(i);
+					continue;
+				}
+				try {
+					results[i] = writeCached(context, cached, outputs.get(i));
+				} finally {
+					CropUtils.closeSilently(cached);
+				}
+			}
+			if (!misses.isEmpty()) {
+				List<Uri> cropped = cropUncached(context, source, spec, misses);
+				for (int i = 0; i < misses.size(); i++) {
+					int index = missIndices.get(i);
+					results[index] = cropped.get(i);
+					if (keys[index] != null) {
+						storeResult(cache, keys[index], misses.get(i),
+							cropped.get(i));
+					}
+				}
+			}
+			success = true;
+			return Arrays.asList(results);
+		} finally {
+			if (!success) {
+				for (OutputSpec output : resolved) {
+					cancelSink(output);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the cache key of each output, null where the source or the
+	 * crop cannot be fingerprinted
+	 */
+	private static String[] getCacheKeys(Context context, CropSource source,
+										 CropSpec spec, List<OutputSpec> outputs) throws IOException {
+		String[] keys = new String[outputs.size()];
+		String fingerprint = source.getFingerprint(context);
+		if (fingerprint == null) {
+			return keys;
+		}
+		RectF bounds = getSourceBounds(context, source, spec);
+		int orientation = spec.needsOrientation() ? ImageLoader
+			.getImageOrientation(context, source) : 0;
+		Matrix matrix = new Matrix();
+		float[] values = new float[9];
+		for (int i = 0; i < keys.length; i++) {
+			OutputSpec output = outputs.get(i);
+			if (spec.getSourceToOutputMatrix(bounds, orientation,
+				output.getWidth(), output.getHeight(), matrix)) {
+				matrix.getValues(values);
+				keys[i] = CropResultCache.getKey(fingerprint, values, output);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Copies a cached result to the sink of output. Without a sink this is
+	 * a new file in {@link CropOutputStore} rather than the cache entry
+	 * itself: the entry starts with a header, and either directory evicts
+	 * its files on its own while the caller may still read or release the
+	 * output. Both stay within their size caps.
+	 */
+	private static Uri writeCached(Context context, CropResultCache.Entry cached,
+								   OutputSpec output) throws IOException {
+		CropSink sink = getSink(context, output);
+		SinkOutputStream out = new SinkOutputStream(context, sink);
+		boolean finished = false;
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			int n;
+			while ((n = cached.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			out.finish();
+			finished = true;
+		} finally {
+			if (!finished) {
+				out.abort();
+			}
+		}
+		// nothing was encoded
+		sink.setEncodeReport(cached.getQuality(), 0);
+		return sink.getUri();
+	}
+
+	/**
+	 * Stores the result of output if it can be read back, i.e. from memory
+	 * or a file. A failure only costs the next crop a miss.
+	 */
+	private static void storeResult(CropResultCache cache, String key,
+									OutputSpec output, Uri result) {
+		CropSink sink = output.getSink();
+		int quality = sink.getQuality();
+		try {
+			if (sink instanceof CropSink.MemorySink) {
+				cache.put(key, new ByteArrayInputStream(
+					((CropSink.MemorySink) sink).toByteArray()), quality);
+			} else if (result != null && "file".equals(result.getScheme())
+				&& result.getPath() != null) {
+				cache.put(key, new File(result.getPath()), quality);
+			}
+		} catch (IOException e) {
+			Log.w(LOGTAG, "cannot cache result " + key, e);
+		}
+	}
+
+	private static List<Uri> cropUncached(Context context, CropSource source,
+										  CropSpec spec, List<OutputSpec> outputs) throws IOException {
+		List<OutputSpec> renditions = new ArrayList<OutputSpec>();
+		for (OutputSpec output : outputs) {
+			if (output.getBandHeight() == 0) {
+				renditions.add(output);
+			}
+		}
+		if (renditions.size() == outputs.size()) {
+			return cropRenditions(context, source, spec, outputs);
+		}
+		List<Uri> rendered = renditions.isEmpty() ? null
+			: cropRenditions(context, source, spec, renditions);
+		List<Uri> results = new ArrayList<Uri>(outputs.size());
+		int next = 0;
+		for (OutputSpec output : outputs) {
+			if (output.getBandHeight() == 0) {
+				results.add(rendered.get(next++));
+			} else {
+				results.add(cropBanded(context, source, spec, output));
+			}
+		}
+		return results;
+	}
+
+	private static List<Uri> cropRenditions(Context context, CropSource source,
+											CropSpec spec, final List<OutputSpec> outputs) throws IOException {
+		int count = outputs.size();
+		if (count == 0) {
+			throw new IllegalArgumentException("no outputs");
+		}
+		// largest first, each rendition is scaled down from the one before
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				return CropUtils.compare(getArea(outputs.get(rhs)),
+					getArea(outputs.get(lhs)));
+			}
+		});
+
+		RectF bounds = getSourceBounds(context, source, spec);
+		int orientation = spec.needsOrientation() ? ImageLoader
+			.getImageOrientation(context, source) : 0;
+
+		Matrix[] matrices = new Matrix[count];
+		for (int i = 0; i < count; i++) {
+			OutputSpec output = outputs.get(order[i]);
+			matrices[i] = new Matrix();
+			if (!spec.getSourceToOutputMatrix(bounds, orientation,
+				output.getWidth(), output.getHeight(), matrices[i])) {
+				throw new IOException("cannot find crop for " + source);
+			}
+		}
+		OutputSpec largest = outputs.get(order[0]);
+		int width = largest.getWidth();
+		int height = largest.getHeight();
+		YuvFrame frame = source.getYuvFrame();
+		Rect region = null;
+		int sampleSize = 1;
+		long decodedPixels;
+		if (frame == null) {
+			CropPlan plan = plan(source, bounds, matrices[0], width, height);
+			region = new Rect(plan.left, plan.top, plan.right, plan.bottom);
+			sampleSize = plan.sampleSize;
+			decodedPixels = plan.getDecodedPixels();
+		} else {
+			// converted straight into the largest rendition
+			decodedPixels = (long) width * height;
+		}
+
+		JpegMetadata metadata = readMetadata(context, source, outputs);
+		CropMemoryBudget budget = CropMemoryBudget.getInstance();
+		long bytes = estimateBytes(decodedPixels, outputs);
+		try {
+			budget.acquireCrop(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+				"interrupted while waiting for memory budget");
+		}
+		Bitmap[] bitmaps = new Bitmap[count];
+		@SuppressWarnings("unchecked")
+		Future<Uri>[] encodes = new Future[count];
+		Uri[] results = new Uri[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				OutputSpec output = outputs.get(order[i]);
+				if (i == 0 && frame != null) {
+					bitmaps[i] = renderYuv(frame, matrices[i], width, height);
+				} else if (i == 0) {
+					bitmaps[i] = render(context, source, region, sampleSize,
+						matrices[i], width, height, output.getResampleKernel());
+				} else {
+					bitmaps[i] = downscale(bitmaps[i - 1], matrices[i - 1],
+						output.getWidth(), output.getHeight(), matrices[i],
+						output.getResampleKernel());
+				}
+				if (i < count - 1) {
+					encodes[i] = getEncodeExecutor().submit(
+						new EncodeTask(context, bitmaps[i], output, metadata));
+				} else {
+					// the last and smallest one is encoded on this thread
+					results[order[i]] = write(context, bitmaps[i], output,
+						metadata);
+				}
+			}
+			for (int i = 0; i < count - 1; i++) {
+				results[order[i]] = getEncodeResult(encodes[i]);
+			}
+		} finally {
+			// encoders may still read the bitmaps after a failure
+			for (Future<Uri> encode : encodes) {
+				awaitQuietly(encode);
+			}
+			for (Bitmap bitmap : bitmaps) {
+				if (bitmap != null) {
+					bitmap.recycle();
+				}
+			}
+			budget.releaseCrop(bytes);
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Renders output band by band and streams the bands through
+	 * {@link PngEncoder} into its sink, so that only one band of the output
+	 * and the source region under it are in memory at a time.
+	 */
+	private static Uri cropBanded(Context context, CropSource source,
+								  CropSpec spec, OutputSpec output) throws IOException {
+		if (!"png".equals(output.getFormat())) {
+			throw new IOException("banded output needs png, not "
+				+ output.getFormat());
+		}
+		RectF bounds = getSourceBounds(context, source, spec);
+		int orientation = spec.needsOrientation() ? ImageLoader
+			.getImageOrientation(context, source) : 0;
+		int width = output.getWidth();
+		int height = output.getHeight();
+		Matrix matrix = new Matrix();
+		if (!spec.getSourceToOutputMatrix(bounds, orientation, width, height,
+			matrix)) {
+			throw new IOException("cannot find crop for " + source);
+		}
+		int bandHeight = Math.min(output.getBandHeight(), height);
+		int bands = (height + bandHeight - 1) / bandHeight;
+		YuvFrame frame = source.getYuvFrame();
+		Matrix bandMatrix = new Matrix();
+		float[] values = new float[9];
+		CropPlan[] plans = new CropPlan[bands];
+		long decodedPixels = 0;
+		if (frame == null) {
+			boolean covered = false;
+			for (int i = 0; i < bands; i++) {
+				int top = i * bandHeight;
+				bandMatrix.set(matrix);
+				bandMatrix.postTranslate(0, -top);
+				bandMatrix.getValues(values);
+				// null for bands outside the source, they stay white
+				plans[i] = CropPlanner.plan(Math.round(bounds.width()),
+					Math.round(bounds.height()), values, width,
+					Math.min(bandHeight, height - top));
+				if (plans[i] != null) {
+					// the observer sees what is actually decoded, band by band
+					notifyPlan(source, plans[i]);
+					decodedPixels = Math.max(decodedPixels,
+						plans[i].getDecodedPixels());
+					covered = true;
+				}
+			}
+			if (!covered) {
+				throw new IOException("crop does not cover " + source);
+			}
+		}
+		long bandPixels = (long) width * bandHeight;
+		// the band's pixels, plus its bitmap and decoded region if any
+		long bytes = (frame == null ? decodedPixels + 2 * bandPixels
+			: bandPixels) * 4;
+
+		CropMemoryBudget budget = CropMemoryBudget.getInstance();
+		try {
+			budget.acquireCrop(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+				"interrupted while waiting for memory budget");
+		}
+		RegionSource regionSource = null;
+		Bitmap bandBitmap = null;
+		try {
+			int[] pixels = new int[(int) bandPixels];
+			if (frame == null) {
+				regionSource = RegionSource.open(context, source);
+				bandBitmap = Bitmap.createBitmap(width, bandHeight,
+					Bitmap.Config.ARGB_8888);
+			}
+			CropSink sink = getSink(context, output);
+			SinkOutputStream out = new SinkOutputStream(context, sink);
+			PngEncoder encoder = null;
+			boolean finished = false;
+			try {
+				encoder = new PngEncoder(out, width, height, false,
+					Deflater.DEFAULT_COMPRESSION);
+				for (int i = 0; i < bands; i++) {
+					int top = i * bandHeight;
+					int rows = Math.min(bandHeight, height - top);
+					bandMatrix.set(matrix);
+					bandMatrix.postTranslate(0, -top);
+					if (frame != null) {
+						bandMatrix.getValues(values);
+						ThreadPoolExecutor executor = getEncodeExecutor();
+						YuvConverter.convert(frame, values, pixels, width, rows,
+							executor, executor.getMaximumPoolSize());
+					} else {
+						bandBitmap.eraseColor(Color.WHITE);
+						if (plans[i] != null) {
+							Rect region = new Rect(plans[i].left, plans[i].top,
+								plans[i].right, plans[i].bottom);
+							Bitmap cropBitmap = regionSource.decode(region,
+								plans[i].sampleSize);
+							try {
+								drawRegion(bandBitmap, cropBitmap, region,
+									bandMatrix);
+							} finally {
+								cropBitmap.recycle();
+							}
+						}
+						bandBitmap.getPixels(pixels, 0, width, 0, 0, width, rows);
+					}
+					encoder.writeRows(pixels, 0, width, rows);
+					if (output.getMaxBytes() > 0
+						&& out.getCount() > output.getMaxBytes()) {
+						throw new IOException("output does not fit in "
+							+ output.getMaxBytes() + " bytes");
+					}
+				}
+				encoder.finish();
+				out.finish();
+				finished = true;
+			} finally {
+				if (!finished) {
+					if (encoder != null) {
+						encoder.end();
+					}
+					out.abort();
+				}
+			}
+			sink.setEncodeReport(output.getQuality(), 1);
+			return sink.getUri();
+		} finally {
+			if (regionSource != null) {
+				regionSource.close();
+			}
+			if (bandBitmap != null) {
+				bandBitmap.recycle();
+			}
+			budget.releaseCrop(bytes);
+		}
+	}
+
+	/**
+	 * Receives the outputs of {@link #cropRegions} on the encoding thread,
+	 * as soon as each one is written.
+	 */
+	public interface RegionListener {
+		void onRegionCropped(int index, Uri result);
+
+		void onRegionFailed(int index, Throwable error);
+	}
+
+	/**
+	 * Crops several regions out of the same source, e.g. faces or receipts.
+	 * One region decoder serves all crops; regions whose union decodes
+	 * fewer pixels than decoding them one by one are merged and their
+	 * pixels shared, and merged regions are decoded top to bottom.
+	 *
+	 * @param specs   one spec per crop
+	 * @param outputs output of the spec at the same index
+	 * @return uris in the order of specs, null for crops that failed
+	 * @throws IOException if the source cannot be opened at all
+	 */
+	public static List<Uri> cropRegions(Context context, Uri source,
+										List<CropSpec> specs, List<OutputSpec> outputs,
+										RegionListener listener) throws IOException {
+		return cropRegions(context, CropSource.fromUri(source), specs, outputs,
+			listener);
+	}
+
+	public static List<Uri> cropRegions(Context context, CropSource source,
+										List<CropSpec> specs, List<OutputSpec> outputs,
+										RegionListener listener) throws IOException {
+		int count = specs.size();
+		if (count != outputs.size()) {
+			throw new IllegalArgumentException("one output per spec expected");
+		}
+		RectF bounds = null;
+		int orientation = -1;
+		List<RegionGroup> groups = new ArrayList<RegionGroup>();
+		for (int i = 0; i < count; i++) {
+			CropSpec spec = specs.get(i);
+			OutputSpec output = outputs.get(i);
+			if (bounds == null) {
+				bounds = getSourceBounds(context, source, spec);
+			}
+			if (orientation < 0 && spec.needsOrientation()) {
+				orientation = ImageLoader.getImageOrientation(context, source);
+			}
+			RegionTarget target = new RegionTarget(i, output);
+			CropPlan plan;
+			try {
+				if (!spec.getSourceToOutputMatrix(bounds, Math.max(0, orientation),
+					output.getWidth(), output.getHeight(), target.matrix)) {
+					throw new IOException("cannot find crop for " + source);
+				}
+				plan = plan(source, bounds, target.matrix, output.getWidth(),
+					output.getHeight());
+			} catch (IOException e) {
+				cancelSink(output);
+				notifyFailed(listener, i, e);
+				continue;
+			}
+			groups.add(new RegionGroup(new Rect(plan.left, plan.top,
+				plan.right, plan.bottom), plan.sampleSize, target));
+		}
+		JpegMetadata metadata = readMetadata(context, source, outputs);
+		for (RegionGroup group : groups) {
+			for (RegionTarget target : group.targets) {
+				target.metadata = metadata;
+			}
+		}
+		YuvFrame frame = source.getYuvFrame();
+		if (frame == null) {
+			mergeRegionGroups(groups);
+		}
+		Collections.sort(groups, new Comparator<RegionGroup>() {
+			@Override
+			public int compare(RegionGroup lhs, RegionGroup rhs) {
+				if (lhs.region.top != rhs.region.top) {
+					return lhs.region.top - rhs.region.top;
+				}
+				return lhs.region.left - rhs.region.left;
+			}
+		});
+
+		Uri[] results = new Uri[count];
+		List<Future<Uri>> encodes = new ArrayList<Future<Uri>>();
+		if (frame != null) {
+			for (RegionGroup group : groups) {
+				decodeRegionGroup(context, null, frame, group, listener,
+					encodes);
+			}
+		} else if (!groups.isEmpty()) {
+			RegionSource regionSource = RegionSource.open(context, source);
+			try {
+				for (RegionGroup group : groups) {
+					decodeRegionGroup(context, regionSource, null, group,
+						listener, encodes);
+				}
+			} finally {
+				regionSource.close();
+			}
+		}
+		for (RegionGroup group : groups) {
+			for (RegionTarget target : group.targets) {
+				if (target.encode != null) {
+					try {
+						results[target.index] = getEncodeResult(target.encode);
+					} catch (IOException e) {
+						// already reported by the encoder
+					} catch (RuntimeException e) {
+						// already reported by the encoder
+					}
+				}
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Merges groups as long as one decode of the union is no more pixels
+	 * than decoding both, at the finer of their sample sizes.
+	 */
+	private static void mergeRegionGroups(List<RegionGroup> groups) {
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i = 0; i < groups.size() && !merged; i++) {
+				for (int j = i + 1; j < groups.size() && !merged; j++) {
+					RegionGroup a = groups.get(i);
+					RegionGroup b = groups.get(j);
+					Rect union = new Rect(a.region);
+					union.union(b.region);
+					int sampleSize = Math.min(a.sampleSize, b.sampleSize);
+					if (getDecodedPixels(union, sampleSize) <= a.getDecodedPixels()
+						+ b.getDecodedPixels()) {
+						a.region.set(union);
+						a.sampleSize = sampleSize;
+						a.targets.addAll(b.targets);
+						groups.remove(j);
+						merged = true;
+					}
+				}
+			}
+		}
+	}
+
+	private static long getDecodedPixels(Rect region, int sampleSize) {
+		return (long) (region.width() / sampleSize)
+			* (region.height() / sampleSize);
+	}
+
+	/**
+	 * Decodes the region of group from regionSource, or converts each
+	 * crop straight from frame if not null.
+	 */
+	private static void decodeRegionGroup(Context context,
+										  RegionSource regionSource, YuvFrame frame,
+										  RegionGroup group, RegionListener listener,
+										  List<Future<Uri>> encodes) {
+		final CropMemoryBudget budget = CropMemoryBudget.getInstance();
+		long outputBytes = 0;
+		for (RegionTarget target : group.targets) {
+			outputBytes += getArea(target.output) * 4;
+		}
+		final long bytes = group.getDecodedPixels() * 4 + outputBytes;
+		try {
+			budget.acquireCrop(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (RegionTarget target : group.targets) {
+				cancelSink(target.output);
+				notifyFailed(listener, target.index, new InterruptedIOException(
+					"interrupted while waiting for memory budget"));
+			}
+			return;
+		}
+		// the last encoder of the group gives its memory back
+		Runnable release = new Runnable() {
+			@Override
+			public void run() {
+				budget.releaseCrop(bytes);
+			}
+		};
+		AtomicInteger pending = new AtomicInteger(group.targets.size());
+		Bitmap regionBitmap = null;
+		try {
+			if (frame == null) {
+				regionBitmap = regionSource.decode(group.region,
+					group.sampleSize);
+			}
+			for (RegionTarget target : group.targets) {
+				int width = target.output.getWidth();
+				int height = target.output.getHeight();
+				Bitmap bitmap = frame != null ? renderYuv(frame, target.matrix,
+					width, height) : composite(regionBitmap, group.region,
+					target.matrix, width, height);
+				target.encode = getEncodeExecutor().submit(new RegionEncodeTask(
+					context, bitmap, target, listener, pending, release));
+			}
+		} catch (IOException e) {
+			failRemaining(group, listener, e, pending, release);
+		} catch (RuntimeException e) {
+			failRemaining(group, listener, e, pending, release);
+		} finally {
+			if (regionBitmap != null) {
+				regionBitmap.recycle();
+			}
+		}
+	}
+
+	private static void failRemaining(RegionGroup group,
+									  RegionListener listener, Throwable error,
+									  AtomicInteger pending, Runnable release) {
+		for (RegionTarget target : group.targets) {
+			if (target.encode == null) {
+				cancelSink(target.output);
+				notifyFailed(listener, target.index, error);
+				if (pending.decrementAndGet() == 0) {
+					release.run();
+				}
+			}
+		}
+	}
+
+	private static void notifyFailed(RegionListener listener, int index,
+									 Throwable error) {
+		Log.w(LOGTAG, "failed to crop region " + index, error);
+		if (listener != null) {
+			listener.onRegionFailed(index, error);
+		}
+	}
+
+	private static class RegionTarget {
+		final int index;
+		final OutputSpec output;
+		final Matrix matrix = new Matrix();
+		JpegMetadata metadata;
+		Future<Uri> encode;
+
+		RegionTarget(int index, OutputSpec output) {
+			this.index = index;
+			this.output = output;
+		}
+	}
+
+	private static class RegionGroup {
+		final Rect region;
+		int sampleSize;
+		final List<RegionTarget> targets = new ArrayList<RegionTarget>();
+
+		RegionGroup(Rect region, int sampleSize, RegionTarget target) {
+			this.region = region;
+			this.sampleSize = sampleSize;
+			targets.add(target);
+		}
+
+		long getDecodedPixels() {
+			return CropEngine.getDecodedPixels(region, sampleSize);
+		}
+	}
+
+	private static class RegionEncodeTask implements Callable<Uri> {
+		private final Context mContext;
+		private final Bitmap mBitmap;
+		private final RegionTarget mTarget;
+		private final RegionListener mListener;
+		private final AtomicInteger mPending;
+		private final Runnable mRelease;
+
+		RegionEncodeTask(Context context, Bitmap bitmap, RegionTarget target,
+						 RegionListener listener, AtomicInteger pending,
+						 Runnable release) {
+			mContext = context;
+			mBitmap = bitmap;
+			mTarget = target;
+			mListener = listener;
+			mPending = pending;
+			mRelease = release;
+		}
+
+		@Override
+		public Uri call() throws IOException {
+			try {
+				Uri result = write(mContext, mBitmap, mTarget.output,
+					mTarget.metadata);
+				if (mListener != null) {
+					mListener.onRegionCropped(mTarget.index, result);
+				}
+				return result;
+			} catch (IOException e) {
+				cancelSink(mTarget.output);
+				notifyFailed(mListener, mTarget.index, e);
+				throw e;
+			} catch (RuntimeException e) {
+				cancelSink(mTarget.output);
+				notifyFailed(mListener, mTarget.index, e);
+				throw e;
+			} finally {
+				mBitmap.recycle();
+				if (mPending.decrementAndGet() == 0) {
+					mRelease.run();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Plans the decode with {@link CropPlanner} and reports it to the plan
+	 * observer.
+	 */
+	private static CropPlan plan(CropSource source, RectF bounds,
+								 Matrix sourceToOutput, int width, int height) throws IOException {
+		float[] values = new float[9];
+		sourceToOutput.getValues(values);
+		CropPlan plan = CropPlanner.plan(Math.round(bounds.width()),
+			Math.round(bounds.height()), values, width, height);
+		if (plan == null) {
+			throw new IOException("crop does not cover " + source);
+		}
+		notifyPlan(source, plan);
+		return plan;
+	}
+
+	private static void notifyPlan(CropSource source, CropPlan plan) {
+		PlanObserver observer = sPlanObserver;
+		if (observer != null) {
+			observer.onPlan(source, plan);
+		}
+	}
+
+	private static RectF getSourceBounds(Context context, CropSource source,
+										 CropSpec spec) throws IOException {
+		RectF bounds = spec.getKnownBounds();
+		if (bounds == null) {
+			Rect r = ImageLoader.loadBitmapBounds(context, source);
+			if (r.width() <= 0 || r.height() <= 0) {
+				throw new IOException("cannot read bounds of " + source);
+			}
+			bounds = new RectF(r);
+		}
+		return bounds;
+	}
+
+	private static long getArea(OutputSpec output) {
+		return (long) output.getWidth() * output.getHeight();
+	}
+
+	private static Uri getEncodeResult(Future<Uri> encode) throws IOException {
+		try {
+			return encode.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while encoding");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("failed to encode", cause);
+		}
+	}
+
+	private static void awaitQuietly(Future<Uri> encode) {
+		if (encode == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				encode.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class EncodeTask implements Callable<Uri> {
+		private final Context mContext;
+		private final Bitmap mBitmap;
+		private final OutputSpec mOutput;
+		private final JpegMetadata mMetadata;
+
+		EncodeTask(Context context, Bitmap bitmap, OutputSpec output,
+				   JpegMetadata metadata) {
+			mContext = context;
+			mBitmap = bitmap;
+			mOutput = output;
+			mMetadata = metadata;
+		}
+
+		@Override
+		public Uri call() throws IOException {
+			return write(mContext, mBitmap, mOutput, mMetadata);
+		}
+	}
+
+	/**
+	 * The decoded pixels plus all renditions, and a quarter of the largest
+	 * for the intermediate halving steps.
+	 */
+	static long estimateBytes(long decodedPixels, List<OutputSpec> outputs) {
+		long bytes = decodedPixels * 4;
+		long largest = 0;
+		for (OutputSpec output : outputs) {
+			long size = getArea(output) * 4;
+			bytes += size;
+			largest = Math.max(largest, size);
+		}
+		return bytes + largest / 4;
+	}
+
+	/**
+	 * Converts the part of frame the output covers, on the encoder pool.
+	 */
+	private static Bitmap renderYuv(YuvFrame frame, Matrix sourceToOutput,
+									int width, int height) throws InterruptedIOException {
+		float[] values = new float[9];
+		sourceToOutput.getValues(values);
+		int[] pixels = new int[width * height];
+		ThreadPoolExecutor executor = getEncodeExecutor();
+		YuvConverter.convert(frame, values, pixels, width, height, executor,
+			executor.getMaximumPoolSize());
+		Bitmap bitmap = Bitmap.createBitmap(width, height,
+			Bitmap.Config.ARGB_8888);
+		bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+		return bitmap;
+	}
+
+	private static Bitmap render(Context context, CropSource source, Rect region,
+								 int sampleSize, Matrix sourceToOutput,
+								 int width, int height, int kernel) throws IOException {
+		Bitmap cropBitmap;
+		RegionSource regionSource = RegionSource.open(context, source);
+		try {
+			cropBitmap = regionSource.decode(region, sampleSize);
+		} finally {
+			regionSource.close();
+		}
+		try {
+			if (kernel != 0) {
+				Bitmap bitmap = resample(cropBitmap, getDrawMatrix(cropBitmap,
+					region, sourceToOutput), width, height, kernel);
+				if (bitmap != null) {
+					return bitmap;
+				}
+			}
+			return composite(cropBitmap, region, sourceToOutput, width, height);
+		} finally {
+			cropBitmap.recycle();
+		}
+	}
+
+	/**
+	 * Draws the decoded region into a new bitmap of width x height.
+	 */
+	private static Bitmap composite(Bitmap cropBitmap, Rect region,
+									Matrix sourceToOutput, int width, int height) {
+		Bitmap canvasBitmap = Bitmap.createBitmap(width, height,
+			Bitmap.Config.ARGB_8888);
+		canvasBitmap.eraseColor(Color.WHITE);
+		drawRegion(canvasBitmap, cropBitmap, region, sourceToOutput);
+		return canvasBitmap;
+	}
+
+	/**
+	 * Draws cropBitmap, decoded from region of the source, into target.
+	 */
+	private static void drawRegion(Bitmap target, Bitmap cropBitmap,
+								   Rect region, Matrix sourceToOutput) {
+		Paint paint = new Paint();
+		paint.setAntiAlias(true);
+		paint.setFilterBitmap(true);
+		new Canvas(target).drawBitmap(cropBitmap, getDrawMatrix(cropBitmap,
+			region, sourceToOutput), paint);
+	}
+
+	/**
+	 * Transform from pixels of cropBitmap, decoded from region, to output
+	 * pixels.
+	 */
+	private static Matrix getDrawMatrix(Bitmap cropBitmap, Rect region,
+										Matrix sourceToOutput) {
+		Matrix drawMatrix = new Matrix();
+		drawMatrix.setScale(region.width() / (float) cropBitmap.getWidth(),
+			region.height() / (float) cropBitmap.getHeight());
+		drawMatrix.postTranslate(region.left, region.top);
+		drawMatrix.postConcat(sourceToOutput);
+		return drawMatrix;
+	}
+
+	/**
+	 * Resamples the part of src that drawMatrix maps onto width x height
+	 * with {@link Resampler}, on the encoder pool, over white like the
+	 * drawing path. Returns null if drawMatrix rotates, skews or mirrors,
+	 * or if the output reaches past src.
+	 */
+	private static Bitmap resample(Bitmap src, Matrix drawMatrix,
+								   final int width, int height, int kernel) throws IOException {
+		float[] v = new float[9];
+		drawMatrix.getValues(v);
+		if (v[Matrix.MSKEW_X] != 0 || v[Matrix.MSKEW_Y] != 0
+			|| v[Matrix.MPERSP_0] != 0 || v[Matrix.MPERSP_1] != 0
+			|| v[Matrix.MSCALE_X] <= 0 || v[Matrix.MSCALE_Y] <= 0) {
+			return null;
+		}
+		// the output rect in src pixels
+		float left = -v[Matrix.MTRANS_X] / v[Matrix.MSCALE_X];
+		float top = -v[Matrix.MTRANS_Y] / v[Matrix.MSCALE_Y];
+		float right = left + width / v[Matrix.MSCALE_X];
+		float bottom = top + height / v[Matrix.MSCALE_Y];
+		// rounding of the region may leave up to half a pixel uncovered
+		float slack = 0.5f;
+		if (left < -slack || top < -slack || right > src.getWidth() + slack
+			|| bottom > src.getHeight() + slack) {
+			return null;
+		}
+		final Bitmap bitmap = Bitmap.createBitmap(width, height,
+			Bitmap.Config.ARGB_8888);
+		final boolean blend = src.hasAlpha();
+		ThreadPoolExecutor executor = getEncodeExecutor();
+		boolean success = false;
+		try {
+			new Resampler(src.getWidth(), src.getHeight(), left, top, right,
+				bottom, width, height, kernel).resample(new BitmapRowSource(src),
+				new Resampler.RowTarget() {
+					@Override
+					public void writeRows(int row, int rows, int[] pixels) {
+						if (blend) {
+							blendOverWhite(pixels, width * rows);
+						}
+						synchronized (bitmap) {
+							bitmap.setPixels(pixels, 0, width, 0, row, width,
+								rows);
+						}
+					}
+				}, executor, executor.getMaximumPoolSize());
+			success = true;
+			return bitmap;
+		} finally {
+			if (!success) {
+				bitmap.recycle();
+			}
+		}
+	}
+
+	private static void blendOverWhite(int[] pixels, int count) {
+		for (int i = 0; i < count; i++) {
+			int color = pixels[i];
+			int a = color >>> 24;
+			if (a == 0xFF) {
+				continue;
+			}
+			int white = (0xFF - a) * 0xFF;
+			int r = (((color >> 16) & 0xFF) * a + white) / 0xFF;
+			int g = (((color >> 8) & 0xFF) * a + white) / 0xFF;
+			int b = ((color & 0xFF) * a + white) / 0xFF;
+			pixels[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+		}
+	}
+
+	/**
+	 * A region decoder together with the descriptor or stream it reads from.
+	 * Files are opened by path and other uris as seekable descriptors where
+	 * possible; only otherwise the decoder gets a stream, which it has to
+	 * buffer in full.
+	 */
+	private static class RegionSource {
+		private final CropSource mSource;
+		private final ParcelFileDescriptor mFileDescriptor;
+		private final InputStream mInStream;
+		private final BitmapRegionDecoder mDecoder;
+
+		private RegionSource(CropSource source, ParcelFileDescriptor fd,
+							 InputStream in, BitmapRegionDecoder decoder) {
+			mSource = source;
+			mFileDescriptor = fd;
+			mInStream = in;
+			mDecoder = decoder;
+		}
+
+		static RegionSource open(Context context, CropSource source)
+			throws IOException {
+			Uri uri = source.getUri();
+			if (source.getYuvFrame() != null) {
+				throw new IOException("yuv frames have no region decoder");
+			} else if (uri == null) {
+				if (source.getData() != null) {
+					// shareable, so the decoder reads the caller's array
+					return create(source, null, null, BitmapRegionDecoder
+						.newInstance(source.getData(), source.getOffset(),
+							source.getLength(), true));
+				}
+				ImageLoader.countStreamFallback();
+				return create(source, null, null, BitmapRegionDecoder
+					.newInstance(source.openBufferStream(), false));
+			}
+			if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+				return create(source, null, null, BitmapRegionDecoder
+					.newInstance(uri.getPath(), false));
+			}
+			ParcelFileDescriptor pfd = ImageLoader.openSeekableFileDescriptor(
+				context, uri);
+			if (pfd != null) {
+				try {
+					return create(source, pfd, null, BitmapRegionDecoder
+						.newInstance(pfd.getFileDescriptor(), false));
+				} catch (IOException e) {
+					CropUtils.closeSilently(pfd);
+					throw e;
+				}
+			}
+			ImageLoader.countStreamFallback();
+			InputStream in = context.getContentResolver().openInputStream(uri);
+			try {
+				return create(source, null, in, BitmapRegionDecoder
+					.newInstance(in, true));
+			} catch (IOException e) {
+				CropUtils.closeSilently(in);
+				throw e;
+			}
+		}
+
+		private static RegionSource create(CropSource source,
+										   ParcelFileDescriptor fd,
+										   InputStream in, BitmapRegionDecoder decoder) throws IOException {
+			if (decoder == null) {
+				throw new IOException("cannot open region decoder for "
+					+ source);
+			}
+			return new RegionSource(source, fd, in, decoder);
+		}
+
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		Bitmap decode(Rect region, int sampleSize) throws IOException {
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			if (Build.VERSION.SDK_INT >= 11) {
+				options.inMutable = true;
+			}
+			options.inSampleSize = sampleSize;
+			Bitmap bitmap = mDecoder.decodeRegion(region, options);
+			if (bitmap == null) {
+				throw new IOException("cannot decode " + mSource);
+			}
+			return bitmap;
+		}
+
+		void close() {
+			mDecoder.recycle();
+			CropUtils.closeSilently(mInStream);
+			CropUtils.closeSilently(mFileDescriptor);
+		}
+	}
+
+	/**
+	 * Scales src, whose transform from source pixels is srcMatrix, down to
+	 * a bitmap of width x height with transform dstMatrix. Halves src first
+	 * as long as the result stays larger than the target, so that bilinear
+	 * filtering never skips source pixels. With a resample kernel, src is
+	 * resampled in one step where possible.
+	 */
+	private static Bitmap downscale(Bitmap src, Matrix srcMatrix, int width,
+									int height, Matrix dstMatrix, int kernel) throws IOException {
+		if (kernel != 0) {
+			// the kernel widens with the reduction, no need for halving
+			Matrix drawMatrix = new Matrix();
+			if (!srcMatrix.invert(drawMatrix)) {
+				throw new IOException("cannot derive rendition");
+			}
+			drawMatrix.postConcat(dstMatrix);
+			Bitmap bitmap = resample(src, drawMatrix, width, height, kernel);
+			if (bitmap != null) {
+				return bitmap;
+			}
+		}
+		Bitmap step = src;
+		Matrix stepMatrix = new Matrix(srcMatrix);
+		while (step.getWidth() / 2 >= width && step.getHeight() / 2 >= height) {
+			int halfWidth = step.getWidth() / 2;
+			int halfHeight = step.getHeight() / 2;
+			Bitmap half = Bitmap.createScaledBitmap(step, halfWidth,
+				halfHeight, true);
+			stepMatrix.postScale(halfWidth / (float) step.getWidth(),
+				halfHeight / (float) step.getHeight());
+			if (step != src) {
+				step.recycle();
+			}
+			step = half;
+		}
+		Matrix drawMatrix = new Matrix();
+		if (!stepMatrix.invert(drawMatrix)) {
+			throw new IOException("cannot derive rendition");
+		}
+		drawMatrix.postConcat(dstMatrix);
+		Bitmap bitmap = Bitmap.createBitmap(width, height,
+			Bitmap.Config.ARGB_8888);
+		bitmap.eraseColor(Color.WHITE);
+		Paint paint = new Paint();
+		paint.setAntiAlias(true);
+		paint.setFilterBitmap(true);
+		new Canvas(bitmap).drawBitmap(step, drawMatrix, paint);
+		if (step != src) {
+			step.recycle();
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Reads the metadata of source if any of outputs copies it, null
+	 * otherwise or if it cannot be read.
+	 */
+	private static JpegMetadata readMetadata(Context context, CropSource source,
+											 List<OutputSpec> outputs) {
+		for (OutputSpec output : outputs) {
+			if (output.isCopyMetadata() && "jpg".equals(output.getFormat())) {
+				try {
+					return ImageLoader.readJpegMetadata(context, source);
+				} catch (IOException e) {
+					// the crop itself may still succeed
+					Log.w(LOGTAG, "cannot read metadata of " + source, e);
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Encodes bitmap into the sink of output, with the segments of
+	 * metadata spliced in if output copies them.
+	 *
+	 * @return the uri written to, null for sinks without one
+	 */
+	private static Uri write(Context context, Bitmap bitmap, OutputSpec output,
+							 JpegMetadata metadata) throws IOException {
+		CropSink sink = getSink(context, output);
+		CompressFormat cf = CropFileUtils
+			.convertExtensionToCompressFormat(output.getFormat());
+		List<byte[]> segments = null;
+		if (metadata != null && output.isCopyMetadata()
+			&& cf == CompressFormat.JPEG) {
+			segments = metadata.getSegments(bitmap.getWidth(),
+				bitmap.getHeight(), output.isCopyLocation());
+		}
+		int quality = output.getQuality();
+		int iterations = 1;
+		ExposedByteArrayOutputStream encoded = null;
+		if (output.getMaxBytes() > 0) {
+			// the metadata counts against the cap too
+			long maxBytes = output.getMaxBytes() - (segments == null ? 0
+				: JpegMetadata.getSize(segments));
+			if (maxBytes <= 0) {
+				throw new IOException("metadata alone exceeds "
+					+ output.getMaxBytes() + " bytes");
+			}
+			int[] report = new int[2];
+			encoded = encodeToSize(bitmap, cf, output, maxBytes, report);
+			quality = report[0];
+			iterations = report[1];
+		}
+		SinkOutputStream out = new SinkOutputStream(context, sink);
+		boolean finished = false;
+		try {
+			OutputStream target = segments == null ? out : JpegMetadata.splice(
+				out, segments);
+			if (encoded != null) {
+				encoded.writeTo(target);
+			} else if (!compress(bitmap, cf, quality, output, target)) {
+				throw new IOException("failed to compress bitmap to " + sink);
+			}
+			// finish before returning so the output is durable on delivery
+			out.finish();
+			finished = true;
+		} finally {
+			if (!finished) {
+				out.abort();
+			}
+			if (encoded != null) {
+				releaseEncodeBuffers();
+			}
+		}
+		sink.setEncodeReport(quality, iterations);
+		return sink.getUri();
+	}
+
+	/**
+	 * Compresses bitmap with the encoder output asks for.
+	 */
+	private static boolean compress(Bitmap bitmap, CompressFormat format,
+									int quality, OutputSpec output, OutputStream out) throws IOException {
+		if (output.getEncoder() != OutputSpec.ENCODER_PARALLEL_JPEG) {
+			return bitmap.compress(format, quality, out);
+		}
+		if (format != CompressFormat.JPEG) {
+			throw new IOException("parallel encoder cannot write "
+				+ output.getFormat());
+		}
+		ThreadPoolExecutor executor = getEncodeExecutor();
+		new JpegEncoder(quality).encode(new BitmapRowSource(bitmap),
+			bitmap.getWidth(), bitmap.getHeight(), out, executor,
+			executor.getMaximumPoolSize());
+		return true;
+	}
+
+	/**
+	 * Reads rows of a bitmap, from any thread.
+	 */
+	private static class BitmapRowSource implements RowSource {
+		private final Bitmap mBitmap;
+
+		BitmapRowSource(Bitmap bitmap) {
+			mBitmap = bitmap;
+		}
+
+		@Override
+		public void readRows(int top, int rows, int[] dst) {
+			int width = mBitmap.getWidth();
+			mBitmap.getPixels(dst, 0, width, 0, top, width, rows);
+		}
+	}
+
+	/**
+	 * Returns the sink of output, or one writing a new file to
+	 * {@link CropOutputStore}.
+	 */
+	private static CropSink getSink(Context context, OutputSpec output) {
+		CropSink sink = output.getSink();
+		if (sink == null) {
+			sink = CropOutputStore.getInstance(context).createSink(
+				output.getFormat());
+		}
+		return sink;
+	}
+
+	/**
+	 * Encodes bitmap with the highest quality whose output fits maxBytes,
+	 * binary searching between 0 and the requested quality. Encodes go
+	 * into two buffers per thread that are reused across crops.
+	 *
+	 * @param report receives the final quality and the number of encodes
+	 * @return the buffer holding the result
+	 */
+	private static ExposedByteArrayOutputStream encodeToSize(Bitmap bitmap,
+															 CompressFormat format, OutputSpec output, long maxBytes,
+															 int[] report) throws IOException {
+		ExposedByteArrayOutputStream[] buffers = getEncodeBuffers(maxBytes);
+		ExposedByteArrayOutputStream best = buffers[0];
+		ExposedByteArrayOutputStream scratch = buffers[1];
+		int iterations = 0;
+		int bestQuality = -1;
+		int low = 0;
+		int high = output.getQuality();
+		// try the requested quality first, most outputs fit
+		int quality = high;
+		boolean lossy = format != CompressFormat.PNG;
+		while (low <= high) {
+			scratch.reset();
+			if (!compress(bitmap, format, quality, output, scratch)) {
+				throw new IOException("failed to compress bitmap");
+			}
+			iterations++;
+			if (scratch.size() <= maxBytes) {
+				ExposedByteArrayOutputStream swap = best;
+				best = scratch;
+				scratch = swap;
+				bestQuality = quality;
+				low = quality + 1;
+			} else {
+				high = quality - 1;
+			}
+			if (!lossy || bestQuality == output.getQuality()) {
+				break;
+			}
+			quality = (low + high) >>> 1;
+		}
+		scratch.reset();
+		if (bestQuality < 0) {
+			best.reset();
+			throw new IOException("output does not fit in " + maxBytes
+				+ " bytes");
+		}
+		report[0] = bestQuality;
+		report[1] = iterations;
+		// keep the buffers in the same order for the next crop
+		buffers[0] = best;
+		buffers[1] = scratch;
+		return best;
+	}
+
+	private static final ThreadLocal<ExposedByteArrayOutputStream[]> sEncodeBuffers =
+		new ThreadLocal<ExposedByteArrayOutputStream[]>();
+
+	/**
+	 * Returns this thread's encode buffers, sized for maxBytes plus some
+	 * slack for the first encode that does not fit.
+	 */
+	private static ExposedByteArrayOutputStream[] getEncodeBuffers(long maxBytes) {
+		int size = (int) Math.min(maxBytes + maxBytes / 4, MAX_RETAINED_BUFFER);
+		ExposedByteArrayOutputStream[] buffers = sEncodeBuffers.get();
+		if (buffers == null || buffers[0].capacity() < size) {
+			buffers = new ExposedByteArrayOutputStream[]{
+				new ExposedByteArrayOutputStream(size),
+				new ExposedByteArrayOutputStream(size)};
+			sEncodeBuffers.set(buffers);
+		}
+		return buffers;
+	}
+
+	/**
+	 * Empties this thread's encode buffers, dropping them if an encode grew
+	 * them beyond what is worth keeping around.
+	 */
+	private static void releaseEncodeBuffers() {
+		ExposedByteArrayOutputStream[] buffers = sEncodeBuffers.get();
+		if (buffers == null) {
+			return;
+		}
+		if (buffers[0].capacity() > MAX_RETAINED_BUFFER
+			|| buffers[1].capacity() > MAX_RETAINED_BUFFER) {
+			sEncodeBuffers.remove();
+		} else {
+			buffers[0].reset();
+			buffers[1].reset();
+		}
+	}
+
+	/**
+	 * Releases the sink of an output that failed, e.g. so that a pipe
+	 * reader sees the end of the stream. Harmless for finished sinks.
+	 */
+	private static void cancelSink(OutputSpec output) {
+		CropSink sink = output.getSink();
+		if (sink != null) {
+			sink.cancel();
+		}
+	}
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	private static final ThreadLocal<byte[]> sWriteBuffer = new ThreadLocal<byte[]>();
+
+	/**
+	 * Buffers the writes to a sink, so that encoders writing small chunks
+	 * do not turn into many small writes to storage, and measures the time
+	 * spent writing and finishing. The buffer is kept per thread.
+	 */
+	private static class SinkOutputStream extends OutputStream {
+		private final CropSink mSink;
+		private final OutputStream mOut;
+		private byte[] mBuffer;
+		private int mPos;
+		private long mCount;
+		private long mWriteNanos;
+
+		SinkOutputStream(Context context, CropSink sink) throws IOException {
+			mSink = sink;
+			mOut = sink.open(context);
+			mBuffer = sWriteBuffer.get();
+			if (mBuffer == null) {
+				mBuffer = new byte[WRITE_BUFFER_SIZE];
+			} else {
+				// taken while in use, e.g. by a nested write
+				sWriteBuffer.remove();
+			}
+		}
+
+		long getCount() {
+			return mCount;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (mPos == mBuffer.length) {
+				drain();
+			}
+			mBuffer[mPos++] = (byte) b;
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mCount += len;
+			if (len >= mBuffer.length) {
+				drain();
+				long start = System.nanoTime();
+				mOut.write(b, off, len);
+				mWriteNanos += System.nanoTime() - start;
+				return;
+			}
+			if (len > mBuffer.length - mPos) {
+				drain();
+			}
+			System.arraycopy(b, off, mBuffer, mPos, len);
+			mPos += len;
+		}
+
+		private void drain() throws IOException {
+			if (mPos > 0) {
+				long start = System.nanoTime();
+				mOut.write(mBuffer, 0, mPos);
+				mWriteNanos += System.nanoTime() - start;
+				mPos = 0;
+			}
+		}
+
+		/**
+		 * Writes what is buffered and lets the sink complete the output,
+		 * then reports to the sink.
+		 */
+		void finish() throws IOException {
+			drain();
+			long start = System.nanoTime();
+			mSink.finish(mOut);
+			long flushNanos = System.nanoTime() - start;
+			releaseBuffer();
+			mSink.setWriteReport(mCount, mWriteNanos, flushNanos);
+		}
+
+		void abort() {
+			releaseBuffer();
+			mSink.abort(mOut);
+		}
+
+		private void releaseBuffer() {
+			if (mBuffer != null) {
+				mPos = 0;
+				sWriteBuffer.set(mBuffer);
+				mBuffer = null;
+			}
+		}
+	}
+}
@@ -21,13 +21,23 @@ import android.text.TextUtils;
 public class CropFileUtils {
 
 	/**
-	 * create Uir of random file
+	 * create Uir of random file. Nothing cleans these files up, crops
+	 * without a destination go to {@link CropOutputStore} instead.
 	 *
 	 * @param context
 	 * @param dirName dir under getExternalStorageDirectory
 	 * @return
 	 */
 	public static Uri createRandomFileUri(Context context, String dirName) {
+		return createRandomFileUri(context, dirName, "jpg");
+	}
+
+	/**
+	 * @param extension file extension without the dot, e.g. from
+	 *                  {@link #getImageFileExtension(String)}
+	 */
+	public static Uri createRandomFileUri(Context context, String dirName,
+										  String extension) {
 		try {
 			String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
 				Locale.getDefault()).format(new Date());
@@ -38,7 +48,7 @@ public class CropFileUtils {
 				storageDir.mkdirs();
 			}
 			File file = File.createTempFile(imageFileName, /* prefix */
-				".jpg", /* suffix */
+				"." + extension, /* suffix */
 				storageDir /* directory */
 			);
 			return Uri.fromFile(file);
@@ -221,6 +231,9 @@ public class CropFileUtils {
 	public static String getImageFileExtension(String requestFormat) {
 		String outputFormat = (requestFormat == null) ? "jpg" : requestFormat;
 		outputFormat = outputFormat.toLowerCase(Locale.ENGLISH);
+		if (outputFormat.equals("webp")) {
+			return "webp";
+		}
 		return (outputFormat.equals("png") || outputFormat.equals("gif")) ? "png" // We
 			// don't
 			// support
@@ -231,6 +244,9 @@ public class CropFileUtils {
 
 	public static CompressFormat convertExtensionToCompressFormat(
 		String extension) {
+		if (extension.equals("webp")) {
+			return CompressFormat.WEBP;
+		}
 		return extension.equals("png") ? CompressFormat.PNG
 			: CompressFormat.JPEG;
 	}
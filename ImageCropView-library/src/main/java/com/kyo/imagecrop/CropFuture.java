@@ -0,0 +1,339 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Result of an asynchronous crop operation. Callbacks run on the executor
+ * passed with them, so results can stay off the main thread, and futures
+ * can be chained with {@link #then} and {@link #thenCompose}. Cancelling a
+ * chained future cancels the operation it depends on.
+ */
+public class CropFuture<V> implements Future<V> {
+
+	public interface Callback<V> {
+		void onSuccess(V result);
+
+		/**
+		 * Called with a {@link CancellationException} if cancelled.
+		 */
+		void onFailure(Throwable t);
+	}
+
+	public interface Function<A, B> {
+		B apply(A input) throws Exception;
+	}
+
+	private static final int STATE_PENDING = 0;
+	private static final int STATE_SUCCESS = 1;
+	private static final int STATE_FAILURE = 2;
+	private static final int STATE_CANCELLED = 3;
+
+	private static final Executor DIRECT_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	private static Executor sMainThreadExecutor;
+
+	private int mState = STATE_PENDING;
+	private V mValue;
+	private Throwable mError;
+	private List<Runnable> mListeners = new ArrayList<Runnable>();
+	private Runnable mCancelAction;
+
+	/**
+	 * Runs callbacks on the thread that completes the future.
+	 */
+	public static Executor directExecutor() {
+		return DIRECT_EXECUTOR;
+	}
+
+	public static synchronized Executor mainThreadExecutor() {
+		if (sMainThreadExecutor == null) {
+			final Handler handler = new Handler(Looper.getMainLooper());
+			sMainThreadExecutor = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					handler.post(command);
+				}
+			};
+		}
+		return sMainThreadExecutor;
+	}
+
+	/**
+	 * Completes the future with value, does nothing if already done.
+	 */
+	public boolean set(V value) {
+		synchronized (this) {
+			if (mState != STATE_PENDING) {
+				return false;
+			}
+			mValue = value;
+			mState = STATE_SUCCESS;
+			notifyAll();
+		}
+		runListeners();
+		return true;
+	}
+
+	/**
+	 * Fails the future, does nothing if already done.
+	 */
+	public boolean setException(Throwable t) {
+		synchronized (this) {
+			if (mState != STATE_PENDING) {
+				return false;
+			}
+			mError = t;
+			mState = STATE_FAILURE;
+			notifyAll();
+		}
+		runListeners();
+		return true;
+	}
+
+	/**
+	 * Action run once when the future is cancelled, e.g. cancelling the task
+	 * computing it.
+	 */
+	void setCancelAction(Runnable action) {
+		boolean cancelled;
+		synchronized (this) {
+			mCancelAction = action;
+			cancelled = mState == STATE_CANCELLED;
+		}
+		if (cancelled) {
+			action.run();
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		Runnable action;
+		synchronized (this) {
+			if (mState != STATE_PENDING) {
+				return false;
+			}
+			mState = STATE_CANCELLED;
+			action = mCancelAction;
+			notifyAll();
+		}
+		if (action != null) {
+			action.run();
+		}
+		runListeners();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mState == STATE_CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mState != STATE_PENDING;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (mState == STATE_PENDING) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit)
+		throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (mState == STATE_PENDING) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	private V getResult() throws ExecutionException {
+		if (mState == STATE_CANCELLED) {
+			throw new CancellationException();
+		} else if (mState == STATE_FAILURE) {
+			throw new ExecutionException(mError);
+		}
+		return mValue;
+	}
+
+	/**
+	 * Runs callback on executor once the future is done.
+	 */
+	public CropFuture<V> addCallback(final Callback<? super V> callback,
+									 final Executor executor) {
+		addListener(new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						dispatch(callback);
+					}
+				});
+			}
+		});
+		return this;
+	}
+
+	private void dispatch(Callback<? super V> callback) {
+		int state;
+		V value;
+		Throwable error;
+		synchronized (this) {
+			state = mState;
+			value = mValue;
+			error = mError;
+		}
+		if (state == STATE_SUCCESS) {
+			callback.onSuccess(value);
+		} else if (state == STATE_CANCELLED) {
+			callback.onFailure(new CancellationException());
+		} else {
+			callback.onFailure(error);
+		}
+	}
+
+	/**
+	 * Returns a future of function applied to the result, run on executor.
+	 */
+	public <R> CropFuture<R> then(final Function<? super V, ? extends R> function,
+								  Executor executor) {
+		final CropFuture<R> next = new CropFuture<R>();
+		next.setCancelAction(cancelAction());
+		addCallback(new Callback<V>() {
+			@Override
+			public void onSuccess(V result) {
+				try {
+					next.set(function.apply(result));
+				} catch (Exception e) {
+					next.setException(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				forwardFailure(next, t);
+			}
+		}, executor);
+		return next;
+	}
+
+	/**
+	 * Like {@link #then} for functions that start more asynchronous work.
+	 */
+	public <R> CropFuture<R> thenCompose(
+		final Function<? super V, CropFuture<R>> function, Executor executor) {
+		final CropFuture<R> next = new CropFuture<R>();
+		next.setCancelAction(cancelAction());
+		addCallback(new Callback<V>() {
+			@Override
+			public void onSuccess(V result) {
+				final CropFuture<R> inner;
+				try {
+					inner = function.apply(result);
+				} catch (Exception e) {
+					next.setException(e);
+					return;
+				}
+				next.setCancelAction(new Runnable() {
+					@Override
+					public void run() {
+						inner.cancel(false);
+					}
+				});
+				inner.addCallback(new Callback<R>() {
+					@Override
+					public void onSuccess(R value) {
+						next.set(value);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						forwardFailure(next, t);
+					}
+				}, DIRECT_EXECUTOR);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				forwardFailure(next, t);
+			}
+		}, executor);
+		return next;
+	}
+
+	private Runnable cancelAction() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				cancel(false);
+			}
+		};
+	}
+
+	private static void forwardFailure(CropFuture<?> next, Throwable t) {
+		if (t instanceof CancellationException) {
+			next.cancel(false);
+		} else {
+			next.setException(t);
+		}
+	}
+
+	private void addListener(Runnable listener) {
+		synchronized (this) {
+			if (mState == STATE_PENDING) {
+				mListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	private void runListeners() {
+		List<Runnable> listeners;
+		synchronized (this) {
+			listeners = mListeners;
+			mListeners = new ArrayList<Runnable>();
+		}
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+}
@@ -15,27 +15,28 @@
  */
 package com.kyo.imagecrop;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.annotation.TargetApi;
+import android.app.Activity;
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -52,18 +53,43 @@ public class CropLayout extends FrameLayout {
 
 	private static final String LOGTAG = "CropLayout";
 	private static final int DEFAULT_COMPRESS_QUALITY = 90;
+	// png outputs above this are rendered in bands
+	private static final long BANDED_OUTPUT_PIXELS = 16 * 1024 * 1024;
+	private static final int DEFAULT_BAND_HEIGHT = 256;
+	private static final int PREVIEW_NONE = 0;
+	private static final int PREVIEW_FULL = 1;
+	private static final int PREVIEW_REDUCED = 2;
+	private static final int PREVIEW_RELEASED = 3;
+	// crops wait for CropMemoryBudget, keep them off the shared AsyncTask
+	// executor
+	private static final ThreadPoolExecutor sCropExecutor;
+
+	static {
+		int poolSize = CropBatch.getDefaultPoolSize();
+		sCropExecutor = new ThreadPoolExecutor(poolSize, poolSize, 1,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new CropBatch.WorkerFactory(LOGTAG));
+		sCropExecutor.allowCoreThreadTimeOut(true);
+	}
+
 	private LoadBitmapTask mLoadBitmapTask;
 	private CropBitmapTask mCropBitmapTask;
-	private Uri mSourceUri;
+	private CropSource mSource;
 	private Bitmap mOriginalBitmap;
 	private RectF mOriginalBounds;
 	private Rect mCropRect;
 	private int mRotation;
+	private int mPreviewState = PREVIEW_NONE;
+	private volatile int mMemoryPriority = 1;
+	// visible area while the window was last visible
+	private volatile int mVisibleArea;
 	private String mOutputFormat = null;
 	private boolean mIsAttachedToWindow;
 	private CropView mCropView;
+	private CropTextureView mTextureView;
 	private ProgressBar mProgressBar;
 	private OnCropListener mOnCropListener;
+	private CropFuture<Void> mLoadFuture;
 
 	public CropLayout(Context context) {
 		super(context);
@@ -91,18 +117,31 @@ public class CropLayout extends FrameLayout {
 	protected void onAttachedToWindow() {
 		super.onAttachedToWindow();
 		mIsAttachedToWindow = true;
+		getContext().getApplicationContext().registerComponentCallbacks(
+			mComponentCallbacks);
+		updateVisibleArea();
+		CropMemoryBudget.getInstance().register(mBudgetClient);
+		chargePreview();
 	}
 
 	@Override
 	protected void onDetachedFromWindow() {
 		super.onDetachedFromWindow();
 		mIsAttachedToWindow = false;
+		getContext().getApplicationContext().unregisterComponentCallbacks(
+			mComponentCallbacks);
+		CropMemoryBudget.getInstance().unregister(mBudgetClient);
 		performLoadingStateChanged(false);
 		if (mLoadBitmapTask != null) {
 			mLoadBitmapTask.cancel(false);
 		}
 		if (mCropBitmapTask != null) {
 			mCropBitmapTask.cancel(false);
+			mCropBitmapTask.mFuture.cancel(false);
+		}
+		if (mLoadFuture != null) {
+			mLoadFuture.cancel(false);
+			mLoadFuture = null;
 		}
 	}
 
@@ -124,6 +163,46 @@ public class CropLayout extends FrameLayout {
 		mOnCropListener = l;
 	}
 
+	/**
+	 * Draws image and crop overlay on a dedicated render thread into a
+	 * TextureView, which keeps crop gestures smooth while the UI thread is
+	 * busy. Requires API 23 for a hardware canvas on the render thread and
+	 * a hardware accelerated window, otherwise the default View drawing is
+	 * used.
+	 *
+	 * @param useRenderThread true for the render thread, false (default) to
+	 *                        draw in CropView.onDraw
+	 */
+	public void setUseRenderThread(boolean useRenderThread) {
+		// a software canvas on the render thread would be slower than the
+		// hardware accelerated View
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+			useRenderThread = false;
+		}
+		if (useRenderThread == (mTextureView != null)) {
+			return;
+		}
+		if (useRenderThread) {
+			mTextureView = new CropTextureView(getContext());
+			// behind the CropView, which stays on top for touch handling
+			this.addView(mTextureView, indexOfChild(mCropView));
+			mCropView.setRenderTarget(mTextureView);
+		} else {
+			mCropView.setRenderTarget(null);
+			this.removeView(mTextureView);
+			mTextureView = null;
+		}
+	}
+
+	/**
+	 * Weight of this layout when {@link CropMemoryBudget} splits the preview
+	 * budget between visible layouts, 1 by default.
+	 */
+	public void setMemoryPriority(int priority) {
+		mMemoryPriority = priority;
+		CropMemoryBudget.getInstance().update(mBudgetClient);
+	}
+
 	/**
 	 * @param format jpg/png
 	 */
@@ -135,55 +214,290 @@ public class CropLayout extends FrameLayout {
 	 * Method that loads a bitmap in an async task.
 	 */
 	public void startCropImage(Uri uri, int outputX, int outputY) {
-		if (uri == null) {
+		startCropImage(uri == null ? null : CropSource.fromUri(uri), outputX,
+			outputY, null);
+	}
+
+	/**
+	 * Like {@link #startCropImage(Uri, int, int)} for any source, e.g. the
+	 * JPEG bytes of a camera capture, which are decoded without touching
+	 * disk.
+	 */
+	public void startCropImage(CropSource source, int outputX, int outputY) {
+		startCropImage(source, outputX, outputY, null);
+	}
+
+	/**
+	 * Like {@link #startCropImage(Uri, int, int)}, the returned future
+	 * completes once the image is displayed and ready for cropping.
+	 * {@link OnCropListener} is notified as well.
+	 */
+	public CropFuture<Void> startCropImageAsync(Uri uri, int outputX,
+												int outputY) {
+		return startCropImageAsync(uri == null ? null : CropSource.fromUri(uri),
+			outputX, outputY);
+	}
+
+	public CropFuture<Void> startCropImageAsync(CropSource source, int outputX,
+												int outputY) {
+		final CropFuture<Void> future = new CropFuture<Void>();
+		future.setCancelAction(new Runnable() {
+			@Override
+			public void run() {
+				LoadBitmapTask task = mLoadBitmapTask;
+				if (task != null) {
+					task.cancel(false);
+				}
+			}
+		});
+		startCropImage(source, outputX, outputY, future);
+		return future;
+	}
+
+	private void startCropImage(CropSource source, int outputX, int outputY,
+								CropFuture<Void> future) {
+		if (mLoadFuture != null) {
+			mLoadFuture.cancel(false);
+		}
+		mLoadFuture = future;
+		if (source == null) {
 			cannotLoadImage("uri is null");
 			return;
 		} else if (outputX <= 0 || outputY <= 0) {
 			cannotLoadImage("outputX/outputY is invalid");
 			return;
 		}
-		mSourceUri = uri;
-		performLoadingStateChanged(true);
+		mSource = source;
+		mPreviewState = PREVIEW_NONE;
 		mCropRect = new Rect(0, 0, outputX, outputY);
+		// preview parked by onSaveInstanceState before a config change
+		CropPreviewCache.Entry entry = CropPreviewCache.take(
+			getPreviewCacheKey(source));
+		if (entry != null) {
+			mOriginalBitmap = entry.bitmap;
+			mOriginalBounds = entry.originalBounds;
+			mRotation = entry.rotation;
+			mPreviewState = PREVIEW_FULL;
+			chargePreview();
+			notifyDisplay();
+			return;
+		}
+		performLoadingStateChanged(true);
 		mLoadBitmapTask = new LoadBitmapTask();
-		mLoadBitmapTask.execute(uri);
+		mLoadBitmapTask.execute(source);
 	}
 
 	public void requestCropResult() {
+		startCropBitmap(null, new CropFuture<List<Uri>>());
+	}
+
+	/**
+	 * Like {@link #requestCropResult()}, but the output Uri is also delivered
+	 * through the returned future. The future completes on the worker thread
+	 * once the output is written and closed, so callbacks added with a
+	 * background executor never touch the main thread.
+	 * {@link OnCropListener} is notified as well.
+	 */
+	public CropFuture<Uri> requestCropResultAsync() {
+		return requestCropResultsAsync(null).then(
+			new CropFuture.Function<List<Uri>, Uri>() {
+				@Override
+				public Uri apply(List<Uri> input) {
+					return input.get(0);
+				}
+			}, CropFuture.directExecutor());
+	}
+
+	/**
+	 * Like {@link #requestCropResultAsync()}, but writes to sink instead of a
+	 * new file, e.g. into memory or a pipe an upload reads from. The future
+	 * gets the uri of the sink, null if it has none.
+	 */
+	public CropFuture<Uri> requestCropResultAsync(CropSink sink) {
+		if (mCropRect == null) {
+			CropFuture<Uri> future = new CropFuture<Uri>();
+			failCrop(future, "crop is not ready");
+			return future;
+		}
+		OutputSpec output = createDefaultOutput();
+		output.setSink(sink);
+		return requestCropResultsAsync(Collections.singletonList(output)).then(
+			new CropFuture.Function<List<Uri>, Uri>() {
+				@Override
+				public Uri apply(List<Uri> input) {
+					return input.get(0);
+				}
+			}, CropFuture.directExecutor());
+	}
+
+	/**
+	 * Crops once and writes one rendition per output spec, e.g. several
+	 * sizes or formats of the same crop. The source is decoded a single
+	 * time, all uris are delivered together in the order of outputs, null
+	 * for sinks without a uri. {@link OnCropListener} gets the first one.
+	 *
+	 * @param outputs renditions to write, the crop rect size in the output
+	 *                format if null
+	 */
+	public CropFuture<List<Uri>> requestCropResultsAsync(List<OutputSpec> outputs) {
+		CropFuture<List<Uri>> future = new CropFuture<List<Uri>>();
+		startCropBitmap(outputs, future);
+		return future;
+	}
+
+	/**
+	 * Starts the crop task, or fails future and notifies the listener if
+	 * there is nothing to crop.
+	 */
+	private void startCropBitmap(List<OutputSpec> outputs,
+								 CropFuture<List<Uri>> future) {
 		if (mProgressBar.getVisibility() == View.INVISIBLE) {
+			failCrop(future, "crop is not ready");
 			return;
 		}
-		this.performLoadingStateChanged(true);
 		CropView.Result result = mCropView.getCropResult();
-		Uri destUri = CropFileUtils.createRandomFileUri(getContext(), "ImageCropSample");
-		mCropBitmapTask = new CropBitmapTask(mSourceUri, destUri,
-			mOutputFormat, result, mOriginalBounds, mCropRect.width(),
+		if (result == null) {
+			// no image loaded, or the crop rect lies outside of it
+			failCrop(future,
+				"nothing to crop, no image or crop rect outside of it");
+			return;
+		}
+		this.performLoadingStateChanged(true);
+		CropSpec spec = CropSpec.fromResult(result, mOriginalBounds);
+		if (outputs == null) {
+			outputs = Collections.singletonList(createDefaultOutput());
+		}
+		mCropBitmapTask = new CropBitmapTask(mSource, spec, outputs, future);
+		final CropBitmapTask task = mCropBitmapTask;
+		future.setCancelAction(new Runnable() {
+			@Override
+			public void run() {
+				task.cancel(false);
+			}
+		});
+		mCropBitmapTask.executeOnExecutor(sCropExecutor);
+	}
+
+	private OutputSpec createDefaultOutput() {
+		OutputSpec output = new OutputSpec(mCropRect.width(),
 			mCropRect.height());
-		mCropBitmapTask.execute();
+		output.setFormat(mOutputFormat);
+		output.setQuality(DEFAULT_COMPRESS_QUALITY);
+		if ("png".equals(output.getFormat()) && (long) mCropRect.width()
+			* mCropRect.height() > BANDED_OUTPUT_PIXELS) {
+			output.setBandHeight(DEFAULT_BAND_HEIGHT);
+		}
+		return output;
+	}
+
+	@Override
+	protected Parcelable onSaveInstanceState() {
+		SavedState ss = new SavedState(super.onSaveInstanceState());
+		float[] transform = new float[9];
+		if (mCropView.getTransformState(transform)) {
+			ss.transform = transform;
+		}
+		// only a recreated layout takes it back, don't hold it otherwise
+		if (mPreviewState == PREVIEW_FULL && mSource != null
+			&& isChangingConfigurations()) {
+			CropPreviewCache.put(getPreviewCacheKey(mSource),
+				new CropPreviewCache.Entry(mOriginalBitmap, mOriginalBounds,
+					mRotation));
+		}
+		return ss;
+	}
+
+	/**
+	 * Key of the preview parked for a configuration change. Uses the
+	 * screen size, not {@link #getPreviewSideLength()}: the budget side is
+	 * assigned only once attached, so it differs between saving and the
+	 * recreated layout looking it up. The budget corrects the preview side
+	 * after attaching.
+	 */
+	private String getPreviewCacheKey(CropSource source) {
+		return CropPreviewCache.getKey(source, getScreenImageSize());
+	}
+
+	private boolean isChangingConfigurations() {
+		Context context = getContext();
+		while (context instanceof ContextWrapper) {
+			if (context instanceof Activity) {
+				return ((Activity) context).isChangingConfigurations();
+			}
+			context = ((ContextWrapper) context).getBaseContext();
+		}
+		return false;
+	}
+
+	@Override
+	protected void onRestoreInstanceState(Parcelable state) {
+		if (!(state instanceof SavedState)) {
+			super.onRestoreInstanceState(state);
+			return;
+		}
+		SavedState ss = (SavedState) state;
+		super.onRestoreInstanceState(ss.getSuperState());
+		if (ss.transform != null) {
+			mCropView.setTransformState(ss.transform);
+		}
+	}
+
+	/**
+	 * Saved crop transform, 9 floats, see {@link CropView#getTransformState}.
+	 */
+	static class SavedState extends BaseSavedState {
+		float[] transform;
+
+		SavedState(Parcelable superState) {
+			super(superState);
+		}
+
+		private SavedState(Parcel in) {
+			super(in);
+			transform = in.createFloatArray();
+		}
+
+		@Override
+		public void writeToParcel(Parcel out, int flags) {
+			super.writeToParcel(out, flags);
+			out.writeFloatArray(transform);
+		}
+
+		public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+			@Override
+			public SavedState createFromParcel(Parcel in) {
+				return new SavedState(in);
+			}
+
+			@Override
+			public SavedState[] newArray(int size) {
+				return new SavedState[size];
+			}
+		};
 	}
 
 	/**
 	 * AsyncTask for loading a bitmap into memory.
 	 */
-	private class LoadBitmapTask extends AsyncTask<Uri, Void, Bitmap> {
+	private class LoadBitmapTask extends AsyncTask<CropSource, Void, Bitmap> {
 		int mBitmapSize;
 		Context mContext;
 		Rect mOriginalBounds;
 		int mOrientation;
 
 		public LoadBitmapTask() {
-			mBitmapSize = getScreenImageSize();
+			mBitmapSize = getPreviewSideLength();
 			mContext = CropLayout.this.getContext().getApplicationContext();
 			mOriginalBounds = new Rect();
 			mOrientation = 0;
 		}
 
 		@Override
-		protected Bitmap doInBackground(Uri... params) {
-			Uri uri = params[0];
-			Bitmap bmap = ImageLoader.loadConstrainedBitmap(uri, mContext,
+		protected Bitmap doInBackground(CropSource... params) {
+			CropSource source = params[0];
+			Bitmap bmap = ImageLoader.loadConstrainedBitmap(source, mContext,
 				mBitmapSize, mOriginalBounds, false);
-			mOrientation = ImageLoader.getImageOrientation(mContext, uri);
+			mOrientation = ImageLoader.getImageOrientation(mContext, source);
 			return bmap;
 		}
 
@@ -191,6 +505,15 @@ public class CropLayout extends FrameLayout {
 		protected void onPostExecute(Bitmap result) {
 			doneLoadBitmap(result, new RectF(mOriginalBounds), mOrientation);
 		}
+
+		@Override
+		protected void onCancelled(Bitmap result) {
+			// a newer load keeps the loading state
+			if (mLoadBitmapTask == this) {
+				mLoadBitmapTask = null;
+				performLoadingStateChanged(false);
+			}
+		}
 	}
 
 	/**
@@ -203,11 +526,18 @@ public class CropLayout extends FrameLayout {
 			return;
 		}
 
+		boolean reload = mPreviewState != PREVIEW_NONE;
 		mOriginalBitmap = bitmap;
 		mOriginalBounds = bounds;
 		mRotation = orientation;
+		chargePreview();
 		if (bitmap != null && bitmap.getWidth() != 0 && bitmap.getHeight() != 0) {
-			notifyDisplay();
+			mPreviewState = PREVIEW_FULL;
+			if (reload) {
+				redisplay(bitmap);
+			} else {
+				notifyDisplay();
+			}
 		} else {
 			cannotLoadImage("could not load image for cropping");
 		}
@@ -217,150 +547,52 @@ public class CropLayout extends FrameLayout {
 	 * AsyncTask for cropping a bitmap to file.
 	 */
 	private class CropBitmapTask extends AsyncTask<Void, Void, Boolean> {
-		CropView.Result mResult = null;
-		RectF mOriginalBounds = null;
-		InputStream mInStream = null;
-		OutputStream mOutStream = null;
-		String mOutputFormat = null;
-		Uri mOutUri = null;
-		Uri mInUri = null;
-		int mOutputX = 0;
-		int mOutputY = 0;
-
-		public CropBitmapTask(Uri sourceUri, Uri destUri, String outputFormat,
-							  CropView.Result result, RectF originalBounds, int outputX,
-							  int outputY) {
-			mOutputFormat = outputFormat;
-			mOutStream = null;
-			mOutUri = destUri;
-			mInUri = sourceUri;
-			mOutputX = outputX;
-			mOutputY = outputY;
-			mResult = result;
-			mOriginalBounds = originalBounds;
-			try {
-				mOutStream = getContext().getContentResolver()
-					.openOutputStream(mOutUri);
-			} catch (FileNotFoundException e) {
-				Log.w(LOGTAG, "cannot make file: " + mInUri.toString(), e);
-				e.printStackTrace();
-			}
-
-			try {
-				mInStream = getContext().getContentResolver().openInputStream(
-					mInUri);
-			} catch (FileNotFoundException e) {
-				Log.w(LOGTAG, "cannot read file: " + mInUri.toString(), e);
-				e.printStackTrace();
-			}
+		final Context mContext;
+		final CropSource mSource;
+		final CropSpec mSpec;
+		final List<OutputSpec> mOutputs;
+		final CropFuture<List<Uri>> mFuture;
+		Uri mOutUri;
+
+		public CropBitmapTask(CropSource source, CropSpec spec,
+							  List<OutputSpec> outputs,
+							  CropFuture<List<Uri>> future) {
+			mContext = getContext();
+			mSource = source;
+			mSpec = spec;
+			mOutputs = outputs;
+			mFuture = future;
 		}
 
-		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
 		@Override
 		protected Boolean doInBackground(Void... params) {
-			boolean failure = false;
-
-			RectF returnRect = new RectF(0, 0, mOutputX, mOutputY);
-			Bitmap canvasBitmap = Bitmap.createBitmap((int) returnRect.width(),
-				(int) returnRect.height(), Bitmap.Config.ARGB_8888);
-			canvasBitmap.eraseColor(Color.WHITE);
-			Paint paint = new Paint();
-			paint.setAntiAlias(true);
-			paint.setFilterBitmap(true);
-			Canvas canvas = new Canvas(canvasBitmap);
-			Bitmap cropBitmap = null;
-			if (mResult != null) {
-				RectF trueCrop = CropMath.getScaledCropBounds(
-					mResult.rawIntersectionRect, mResult.rawImageRect,
-					mOriginalBounds);
-				if (trueCrop == null) {
-					Log.w(LOGTAG, "cannot find crop for full size image");
-					failure = true;
-					return false;
-				}
-
-				Rect roundedTrueCrop = new Rect();
-				trueCrop.roundOut(roundedTrueCrop);
-				if (roundedTrueCrop.width() <= 0
-					|| roundedTrueCrop.height() <= 0) {
-					Log.w(LOGTAG, "crop has bad values for full size image");
-					failure = true;
-					return false;
-				}
-
-				// Attempt to open a region decoder
-				BitmapRegionDecoder decoder = null;
-				try {
-					decoder = BitmapRegionDecoder.newInstance(mInStream, true);
-				} catch (IOException e) {
-					Log.w(LOGTAG, "cannot open region decoder for file: "
-						+ mInUri.toString(), e);
-					failure = true;
-					return false;
-				}
-
-				cropBitmap = null;
-				if (decoder != null) {
-					// Do region decoding to get crop bitmap
-					BitmapFactory.Options options = new BitmapFactory.Options();
-					if (Build.VERSION.SDK_INT >= 11) {
-						options.inMutable = true;
-					}
-
-					if (mOutputX != 0 && mOutputY != 0) {
-						options.inSampleSize = CropMath.calculateInSampleSize(
-							roundedTrueCrop.right - roundedTrueCrop.left,
-							roundedTrueCrop.bottom - roundedTrueCrop.top,
-							mOutputX, mOutputY);
-					}
-					cropBitmap = decoder.decodeRegion(roundedTrueCrop, options);
-					decoder.recycle();
-				}
-
-				if (cropBitmap == null) {
-					Log.w(LOGTAG, "cannot decode file: " + mInUri.toString());
-					failure = true;
-					return false;
-				}
-
-				Matrix drawMatrix = new Matrix();
-				RectF cropRect = new RectF(0, 0, cropBitmap.getWidth(),
-					cropBitmap.getHeight());
-				drawMatrix.setRectToRect(cropRect, mResult.rawIntersectionRect,
-					Matrix.ScaleToFit.FILL);
-				drawMatrix.postConcat(mResult.displayImageMatrix);
-				Matrix m = new Matrix();
-				m.setRectToRect(mResult.displayCropRect, returnRect,
-					Matrix.ScaleToFit.FILL);
-				drawMatrix.postConcat(m);
-
-				canvas.drawBitmap(cropBitmap, drawMatrix, paint);
-			}
-			cropBitmap = canvasBitmap;
-
-			// Get output compression format
-			CompressFormat cf = CropFileUtils
-				.convertExtensionToCompressFormat(CropFileUtils
-					.getImageFileExtension(mOutputFormat));
-
-			// If we only need to output to a URI, compress straight to file
-			if (mOutStream == null
-				|| !cropBitmap.compress(cf, DEFAULT_COMPRESS_QUALITY,
-				mOutStream)) {
-				Log.w(LOGTAG,
-					"failed to compress bitmap to file: "
-						+ mOutUri.toString());
-				failure = true;
+			try {
+				List<Uri> results = CropEngine.crop(mContext, mSource, mSpec,
+					mOutputs);
+				mOutUri = results.get(0);
+				mFuture.set(results);
+				return true;
+			} catch (IOException e) {
+				Log.w(LOGTAG, "failed to crop " + mSource, e);
+				mFuture.setException(e);
+				return false;
+			} catch (RuntimeException e) {
+				// e.g. a sink or a corrupt source, don't leave the future hanging
+				Log.w(LOGTAG, "failed to crop " + mSource, e);
+				mFuture.setException(e);
+				return false;
 			}
-			return !failure; // True if any of the operations failed
 		}
 
 		@Override
 		protected void onPostExecute(Boolean result) {
-			CropUtils.closeSilently(mOutStream);
-			CropUtils.closeSilently(mInStream);
 			doneCropBitmap(result.booleanValue(), mOutUri);
 		}
+
+		@Override
+		protected void onCancelled(Boolean result) {
+			mFuture.cancel(false);
+		}
 	}
 
 	private void doneCropBitmap(boolean success, Uri data) {
@@ -375,10 +607,236 @@ public class CropLayout extends FrameLayout {
 	private void notifyDisplay() {
 		if (mOriginalBitmap != null) {
 			mCropView.initialize(mOriginalBitmap, mOriginalBounds, mCropRect, mRotation);
+			if (mLoadFuture != null) {
+				mLoadFuture.set(null);
+				mLoadFuture = null;
+			}
+		}
+	}
+
+	/**
+	 * Shows another version of the same preview, keeping the crop transform.
+	 */
+	private void redisplay(Bitmap preview) {
+		float[] transform = new float[9];
+		boolean hasTransform = mCropView.getTransformState(transform);
+		mCropView.initialize(preview, mOriginalBounds, mCropRect, mRotation);
+		if (hasTransform) {
+			mCropView.setTransformState(transform);
+		}
+	}
+
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+		if (visibility == View.VISIBLE) {
+			updateBudget();
+			reloadTrimmedPreview();
+		}
+	}
+
+	@Override
+	protected void onVisibilityChanged(View changedView, int visibility) {
+		super.onVisibilityChanged(changedView, visibility);
+		// the root view is hidden with the window, see updateVisibleArea()
+		if (mIsAttachedToWindow && changedView != getRootView()) {
+			updateBudget();
+		}
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		updateBudget();
+	}
+
+	private void updateBudget() {
+		if (updateVisibleArea()) {
+			CropMemoryBudget.getInstance().update(mBudgetClient);
+		}
+	}
+
+	/**
+	 * Measures the visible area while the window is visible. A hidden window,
+	 * e.g. of a stopped activity, keeps its share of the budget so the
+	 * preview need not be reloaded when it comes back; memory pressure is
+	 * left to {@link #trimMemory(int)}.
+	 *
+	 * @return true if the area changed
+	 */
+	private boolean updateVisibleArea() {
+		if (getWindowVisibility() != View.VISIBLE) {
+			return false;
+		}
+		int area = isShown() ? getWidth() * getHeight() : 0;
+		if (area == mVisibleArea) {
+			return false;
+		}
+		mVisibleArea = area;
+		return true;
+	}
+
+	/**
+	 * Loads the full preview again after it was reduced or released by
+	 * {@link #trimMemory(int)}.
+	 */
+	private void reloadTrimmedPreview() {
+		if (mPreviewState == PREVIEW_REDUCED
+			|| mPreviewState == PREVIEW_RELEASED) {
+			reloadPreview();
+		}
+	}
+
+	/**
+	 * Decodes the preview again at the current preview size, keeping the
+	 * crop transform.
+	 */
+	private void reloadPreview() {
+		if (mSource == null || mCropRect == null) {
+			return;
+		}
+		if (mLoadBitmapTask != null
+			&& mLoadBitmapTask.getStatus() != AsyncTask.Status.FINISHED) {
+			return;
+		}
+		if (mPreviewState == PREVIEW_RELEASED) {
+			performLoadingStateChanged(true);
+		}
+		mLoadBitmapTask = new LoadBitmapTask();
+		mLoadBitmapTask.execute(mSource);
+	}
+
+	/**
+	 * Responds to memory pressure in steps: drop mip levels, overlay and
+	 * parked previews first, then swap the preview for one at half the
+	 * resolution once in the background, and release the preview when the
+	 * process is further down the LRU list; allocating the smaller copy
+	 * there would only add to the pressure. The full preview is loaded
+	 * again when the window becomes visible.
+	 */
+	private void trimMemory(int level) {
+		CropPreviewCache.trimMemory(level);
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			mCropView.releaseCaches();
+		}
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			releasePreview();
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			reducePreview();
+		}
+	}
+
+	private void reducePreview() {
+		if (mPreviewState != PREVIEW_FULL || mOriginalBitmap == null) {
+			return;
+		}
+		int w = mOriginalBitmap.getWidth() / 2;
+		int h = mOriginalBitmap.getHeight() / 2;
+		if (w <= 0 || h <= 0) {
+			return;
+		}
+		Bitmap reduced;
+		try {
+			reduced = Bitmap.createScaledBitmap(mOriginalBitmap, w, h, true);
+		} catch (OutOfMemoryError e) {
+			releasePreview();
+			return;
+		}
+		Bitmap old = mOriginalBitmap;
+		mOriginalBitmap = reduced;
+		mPreviewState = PREVIEW_REDUCED;
+		redisplay(reduced);
+		mCropView.recycleImage(old);
+		chargePreview();
+	}
+
+	private void releasePreview() {
+		if (mPreviewState != PREVIEW_FULL && mPreviewState != PREVIEW_REDUCED) {
+			return;
 		}
+		mCropView.releaseImage();
+		if (mOriginalBitmap != null) {
+			mCropView.recycleImage(mOriginalBitmap);
+			mOriginalBitmap = null;
+		}
+		mPreviewState = PREVIEW_RELEASED;
+		chargePreview();
+	}
+
+	/**
+	 * Charges the preview held now to {@link CropMemoryBudget}.
+	 */
+	private void chargePreview() {
+		CropMemoryBudget.getInstance().setPreviewBytes(mBudgetClient,
+			mOriginalBitmap == null ? 0 : mOriginalBitmap.getByteCount());
 	}
 
+	/**
+	 * Preview side assigned by {@link CropMemoryBudget}, or the screen size
+	 * if this layout is not registered.
+	 */
+	private int getPreviewSideLength() {
+		int side = CropMemoryBudget.getInstance().getPreviewSide(mBudgetClient);
+		return side > 0 ? Math.min(side, getScreenImageSize())
+			: getScreenImageSize();
+	}
+
+	private final CropMemoryBudget.Client mBudgetClient = new CropMemoryBudget.Client() {
+		@Override
+		public int getVisibleArea() {
+			return mVisibleArea;
+		}
+
+		@Override
+		public int getPriority() {
+			return mMemoryPriority;
+		}
+
+		@Override
+		public int getMaxPreviewSide() {
+			return getScreenImageSize();
+		}
+
+		@Override
+		public void onPreviewSideChanged(int maxSideLength) {
+			// not laid out yet, wait for the size to be known
+			if (mPreviewState != PREVIEW_FULL || mOriginalBitmap == null
+				|| getWidth() == 0) {
+				return;
+			}
+			int current = Math.max(mOriginalBitmap.getWidth(),
+				mOriginalBitmap.getHeight());
+			int original = (int) Math.max(mOriginalBounds.width(),
+				mOriginalBounds.height());
+			// over budget, or at least twice the resolution is available
+			if (current > maxSideLength
+				|| (current * 2 <= maxSideLength && current < original)) {
+				reloadPreview();
+			}
+		}
+	};
+
+	private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+		@Override
+		public void onTrimMemory(int level) {
+			trimMemory(level);
+		}
+
+		@Override
+		public void onLowMemory() {
+			trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+		}
+	};
+
 	private void cannotLoadImage(String msg) {
+		if (mLoadFuture != null) {
+			mLoadFuture.setException(new IOException(msg));
+			mLoadFuture = null;
+		}
 		performCropFail(msg);
 	}
 
@@ -388,6 +846,14 @@ public class CropLayout extends FrameLayout {
 		}
 	}
 
+	/**
+	 * Fails a crop that could not start, through future and the listener.
+	 */
+	private void failCrop(CropFuture<?> future, String errmsg) {
+		future.setException(new IllegalStateException(errmsg));
+		performCropFail(errmsg);
+	}
+
 	private void performCropFail(String errmsg) {
 		Log.w(LOGTAG, errmsg);
 		if (mOnCropListener != null) {
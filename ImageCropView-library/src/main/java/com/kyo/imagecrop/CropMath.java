@@ -15,13 +15,34 @@
  */
 package com.kyo.imagecrop;
 
-import java.util.Arrays;
-
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 
+/**
+ * Android adapters of {@link CropGeometry}, over {@link RectF} and
+ * {@link Matrix}.
+ */
 public class CropMath {
+
+	/**
+	 * @return r as {left, top, right, bottom}
+	 */
+	public static float[] toArray(RectF r) {
+		return new float[]{r.left, r.top, r.right, r.bottom};
+	}
+
+	public static RectF toRectF(float[] r) {
+		return new RectF(r[0], r[1], r[2], r[3]);
+	}
+
+	/**
+	 * Sets dst to r, {left, top, right, bottom}.
+	 */
+	public static void set(RectF dst, float[] r) {
+		dst.set(r[0], r[1], r[2], r[3]);
+	}
+
 	/**
 	 * Gets a float array of the 2D coordinates representing a rectangles
 	 * corners. The order of the corners in the float array is: 0------->1 ^ | |
@@ -32,9 +53,7 @@ public class CropMath {
 	 */
 
 	public static float[] getCornersFromRect(RectF r) {
-		float[] corners = {r.left, r.top, r.right, r.top, r.right, r.bottom,
-			r.left, r.bottom};
-		return corners;
+		return CropGeometry.getCorners(toArray(r));
 	}
 
 	/**
@@ -48,7 +67,7 @@ public class CropMath {
 	 * @return
 	 */
 	public static boolean inclusiveContains(RectF r, float x, float y) {
-		return !(x > r.right || x < r.left || y > r.bottom || y < r.top);
+		return CropGeometry.inclusiveContains(toArray(r), x, y);
 	}
 
 	/**
@@ -59,18 +78,7 @@ public class CropMath {
 	 * @return smallest rectangle containing coordinates
 	 */
 	public static RectF trapToRect(float[] array) {
-		RectF r = new RectF(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
-			Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
-		for (int i = 1; i < array.length; i += 2) {
-			float x = array[i - 1];
-			float y = array[i];
-			r.left = (x < r.left) ? x : r.left;
-			r.top = (y < r.top) ? y : r.top;
-			r.right = (x > r.right) ? x : r.right;
-			r.bottom = (y > r.bottom) ? y : r.bottom;
-		}
-		r.sort();
-		return r;
+		return toRectF(CropGeometry.trapToRect(array));
 	}
 
 	/**
@@ -82,14 +90,7 @@ public class CropMath {
 	 *                   clamped values.
 	 */
 	public static void getEdgePoints(RectF imageBound, float[] array) {
-		if (array.length < 2)
-			return;
-		for (int x = 0; x < array.length; x += 2) {
-			array[x] = GeometryMathUtils.clamp(array[x], imageBound.left,
-				imageBound.right);
-			array[x + 1] = GeometryMathUtils.clamp(array[x + 1],
-				imageBound.top, imageBound.bottom);
-		}
+		CropGeometry.clampPoints(toArray(imageBound), array);
 	}
 
 	/**
@@ -101,20 +102,7 @@ public class CropMath {
 	 * @return two corners representing the side of the rectangle
 	 */
 	public static float[] closestSide(float[] point, float[] corners) {
-		int len = corners.length;
-		float oldMag = Float.POSITIVE_INFINITY; // �㵽�ߵľ��룬default(�������)
-		float[] bestLine = null;
-		for (int i = 0; i < len; i += 2) {
-			float[] line = {corners[i], corners[(i + 1) % len],
-				corners[(i + 2) % len], corners[(i + 3) % len]};
-			float mag = GeometryMathUtils.vectorLength(GeometryMathUtils
-				.shortestVectorFromPointToLine(point, line));
-			if (mag < oldMag) {
-				oldMag = mag;
-				bestLine = line;
-			}
-		}
-		return bestLine;
+		return CropGeometry.closestSide(point, corners);
 	}
 
 	/**
@@ -127,14 +115,7 @@ public class CropMath {
 	 */
 	public static boolean pointInRotatedRect(float[] point, RectF bound,
 											 float rot) {
-		Matrix m = new Matrix();
-		float[] p = Arrays.copyOf(point, 2);
-		m.setRotate(rot, bound.centerX(), bound.centerY());
-		Matrix m0 = new Matrix();
-		if (!m.invert(m0))
-			return false;
-		m0.mapPoints(p);
-		return inclusiveContains(bound, p[0], p[1]);
+		return CropGeometry.pointInRotatedRect(point, toArray(bound), rot);
 	}
 
 	/**
@@ -161,12 +142,9 @@ public class CropMath {
 	 * @param h new height aspect
 	 */
 	public static void fixAspectRatio(RectF r, float w, float h) {
-		float scale = Math.min(r.width() / w, r.height() / h);
-		float centX = r.centerX();
-		float centY = r.centerY();
-		float hw = scale * w / 2;
-		float hh = scale * h / 2;
-		r.set(centX - hw, centY - hh, centX + hw, centY + hh);
+		float[] a = toArray(r);
+		CropGeometry.fixAspectRatio(a, w, h);
+		set(r, a);
 	}
 
 	/**
@@ -178,21 +156,9 @@ public class CropMath {
 	 * @param h new height aspect
 	 */
 	public static void fixAspectRatioContained(RectF r, float w, float h) {
-		float origW = r.width();
-		float origH = r.height();
-		float origA = origW / origH;
-		float a = w / h;
-		float finalW = origW;
-		float finalH = origH;
-		if (origA < a) {
-			finalH = origW / a;
-			r.top = r.centerY() - finalH / 2;
-			r.bottom = r.top + finalH;
-		} else {
-			finalW = origH * a;
-			r.left = r.centerX() - finalW / 2;
-			r.right = r.left + finalW;
-		}
+		float[] a = toArray(r);
+		CropGeometry.fixAspectRatioContained(a, w, h);
+		set(r, a);
 	}
 
 	/**
@@ -245,9 +211,7 @@ public class CropMath {
 	 * @return integer rotation in [0, 90, 180, 270]
 	 */
 	public static int constrainedRotation(float rotation) {
-		int r = (int) ((rotation % 360) / 90);
-		r = (r < 0) ? (r + 4) : r;
-		return r * 90;
+		return CropGeometry.constrainedRotation(rotation);
 	}
 
 	private static float getUnrotated(float[] rotatedRect, float[] center,
@@ -320,73 +284,25 @@ public class CropMath {
 
 	public static boolean setImageToScreenMatrix(Matrix dst, RectF image, RectF imageOriginalRect,
 												 RectF screen, int rotation) {
-		RectF rotatedImageRect = new RectF();
-		RectF rotatedImageOriginalRect = new RectF();
-		dst.setRotate(rotation);
-		dst.mapRect(rotatedImageRect, image);
-		dst.mapRect(rotatedImageOriginalRect, imageOriginalRect);
-		float swidth = screen.width();
-		float sheight = screen.height();
-		float offsetDx = Math.abs(rotatedImageRect.left);
-		float iwidth = rotatedImageRect.width();
-		float iheight = rotatedImageRect.height();
-		float iowidth = rotatedImageOriginalRect.width();
-		float ioheight = rotatedImageOriginalRect.height();
-		float scale, dx, dy;
-
-		if (iowidth <= swidth && ioheight <= sheight) {
-			scale = 1;
-		} else {
-			scale = Math.min(swidth / iwidth, sheight / iheight);
-		}
-
-		dx = (swidth - iwidth * scale) * 0.5f;
-		dy = (sheight - iheight * scale) * 0.5f;
-		dst.setRotate(rotation);
-		dst.postTranslate(offsetDx, 0);
-		boolean ps = dst.postScale(scale, scale);
-		boolean pt = dst.postTranslate(dx, dy);
-		return ps && pt;
+		float[] values = new float[9];
+		CropGeometry.setImageToScreenMatrix(values, toArray(image),
+			toArray(imageOriginalRect), toArray(screen), rotation);
+		dst.setValues(values);
+		return true;
 	}
 
 	public static boolean setCropToScreenMatrix(Matrix dst, RectF crop,
 												RectF screen) {
-		float swidth = screen.width();
-		float sheight = screen.height();
-		float cwidth = crop.width();
-		float cheight = crop.height();
-		float scale, dx, dy;
-
-		if (cwidth <= swidth && cheight <= sheight) {
-			scale = 1;
-		} else {
-			scale = Math.min(swidth / cwidth, sheight / cheight);
-		}
-
-		dx = (swidth - cwidth * scale) * 0.5f;
-		dy = (sheight - cheight * scale) * 0.5f;
-		dst.setScale(scale, scale);
-		boolean pt = dst.postTranslate(dx, dy);
-		return pt;
+		float[] values = new float[9];
+		CropGeometry.setCropToScreenMatrix(values, toArray(crop),
+			toArray(screen));
+		dst.setValues(values);
+		return true;
 	}
 
 	public static int calculateInSampleSize(int rawWidth, int rawHeight,
 											int reqWidth, int reqHeight) {
-		// Raw height and width of image
-		int inSampleSize = 1;
-		if (rawHeight > reqHeight || rawWidth > reqWidth) {
-
-			final int halfHeight = rawHeight / 2;
-			final int halfWidth = rawWidth / 2;
-			// Calculate the largest inSampleSize value that is a power of 2 and
-			// keeps both
-			// height and width larger than the requested height and width.
-			while ((halfHeight / inSampleSize) > reqHeight
-				&& (halfWidth / inSampleSize) > reqWidth) {
-				inSampleSize *= 2;
-			}
-		}
-
-		return inSampleSize;
+		return CropGeometry.calculateInSampleSize(rawWidth, rawHeight,
+			reqWidth, reqHeight);
 	}
 }
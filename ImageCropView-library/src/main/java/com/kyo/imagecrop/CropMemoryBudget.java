@@ -0,0 +1,248 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Process wide bitmap memory budget shared by all {@link CropLayout}s.
+ * Previews get up to 3/4 of the budget, split between visible layouts by
+ * visible area and priority; running crops share what the previews
+ * actually hold, as charged with {@link #setPreviewBytes}, and wait until
+ * enough of it is free.
+ */
+public final class CropMemoryBudget {
+
+	private static final int BYTES_PER_PIXEL = 4;
+	private static final int MIN_PREVIEW_SIDE = 256;
+	private static CropMemoryBudget sInstance;
+
+	/**
+	 * A registered preview consumer.
+	 */
+	public interface Client {
+		/**
+		 * @return visible area in pixels, 0 if not visible
+		 */
+		int getVisibleArea();
+
+		/**
+		 * @return weight of this client, 1 by default
+		 */
+		int getPriority();
+
+		/**
+		 * Called on the UI thread by {@link #register(Client)} and
+		 * {@link #update(Client)}.
+		 *
+		 * @return the largest useful preview side, e.g. the screen size
+		 */
+		int getMaxPreviewSide();
+
+		/**
+		 * Called on the UI thread when the assigned preview side changed.
+		 */
+		void onPreviewSideChanged(int maxSideLength);
+	}
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final List<Client> mClients = new ArrayList<Client>();
+	private final List<Integer> mAssigned = new ArrayList<Integer>();
+	// queried on the UI thread, not while holding the lock
+	private final List<Integer> mMaxSides = new ArrayList<Integer>();
+	private final List<Long> mPreviewBytes = new ArrayList<Long>();
+	private long mBudget;
+	private long mCropBytes;
+	private long mTotalPreviewBytes;
+
+	private CropMemoryBudget() {
+		mBudget = Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	public static synchronized CropMemoryBudget getInstance() {
+		if (sInstance == null) {
+			sInstance = new CropMemoryBudget();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Sets the total budget in bytes, 1/4 of the heap by default. May be
+	 * called on any thread, clients are notified on the UI thread.
+	 */
+	public void setBudget(long bytes) {
+		synchronized (this) {
+			mBudget = bytes;
+			notifyAll();
+		}
+		rebalance();
+	}
+
+	public synchronized long getBudget() {
+		return mBudget;
+	}
+
+	/**
+	 * Must be called on the UI thread, like {@link #update(Client)} and
+	 * {@link #unregister(Client)}.
+	 */
+	public void register(Client client) {
+		int maxSide = client.getMaxPreviewSide();
+		synchronized (this) {
+			if (mClients.contains(client)) {
+				return;
+			}
+			mClients.add(client);
+			mAssigned.add(0);
+			mMaxSides.add(maxSide);
+			mPreviewBytes.add(0L);
+		}
+		rebalance();
+	}
+
+	public void unregister(Client client) {
+		synchronized (this) {
+			int index = mClients.indexOf(client);
+			if (index < 0) {
+				return;
+			}
+			mClients.remove(index);
+			mAssigned.remove(index);
+			mMaxSides.remove(index);
+			mTotalPreviewBytes -= mPreviewBytes.remove(index);
+			notifyAll();
+		}
+		rebalance();
+	}
+
+	/**
+	 * Re-balances after the visible area, priority or maximum preview side
+	 * of a client changed.
+	 */
+	public void update(Client client) {
+		int maxSide = client.getMaxPreviewSide();
+		synchronized (this) {
+			int index = mClients.indexOf(client);
+			if (index >= 0) {
+				mMaxSides.set(index, maxSide);
+			}
+		}
+		rebalance();
+	}
+
+	/**
+	 * Charges the bytes of the preview client holds now, 0 once released.
+	 * Crops get whatever the previews leave of the budget.
+	 */
+	public void setPreviewBytes(Client client, long bytes) {
+		synchronized (this) {
+			int index = mClients.indexOf(client);
+			if (index < 0) {
+				return;
+			}
+			mTotalPreviewBytes += bytes - mPreviewBytes.set(index, bytes);
+			notifyAll();
+		}
+	}
+
+	public synchronized long getPreviewBytes() {
+		return mTotalPreviewBytes;
+	}
+
+	/**
+	 * Returns the preview side currently assigned to client, or 0.
+	 */
+	public synchronized int getPreviewSide(Client client) {
+		int index = mClients.indexOf(client);
+		return index < 0 ? 0 : mAssigned.get(index);
+	}
+
+	private void rebalance() {
+		List<Client> changed = new ArrayList<Client>();
+		List<Integer> sides = new ArrayList<Integer>();
+		synchronized (this) {
+			long previewBudget = mBudget / 4 * 3;
+			long totalWeight = 0;
+			for (Client c : mClients) {
+				totalWeight += getWeight(c);
+			}
+			for (int i = 0; i < mClients.size(); i++) {
+				Client c = mClients.get(i);
+				long weight = getWeight(c);
+				int side = MIN_PREVIEW_SIDE;
+				if (weight > 0) {
+					long share = previewBudget * weight / totalWeight;
+					// worst case square preview
+					side = Math.max(MIN_PREVIEW_SIDE,
+						(int) Math.sqrt(share / BYTES_PER_PIXEL));
+				}
+				side = Math.min(side, mMaxSides.get(i));
+				if (mAssigned.get(i) != side) {
+					mAssigned.set(i, side);
+					changed.add(c);
+					sides.add(side);
+				}
+			}
+		}
+		for (int i = 0; i < changed.size(); i++) {
+			notifyPreviewSide(changed.get(i), sides.get(i));
+		}
+	}
+
+	private void notifyPreviewSide(final Client client, final int side) {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			client.onPreviewSideChanged(side);
+			return;
+		}
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				// skip if unregistered or re-balanced since
+				if (getPreviewSide(client) == side) {
+					client.onPreviewSideChanged(side);
+				}
+			}
+		});
+	}
+
+	private static long getWeight(Client c) {
+		return (long) c.getVisibleArea() * Math.max(1, c.getPriority());
+	}
+
+	/**
+	 * Blocks until bytes of the crop budget are free and takes them. The
+	 * crop budget is what the charged previews leave; a crop larger than
+	 * that runs alone.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquireCrop(long bytes) throws InterruptedException {
+		while (mCropBytes > 0
+			&& mCropBytes + bytes > mBudget - mTotalPreviewBytes) {
+			wait();
+		}
+		mCropBytes += bytes;
+	}
+
+	public synchronized void releaseCrop(long bytes) {
+		mCropBytes -= bytes;
+		notifyAll();
+	}
+}
@@ -0,0 +1,337 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * App private directory crop outputs go to when no sink is given. Outputs
+ * are written to a temporary file and renamed when complete, so a partial
+ * output is never handed out. The store keeps to a byte and file quota
+ * and a maximum age, evicting the least recently used outputs in the
+ * background after each write; outputs can also be released as soon as
+ * they were used.
+ */
+public final class CropOutputStore {
+
+	private static final String LOGTAG = "CropOutputStore";
+	private static final String DIR_NAME = "crop-outputs";
+	private static final String PREFIX = "crop_";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+	private static final int DEFAULT_MAX_FILES = 100;
+	private static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000;
+	// outputs this young are likely still being read, quotas keep them
+	private static final long MIN_AGE = 60 * 1000;
+	private static CropOutputStore sInstance;
+
+	private final File mDir;
+	// file name to size, least recently used first; use survives restarts
+	// through the modification time of the files
+	private final LinkedHashMap<String, Long> mFiles = new LinkedHashMap<String, Long>(
+		16, 0.75f, true);
+	private final AtomicBoolean mTrimQueued = new AtomicBoolean();
+	private final ThreadPoolExecutor mTrimExecutor;
+	private boolean mLoaded;
+	private long mSize;
+	private long mMaxBytes = DEFAULT_MAX_BYTES;
+	private int mMaxFiles = DEFAULT_MAX_FILES;
+	private long mMaxAge = DEFAULT_MAX_AGE;
+
+	private CropOutputStore(File dir) {
+		mDir = dir;
+		mTrimExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new CropBatch.WorkerFactory(LOGTAG));
+		mTrimExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * The store in the app's cache dir.
+	 */
+	public static synchronized CropOutputStore getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new CropOutputStore(new File(context.getApplicationContext()
+				.getCacheDir(), DIR_NAME));
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Sets the quota, 64 MB in at most 100 files by default.
+	 */
+	public void setQuota(long maxBytes, int maxFiles) {
+		synchronized (this) {
+			mMaxBytes = maxBytes;
+			mMaxFiles = maxFiles;
+		}
+		scheduleTrim();
+	}
+
+	/**
+	 * Sets the age in milliseconds after which outputs are deleted, a day
+	 * by default.
+	 */
+	public void setMaxAge(long maxAge) {
+		synchronized (this) {
+			mMaxAge = maxAge;
+		}
+		scheduleTrim();
+	}
+
+	public synchronized long getSize() {
+		load();
+		return mSize;
+	}
+
+	public synchronized int getFileCount() {
+		load();
+		return mFiles.size();
+	}
+
+	/**
+	 * Deletes an output of this store once the app is done with it.
+	 *
+	 * @return false if uri is not in this store
+	 */
+	public synchronized boolean release(Uri uri) {
+		File file = getFile(uri);
+		if (file == null) {
+			return false;
+		}
+		load();
+		Long size = mFiles.remove(file.getName());
+		if (size == null) {
+			return false;
+		}
+		mSize -= size;
+		delete(file);
+		return true;
+	}
+
+	/**
+	 * Marks an output of this store as used, e.g. when it is read again,
+	 * so it is evicted after outputs that were not.
+	 *
+	 * @return false if uri is not in this store
+	 */
+	public synchronized boolean touch(Uri uri) {
+		File file = getFile(uri);
+		if (file == null) {
+			return false;
+		}
+		load();
+		// moves it to the end of the access order
+		if (mFiles.get(file.getName()) == null) {
+			return false;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Deletes all outputs.
+	 */
+	public synchronized void releaseAll() {
+		load();
+		for (String name : mFiles.keySet()) {
+			delete(new File(mDir, name));
+		}
+		mFiles.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * Deletes outputs unused for longer than the maximum age, then the least
+	 * recently used ones until the store is within its quota. Runs in the
+	 * background after writes.
+	 */
+	public synchronized void trim() {
+		load();
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			File file = new File(mDir, eldest.getKey());
+			long age = now - file.lastModified();
+			boolean overQuota = mSize > mMaxBytes || mFiles.size() > mMaxFiles;
+			if (age <= mMaxAge && !(overQuota && age > MIN_AGE)) {
+				break;
+			}
+			delete(file);
+			mSize -= eldest.getValue();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns a sink writing a new output with the file extension of
+	 * format.
+	 */
+	CropSink createSink(String format) {
+		return new StoreSink(this, CropFileUtils.getImageFileExtension(format));
+	}
+
+	private File createTempFile(String extension) throws IOException {
+		synchronized (this) {
+			load();
+		}
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			throw new IOException("cannot create " + mDir);
+		}
+		return File.createTempFile(PREFIX, "." + extension + TEMP_SUFFIX, mDir);
+	}
+
+	/**
+	 * Moves a complete output to its final name.
+	 */
+	private void commit(File temp, File file) throws IOException {
+		synchronized (this) {
+			if (!temp.renameTo(file)) {
+				throw new IOException("cannot rename " + temp + " to " + file);
+			}
+			long size = file.length();
+			mFiles.put(file.getName(), size);
+			mSize += size;
+		}
+		scheduleTrim();
+	}
+
+	/**
+	 * @return the file of uri if it is in the store directory, else null
+	 */
+	private File getFile(Uri uri) {
+		if (uri == null || !"file".equals(uri.getScheme())
+			|| uri.getPath() == null) {
+			return null;
+		}
+		File file = new File(uri.getPath());
+		return mDir.equals(file.getParentFile()) ? file : null;
+	}
+
+	private void scheduleTrim() {
+		if (!mTrimQueued.compareAndSet(false, true)) {
+			return;
+		}
+		mTrimExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				mTrimQueued.set(false);
+				trim();
+			}
+		});
+	}
+
+	/**
+	 * Builds the index from the files on disk on first use, least recently
+	 * used first, and deletes temporary files a previous process left
+	 * behind.
+	 */
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		File[] files = mDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				return CropUtils.compare(lhs.lastModified(), rhs.lastModified());
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)) {
+				delete(file);
+			} else if (file.getName().startsWith(PREFIX)) {
+				long size = file.length();
+				mFiles.put(file.getName(), size);
+				mSize += size;
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		if (!file.delete() && file.exists()) {
+			Log.w(LOGTAG, "cannot delete " + file);
+		}
+	}
+
+	private static class StoreSink extends CropSink {
+		private final CropOutputStore mStore;
+		private final String mExtension;
+		private File mTemp;
+		private volatile File mFile;
+
+		StoreSink(CropOutputStore store, String extension) {
+			mStore = store;
+			mExtension = extension;
+		}
+
+		@Override
+		OutputStream open(Context context) throws IOException {
+			mTemp = mStore.createTempFile(mExtension);
+			String name = mTemp.getName();
+			mFile = new File(mTemp.getParentFile(), name.substring(0,
+				name.length() - TEMP_SUFFIX.length()));
+			return new FileOutputStream(mTemp);
+		}
+
+		@Override
+		void finish(OutputStream out) throws IOException {
+			// durable before the rename makes it visible
+			sync(out);
+			out.close();
+			mStore.commit(mTemp, mFile);
+		}
+
+		@Override
+		void abort(OutputStream out) {
+			CropUtils.closeSilently(out);
+			delete(mTemp);
+			mFile = null;
+		}
+
+		@Override
+		public Uri getUri() {
+			File file = mFile;
+			return file == null ? null : Uri.fromFile(file);
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(mFile);
+		}
+	}
+}
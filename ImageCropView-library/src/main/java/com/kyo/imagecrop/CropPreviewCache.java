@@ -0,0 +1,77 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.util.LruCache;
+
+/**
+ * Process wide holder for decoded previews. {@link CropLayout} parks its
+ * preview here when saving instance state, so that the layout recreated
+ * after a configuration change can take it back without decoding again.
+ */
+final class CropPreviewCache {
+
+	static final class Entry {
+		final Bitmap bitmap;
+		final RectF originalBounds;
+		final int rotation;
+
+		Entry(Bitmap bitmap, RectF originalBounds, int rotation) {
+			this.bitmap = bitmap;
+			this.originalBounds = originalBounds;
+			this.rotation = rotation;
+		}
+	}
+
+	private static final LruCache<String, Entry> sCache = new LruCache<String, Entry>(
+		(int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE)) {
+		@Override
+		protected int sizeOf(String key, Entry value) {
+			return CropMath.getBitmapSize(value.bitmap);
+		}
+	};
+
+	private CropPreviewCache() {
+	}
+
+	static String getKey(CropSource source, int maxSideLength) {
+		return source.getCacheKey() + "#" + maxSideLength;
+	}
+
+	static void put(String key, Entry entry) {
+		sCache.put(key, entry);
+	}
+
+	/**
+	 * Shrinks the cache in response to {@code ComponentCallbacks2} levels.
+	 */
+	static void trimMemory(int level) {
+		// entries only bridge a configuration change, so they go first
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			sCache.evictAll();
+		}
+	}
+
+	/**
+	 * Removes and returns the entry for key, or null.
+	 */
+	static Entry take(String key) {
+		return sCache.remove(key);
+	}
+}
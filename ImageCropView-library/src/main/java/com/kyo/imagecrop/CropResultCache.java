@@ -0,0 +1,299 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Disk cache of encoded crop results, keyed by a fingerprint of the
+ * source, the crop transform and the output spec. A crop that hits is
+ * copied to its sink without decoding or encoding anything; without a
+ * sink that is a new {@link CropOutputStore} file, as entries are evicted
+ * regardless of how long callers use their outputs. Entries are evicted
+ * least recently used first once the cache grows beyond its size cap; use
+ * survives restarts through the modification time of the files.
+ * Enable it with {@link CropEngine#setResultCache}.
+ */
+public final class CropResultCache {
+
+	private static final String LOGTAG = "CropResultCache";
+	private static final String DIR_NAME = "crop-results";
+	private static final String TEMP_SUFFIX = ".tmp";
+	// entries start with the format version and the quality they were
+	// encoded with
+	private static final int FORMAT_VERSION = 1;
+	private static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+	private static CropResultCache sInstance;
+
+	private final File mDir;
+	// key to size, in access order
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(
+		16, 0.75f, true);
+	private boolean mLoaded;
+	private long mSize;
+	private long mMaxBytes = DEFAULT_MAX_BYTES;
+	private int mHitCount;
+	private int mMissCount;
+	private int mEvictionCount;
+
+	private CropResultCache(File dir) {
+		mDir = dir;
+	}
+
+	/**
+	 * The cache in the app's cache dir.
+	 */
+	public static synchronized CropResultCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new CropResultCache(new File(context.getApplicationContext()
+				.getCacheDir(), DIR_NAME));
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Sets the size cap in bytes, 32 MB by default.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		mMaxBytes = maxBytes;
+		load();
+		trimToSize();
+	}
+
+	public synchronized long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	public synchronized long getSize() {
+		load();
+		return mSize;
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	/**
+	 * Removes all entries, e.g. when the user signs out.
+	 */
+	public synchronized void clear() {
+		load();
+		for (String key : mEntries.keySet()) {
+			new File(mDir, key).delete();
+		}
+		mEntries.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * Derives the key of a crop from the source fingerprint, the transform
+	 * the crop applies and the output spec.
+	 */
+	static String getKey(String sourceFingerprint, float[] sourceToOutput,
+						 OutputSpec output) {
+		return Long.toHexString(CropUtils.crc64Long(sourceFingerprint + "|"
+			+ Arrays.toString(sourceToOutput) + "|" + output.getFingerprint()));
+	}
+
+	/**
+	 * Opens the entry of key and counts a hit, or counts a miss.
+	 *
+	 * @return null on a miss
+	 */
+	Entry open(String key) {
+		File file;
+		synchronized (this) {
+			load();
+			if (mEntries.get(key) == null) {
+				mMissCount++;
+				return null;
+			}
+			file = new File(mDir, key);
+			file.setLastModified(System.currentTimeMillis());
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int version = in.read();
+			int quality = in.read();
+			if (version != FORMAT_VERSION || quality < 0) {
+				throw new IOException("bad cache entry " + key);
+			}
+			synchronized (this) {
+				mHitCount++;
+			}
+			return new Entry(in, quality);
+		} catch (IOException e) {
+			CropUtils.closeSilently(in);
+			// evicted or deleted behind our back
+			synchronized (this) {
+				removeEntry(key);
+				mMissCount++;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a copy of file under key.
+	 *
+	 * @param quality the file was encoded with
+	 */
+	void put(String key, File file, int quality) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			put(key, in, quality);
+		} finally {
+			CropUtils.closeSilently(in);
+		}
+	}
+
+	/**
+	 * Stores what in supplies under key. The entry shows up only when it is
+	 * complete.
+	 *
+	 * @param quality the data was encoded with
+	 */
+	void put(String key, InputStream in, int quality) throws IOException {
+		mDir.mkdirs();
+		// the prefix needs at least 3 characters, keys may be shorter
+		File temp = File.createTempFile(key + "___", TEMP_SUFFIX, mDir);
+		long size = 2;
+		boolean success = false;
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(FORMAT_VERSION);
+				out.write(quality);
+				byte[] buffer = new byte[16 * 1024];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+					size += n;
+				}
+			} finally {
+				out.close();
+			}
+			synchronized (this) {
+				load();
+				if (!temp.renameTo(new File(mDir, key))) {
+					throw new IOException("cannot store cache entry " + key);
+				}
+				Long old = mEntries.put(key, size);
+				mSize += size - (old == null ? 0 : old);
+				trimToSize();
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Builds the index from the files on disk on first use, least recently
+	 * used first, and drops leftovers of interrupted writes.
+	 */
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		File[] files = mDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				return CropUtils.compare(lhs.lastModified(), rhs.lastModified());
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)) {
+				file.delete();
+				continue;
+			}
+			long size = file.length();
+			mEntries.put(file.getName(), size);
+			mSize += size;
+		}
+		trimToSize();
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+		while (mSize > mMaxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			if (!new File(mDir, eldest.getKey()).delete()) {
+				Log.w(LOGTAG, "cannot delete " + eldest.getKey());
+			}
+			mSize -= eldest.getValue();
+			it.remove();
+			mEvictionCount++;
+		}
+	}
+
+	/**
+	 * The data of a hit, and the quality it was encoded with.
+	 */
+	static final class Entry extends FilterInputStream {
+		private final int mQuality;
+
+		Entry(InputStream in, int quality) {
+			super(in);
+			mQuality = quality;
+		}
+
+		/**
+		 * @return quality the entry was encoded with, lower than requested
+		 * if it had to fit {@link OutputSpec#setMaxBytes}
+		 */
+		int getQuality() {
+			return mQuality;
+		}
+	}
+
+	private void removeEntry(String key) {
+		Long size = mEntries.remove(key);
+		if (size != null) {
+			mSize -= size;
+		}
+	}
+}
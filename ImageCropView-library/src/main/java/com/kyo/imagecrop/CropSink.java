@@ -0,0 +1,386 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SyncFailedException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Where an encoded crop output goes: a uri, a caller's stream, memory, or
+ * a pipe another thread reads from while the output is being encoded. A
+ * sink takes one output; it also reports what was written.
+ */
+public abstract class CropSink {
+
+	private static final String LOGTAG = "CropSink";
+	private volatile long mBytesWritten;
+	private volatile long mWriteNanos;
+	private volatile long mFlushNanos;
+	private volatile int mQuality;
+	private volatile int mEncodeIterations;
+
+	/**
+	 * Writes to uri, e.g. a file or a content provider entry.
+	 */
+	public static CropSink toUri(Uri uri) {
+		if (uri == null) {
+			throw new IllegalArgumentException("uri is null");
+		}
+		return new UriSink(uri);
+	}
+
+	/**
+	 * Writes to out, which is flushed but left open.
+	 */
+	public static CropSink toStream(OutputStream out) {
+		return new StreamSink(out);
+	}
+
+	public static MemorySink toMemory() {
+		return new MemorySink();
+	}
+
+	/**
+	 * Creates a pipe, read it from another thread while the crop runs.
+	 *
+	 * @throws IOException if the pipe cannot be created
+	 */
+	public static PipeSink toPipe() throws IOException {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return new PipeSink(createReliablePipe());
+		}
+		return new PipeSink(ParcelFileDescriptor.createPipe());
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static ParcelFileDescriptor[] createReliablePipe() throws IOException {
+		return ParcelFileDescriptor.createReliablePipe();
+	}
+
+	/**
+	 * Opens the stream the encoder writes to.
+	 */
+	abstract OutputStream open(Context context) throws IOException;
+
+	/**
+	 * Completes a successful write on the worker thread, closes out by
+	 * default. Sinks writing to storage also sync it, see {@link #sync}.
+	 */
+	void finish(OutputStream out) throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Gives up a failed write.
+	 */
+	void abort(OutputStream out) {
+		CropUtils.closeSilently(out);
+	}
+
+	/**
+	 * Called when the crop failed before this sink was opened.
+	 */
+	void cancel() {
+	}
+
+	void setWriteReport(long bytes, long writeNanos, long flushNanos) {
+		mBytesWritten = bytes;
+		mWriteNanos = writeNanos;
+		mFlushNanos = flushNanos;
+	}
+
+	void setEncodeReport(int quality, int iterations) {
+		mQuality = quality;
+		mEncodeIterations = iterations;
+	}
+
+	/**
+	 * @return quality the output was encoded with, lower than requested if
+	 * it had to fit {@link OutputSpec#setMaxBytes}
+	 */
+	public int getQuality() {
+		return mQuality;
+	}
+
+	/**
+	 * @return how many times the output was encoded, more than 1 while
+	 * searching the quality for a maximum size, 0 if it was copied from
+	 * {@link CropResultCache}
+	 */
+	public int getEncodeIterations() {
+		return mEncodeIterations;
+	}
+
+	/**
+	 * @return the uri written to, null for sinks without one
+	 */
+	public Uri getUri() {
+		return null;
+	}
+
+	/**
+	 * @return encoded size of the output in bytes
+	 */
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/**
+	 * @return time spent writing the encoded bytes, without encoding
+	 */
+	public long getWriteTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mWriteNanos);
+	}
+
+	/**
+	 * @return time spent completing the output, i.e. syncing it to storage
+	 * and closing it
+	 */
+	public long getFlushTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mFlushNanos);
+	}
+
+	/**
+	 * Flushes out and, if it writes to a file, waits until the data is on
+	 * storage, so that an output is not delivered before it is durable.
+	 */
+	static void sync(OutputStream out) throws IOException {
+		out.flush();
+		if (out instanceof FileOutputStream) {
+			try {
+				((FileOutputStream) out).getFD().sync();
+			} catch (SyncFailedException e) {
+				// not backed by storage, e.g. a pipe or socket
+			}
+		}
+	}
+
+	static class UriSink extends CropSink {
+		private final Uri mUri;
+
+		UriSink(Uri uri) {
+			mUri = uri;
+		}
+
+		@Override
+		OutputStream open(Context context) throws IOException {
+			try {
+				OutputStream out = context.getContentResolver()
+					.openOutputStream(mUri);
+				if (out == null) {
+					throw new FileNotFoundException("no stream for " + mUri);
+				}
+				return out;
+			} catch (FileNotFoundException e) {
+				throw new IOException("cannot make file " + mUri, e);
+			}
+		}
+
+		@Override
+		void finish(OutputStream out) throws IOException {
+			sync(out);
+			out.close();
+		}
+
+		@Override
+		public Uri getUri() {
+			return mUri;
+		}
+
+		@Override
+		public String toString() {
+			return mUri.toString();
+		}
+	}
+
+	static class StreamSink extends CropSink {
+		private final OutputStream mOut;
+
+		StreamSink(OutputStream out) {
+			mOut = out;
+		}
+
+		@Override
+		OutputStream open(Context context) {
+			return mOut;
+		}
+
+		@Override
+		void finish(OutputStream out) throws IOException {
+			out.flush();
+		}
+
+		@Override
+		void abort(OutputStream out) {
+			// the caller owns the stream
+		}
+	}
+
+	/**
+	 * Keeps the output in memory, no file is written.
+	 */
+	public static class MemorySink extends CropSink {
+		private ExposedByteArrayOutputStream mBuffer;
+
+		MemorySink() {
+		}
+
+		@Override
+		OutputStream open(Context context) {
+			ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream(
+				64 * 1024);
+			synchronized (this) {
+				mBuffer = buffer;
+			}
+			return buffer;
+		}
+
+		/**
+		 * @return a copy of the output
+		 */
+		public synchronized byte[] toByteArray() {
+			return mBuffer == null ? new byte[0] : mBuffer.toByteArray();
+		}
+
+		/**
+		 * @return the output without copying, read only
+		 */
+		public synchronized ByteBuffer asByteBuffer() {
+			if (mBuffer == null) {
+				return ByteBuffer.allocate(0);
+			}
+			return mBuffer.wrap();
+		}
+	}
+
+	/**
+	 * Streams the output through a pipe, so an upload can start with the
+	 * first encoded bytes. The write side is closed when the crop ends,
+	 * successfully or not; a reader that stops early fails the crop.
+	 * <p>
+	 * A failed crop also ends the stream, so the reader has to tell it from a
+	 * complete one: {@link #getInputStream()} throws at the end of a failed
+	 * output. On API 19+ the pipe is reliable, a reader of
+	 * {@link #getReadFileDescriptor()} in another process gets the failure
+	 * from {@link ParcelFileDescriptor#checkError()}. Below that, check
+	 * {@link #isFailed()} once the stream ended.
+	 */
+	public static class PipeSink extends CropSink {
+		private static final String ERROR_MESSAGE = "crop failed";
+		private final ParcelFileDescriptor mReadSide;
+		private final ParcelFileDescriptor mWriteSide;
+		private volatile boolean mFailed;
+
+		PipeSink(ParcelFileDescriptor[] pipe) {
+			mReadSide = pipe[0];
+			mWriteSide = pipe[1];
+		}
+
+		/**
+		 * @return the read side, e.g. to pass to another process
+		 */
+		public ParcelFileDescriptor getReadFileDescriptor() {
+			return mReadSide;
+		}
+
+		/**
+		 * @return a stream over the read side that closes it when closed and
+		 * throws at the end of the stream if the crop failed
+		 */
+		public InputStream getInputStream() {
+			return new FilterInputStream(new ParcelFileDescriptor.AutoCloseInputStream(
+				mReadSide)) {
+				@Override
+				public int read() throws IOException {
+					return checkEnd(super.read());
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int count) throws IOException {
+					return checkEnd(super.read(buffer, offset, count));
+				}
+
+				private int checkEnd(int result) throws IOException {
+					if (result == -1 && mFailed) {
+						throw new IOException(ERROR_MESSAGE);
+					}
+					return result;
+				}
+			};
+		}
+
+		/**
+		 * @return true if the crop failed, so the end of the stream does not
+		 * end a complete output
+		 */
+		public boolean isFailed() {
+			return mFailed;
+		}
+
+		@Override
+		OutputStream open(Context context) {
+			return new ParcelFileDescriptor.AutoCloseOutputStream(mWriteSide);
+		}
+
+		@Override
+		void abort(OutputStream out) {
+			fail();
+			CropUtils.closeSilently(out);
+		}
+
+		@Override
+		void cancel() {
+			fail();
+		}
+
+		/**
+		 * Ends the stream, with an error the reader can see where the pipe
+		 * supports it.
+		 */
+		private void fail() {
+			mFailed = true;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+				try {
+					closeWithError(mWriteSide);
+					return;
+				} catch (IOException e) {
+					Log.w(LOGTAG, "failed to report error to pipe reader", e);
+				}
+			}
+			CropUtils.closeSilently(mWriteSide);
+		}
+
+		@TargetApi(Build.VERSION_CODES.KITKAT)
+		private static void closeWithError(ParcelFileDescriptor fd) throws IOException {
+			fd.closeWithError(ERROR_MESSAGE);
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+/**
+ * An image to crop: a uri, compressed bytes already in memory, e.g. a JPEG
+ * from a camera callback, or a raw {@link YuvFrame}. Bytes and frames are
+ * referenced, not copied, and must not change while a crop or preview load
+ * reads them.
+ */
+public class CropSource {
+
+	private static final String LOGTAG = "CropSource";
+	// DocumentsContract.Document.COLUMN_LAST_MODIFIED, API 19
+	private static final String COLUMN_LAST_MODIFIED = "last_modified";
+	private final Uri mUri;
+	private final byte[] mData;
+	private final int mOffset;
+	private final int mLength;
+	private final ByteBuffer mBuffer;
+	private YuvFrame mYuvFrame;
+	private int mOrientation = -1;
+
+	private CropSource(Uri uri, byte[] data, int offset, int length,
+					   ByteBuffer buffer) {
+		mUri = uri;
+		mData = data;
+		mOffset = offset;
+		mLength = length;
+		mBuffer = buffer;
+	}
+
+	/**
+	 * Crops straight from a camera frame, converting only the pixels an
+	 * output covers instead of compressing the frame first.
+	 */
+	public static CropSource fromYuv(YuvFrame frame) {
+		CropSource source = new CropSource(null, null, 0, 0, null);
+		source.mYuvFrame = frame;
+		return source;
+	}
+
+	public static CropSource fromUri(Uri uri) {
+		if (uri == null) {
+			throw new IllegalArgumentException("uri is null");
+		}
+		return new CropSource(uri, null, 0, 0, null);
+	}
+
+	public static CropSource fromBytes(byte[] data) {
+		return fromBytes(data, 0, data.length);
+	}
+
+	public static CropSource fromBytes(byte[] data, int offset, int length) {
+		if (offset < 0 || length <= 0 || offset + length > data.length) {
+			throw new IllegalArgumentException("bad range " + offset + "+"
+				+ length + " of " + data.length);
+		}
+		return new CropSource(null, data, offset, length, null);
+	}
+
+	/**
+	 * Takes the remaining bytes of buffer without moving its position. Heap
+	 * buffers are decoded from their backing array; direct buffers are read
+	 * as a stream, which region decoding has to copy.
+	 */
+	public static CropSource fromByteBuffer(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			return fromBytes(buffer.array(), buffer.arrayOffset()
+				+ buffer.position(), buffer.remaining());
+		}
+		return new CropSource(null, null, 0, buffer.remaining(),
+			buffer.duplicate());
+	}
+
+	/**
+	 * Sets the clockwise rotation in degrees that makes the image upright.
+	 * Read from EXIF for uris and from the frame for yuv if not set, 0 for
+	 * bytes.
+	 */
+	public void setOrientation(int degrees) {
+		mOrientation = degrees;
+	}
+
+	/**
+	 * @return the orientation set with {@link #setOrientation}, or -1
+	 */
+	int getOrientation() {
+		return mOrientation;
+	}
+
+	public Uri getUri() {
+		return mUri;
+	}
+
+	YuvFrame getYuvFrame() {
+		return mYuvFrame;
+	}
+
+	byte[] getData() {
+		return mData;
+	}
+
+	int getOffset() {
+		return mOffset;
+	}
+
+	int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Opens a stream over the bytes of a direct buffer source.
+	 */
+	InputStream openBufferStream() {
+		return new ByteBufferInputStream(mBuffer.duplicate());
+	}
+
+	/**
+	 * Identifies the source for caches, the same bytes give the same key.
+	 */
+	String getCacheKey() {
+		if (mUri != null) {
+			return mUri.toString();
+		}
+		Object data = mData != null ? mData : mBuffer != null ? mBuffer
+			: mYuvFrame;
+		return "bytes@" + Integer.toHexString(System.identityHashCode(data))
+			+ ":" + mOffset + ":" + mLength;
+	}
+
+	/**
+	 * Identifies the content of the source for {@link CropResultCache},
+	 * hashing bytes in memory and using size and modification time of
+	 * files and content uris.
+	 *
+	 * @return null for yuv frames, which are not worth caching, and for
+	 * uris whose size or modification time is unknown
+	 */
+	String getFingerprint(Context context) throws IOException {
+		if (mUri != null) {
+			String scheme = mUri.getScheme();
+			if ("file".equals(scheme) && mUri.getPath() != null) {
+				File file = new File(mUri.getPath());
+				return mUri + ":" + file.length() + ":" + file.lastModified();
+			} else if ("content".equals(scheme)) {
+				return getContentFingerprint(context);
+			}
+			return null;
+		} else if (mYuvFrame != null) {
+			return null;
+		}
+		long crc;
+		if (mData != null) {
+			crc = CropUtils.crc64Long(mData, mOffset, mLength);
+		} else {
+			crc = CropUtils.INITIALCRC;
+			byte[] chunk = new byte[16 * 1024];
+			InputStream in = openBufferStream();
+			try {
+				int n;
+				while ((n = in.read(chunk)) > 0) {
+					crc = CropUtils.updateCrc64(crc, chunk, 0, n);
+				}
+			} finally {
+				CropUtils.closeSilently(in);
+			}
+		}
+		return "bytes:" + Long.toHexString(crc) + ":" + mLength;
+	}
+
+	/**
+	 * Size and modification time as the provider reports them, the media
+	 * store in seconds, document providers in milliseconds.
+	 */
+	private String getContentFingerprint(Context context) {
+		Cursor cursor = null;
+		try {
+			cursor = context.getContentResolver().query(mUri, null, null, null,
+				null);
+			if (cursor == null || !cursor.moveToFirst()) {
+				return null;
+			}
+			int size = cursor.getColumnIndex(OpenableColumns.SIZE);
+			int modified = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+			if (modified == -1) {
+				modified = cursor.getColumnIndex(COLUMN_LAST_MODIFIED);
+			}
+			if (size == -1 || modified == -1 || cursor.isNull(size)
+				|| cursor.isNull(modified)) {
+				return null;
+			}
+			return mUri + ":" + cursor.getLong(size) + ":"
+				+ cursor.getLong(modified);
+		} catch (RuntimeException e) {
+			// providers may refuse the query, e.g. without permission
+			Log.w(LOGTAG, "cannot query " + mUri, e);
+			return null;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mUri != null ? mUri.toString() : getCacheKey();
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer mBuffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, mBuffer.remaining());
+			mBuffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+			mBuffer.position(mBuffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * Describes which part of a source image goes into a crop output, as a
+ * transform from source pixels to output pixels. Coordinates are in stored
+ * pixels, before any EXIF orientation is applied.
+ */
+public class CropSpec {
+
+	private static final int TYPE_RECT = 0;
+	private static final int TYPE_CENTER = 1;
+	private static final int TYPE_RESULT = 2;
+
+	private final int mType;
+	private RectF mRect;
+	private float mRotation;
+	private CropView.Result mResult;
+	private RectF mOriginalBounds;
+
+	private CropSpec(int type) {
+		mType = type;
+	}
+
+	/**
+	 * Crops rect, rotated clockwise by rotation degrees around its center, and
+	 * stretches it to the output size.
+	 */
+	public static CropSpec fromRect(RectF rect, float rotation) {
+		CropSpec spec = new CropSpec(TYPE_RECT);
+		spec.mRect = new RectF(rect);
+		spec.mRotation = rotation;
+		return spec;
+	}
+
+	/**
+	 * Crops the largest centered part of the upright image that has the
+	 * aspect ratio of the output.
+	 */
+	public static CropSpec centerCrop() {
+		return new CropSpec(TYPE_CENTER);
+	}
+
+	/**
+	 * Crops what a {@link CropView} shows inside its crop rect.
+	 *
+	 * @param originalBounds bounds of the stored image the preview was
+	 *                       decoded from
+	 */
+	public static CropSpec fromResult(CropView.Result result, RectF originalBounds) {
+		CropSpec spec = new CropSpec(TYPE_RESULT);
+		// the worker reads it while the view keeps moving
+		spec.mResult = new CropView.Result(result);
+		spec.mOriginalBounds = new RectF(originalBounds);
+		return spec;
+	}
+
+	/**
+	 * @return the source bounds known to this spec, or null if they have to
+	 * be read from the image
+	 */
+	RectF getKnownBounds() {
+		return mOriginalBounds;
+	}
+
+	boolean needsOrientation() {
+		return mType == TYPE_CENTER;
+	}
+
+	/**
+	 * Sets dst to the transform from source pixels to output pixels.
+	 *
+	 * @param orientation EXIF orientation, only read by center crops
+	 * @return false if the crop is degenerate
+	 */
+	boolean getSourceToOutputMatrix(RectF sourceBounds, int orientation,
+									int outputWidth, int outputHeight, Matrix dst) {
+		RectF output = new RectF(0, 0, outputWidth, outputHeight);
+		Matrix m = new Matrix();
+		if (mType == TYPE_RECT) {
+			if (mRect.width() <= 0 || mRect.height() <= 0) {
+				return false;
+			}
+			dst.setTranslate(-mRect.centerX(), -mRect.centerY());
+			dst.postRotate(-mRotation);
+			dst.postTranslate(mRect.width() / 2, mRect.height() / 2);
+			dst.postScale(outputWidth / mRect.width(),
+				outputHeight / mRect.height());
+			return true;
+		} else if (mType == TYPE_CENTER) {
+			RectF upright = new RectF();
+			dst.setRotate(orientation);
+			dst.mapRect(upright, sourceBounds);
+			dst.postTranslate(-upright.left, -upright.top);
+			upright.offsetTo(0, 0);
+			RectF crop = new RectF(upright);
+			CropMath.fixAspectRatioContained(crop, outputWidth, outputHeight);
+			if (crop.width() <= 0 || crop.height() <= 0) {
+				return false;
+			}
+			m.setRectToRect(crop, output, Matrix.ScaleToFit.FILL);
+			dst.postConcat(m);
+			return true;
+		}
+		if (mResult == null || mResult.displayCropRect.isEmpty()) {
+			return false;
+		}
+		dst.setRectToRect(mOriginalBounds, mResult.rawImageRect,
+			Matrix.ScaleToFit.FILL);
+		dst.postConcat(mResult.displayImageMatrix);
+		m.setRectToRect(mResult.displayCropRect, output, Matrix.ScaleToFit.FILL);
+		dst.postConcat(m);
+		return true;
+	}
+}
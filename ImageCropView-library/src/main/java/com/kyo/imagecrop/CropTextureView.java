@@ -0,0 +1,326 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.RectF;
+import android.graphics.Region;
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Surface;
+import android.view.TextureView;
+
+/**
+ * Renders the crop image and overlay on a dedicated thread. {@link CropView}
+ * keeps handling gestures and publishes a {@link Frame} for every change,
+ * frames are handed over through a lock-free triple buffer: the UI thread
+ * fills a back frame and swaps it into the pending slot, the render thread
+ * swaps the pending slot with its front frame when it is fresh.
+ * <p>
+ * Bitmaps a published frame refers to belong to the render thread until it
+ * moved past that frame, so the UI thread hands them back through
+ * {@link #releaseBitmap(Bitmap)} instead of recycling them.
+ * <p>
+ * On API 23+ frames are drawn with a hardware canvas of a Surface over the
+ * texture, so bitmaps are drawn as cached textures like in a hardware
+ * accelerated View. Below that only {@link #lockCanvas()} is available, a
+ * software canvas compositing the full view on every frame, which is
+ * slower than hardware accelerated View drawing; {@link CropLayout} does
+ * not use this view there.
+ */
+public class CropTextureView extends TextureView implements
+	TextureView.SurfaceTextureListener {
+
+	private static final String LOGTAG = "CropTextureView";
+	private static final int MSG_RENDER = 1;
+
+	/**
+	 * Snapshot of everything needed to draw one frame.
+	 */
+	static final class Frame {
+		Bitmap image;
+		final Matrix imageMatrix = new Matrix();
+		final RectF imageBounds = new RectF();
+		boolean filter;
+		Bitmap overlay;
+		// area the overlay is transparent in
+		final RectF cropWindow = new RectF();
+		// rule of thirds drawn inside the crop window, empty for none
+		final RectF gridBounds = new RectF();
+		final Paint gridPaint = new Paint();
+		long sequence;
+		volatile boolean fresh;
+	}
+
+	/**
+	 * A bitmap no longer used by frames published after sequence.
+	 */
+	private static final class Release {
+		final Bitmap bitmap;
+		final long sequence;
+
+		Release(Bitmap bitmap, long sequence) {
+			this.bitmap = bitmap;
+			this.sequence = sequence;
+		}
+	}
+
+	// owned by the UI thread
+	private Frame mBack = new Frame();
+	// owned by the render thread
+	private Frame mFront = new Frame();
+	private final AtomicReference<Frame> mPending = new AtomicReference<Frame>(
+		new Frame());
+	private final AtomicBoolean mRenderQueued = new AtomicBoolean();
+	private final ConcurrentLinkedQueue<Release> mReleases = new ConcurrentLinkedQueue<Release>();
+	// sequence of the last published frame, UI thread only
+	private long mPublished;
+
+	private HandlerThread mRenderThread;
+	private Handler mRenderHandler;
+	// API 23+, set while the render thread runs
+	private Surface mSurface;
+	private final Paint mPaint = new Paint();
+
+	public CropTextureView(Context context) {
+		super(context);
+		setup();
+	}
+
+	public CropTextureView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		setup();
+	}
+
+	private void setup() {
+		mPaint.setAntiAlias(true);
+		setOpaque(false);
+		setSurfaceTextureListener(this);
+	}
+
+	/**
+	 * Returns the frame to fill on the UI thread before
+	 * {@link #publishFrame()}.
+	 */
+	Frame obtainFrame() {
+		return mBack;
+	}
+
+	/**
+	 * Hands the filled back frame over to the render thread.
+	 */
+	void publishFrame() {
+		mBack.sequence = ++mPublished;
+		mBack.fresh = true;
+		mBack = mPending.getAndSet(mBack);
+		requestRender();
+	}
+
+	/**
+	 * Recycles bitmap once the render thread is done with the frames
+	 * published so far. Call on the UI thread after the last frame that
+	 * refers to bitmap; frames published later must not.
+	 */
+	void releaseBitmap(Bitmap bitmap) {
+		if (mRenderThread == null) {
+			// nothing draws now, a new surface must not draw it either
+			forgetAndRecycle(bitmap);
+			return;
+		}
+		mReleases.add(new Release(bitmap, mPublished));
+	}
+
+	/**
+	 * Drops bitmap from all frames and recycles it, only while no render
+	 * thread runs.
+	 */
+	private void forgetAndRecycle(Bitmap bitmap) {
+		forget(mFront, bitmap);
+		forget(mPending.get(), bitmap);
+		forget(mBack, bitmap);
+		bitmap.recycle();
+	}
+
+	private static void forget(Frame frame, Bitmap bitmap) {
+		if (frame.image == bitmap) {
+			frame.image = null;
+		}
+		if (frame.overlay == bitmap) {
+			frame.overlay = null;
+		}
+	}
+
+	/**
+	 * Recycles the bitmaps released before the frame with sequence was
+	 * published, it and later frames do not refer to them.
+	 */
+	private void recycleReleased(long sequence) {
+		Release release;
+		while ((release = mReleases.peek()) != null
+			&& release.sequence < sequence) {
+			mReleases.poll();
+			release.bitmap.recycle();
+		}
+	}
+
+	private void requestRender() {
+		Handler handler = mRenderHandler;
+		if (handler != null && !mRenderQueued.getAndSet(true)) {
+			handler.sendEmptyMessage(MSG_RENDER);
+		}
+	}
+
+	private final Handler.Callback mRenderCallback = new Handler.Callback() {
+		@Override
+		public boolean handleMessage(Message msg) {
+			if (msg.what == MSG_RENDER) {
+				mRenderQueued.set(false);
+				render();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Runs on the render thread.
+	 */
+	private void render() {
+		if (mPending.get().fresh) {
+			mFront.fresh = false;
+			mFront = mPending.getAndSet(mFront);
+		}
+		Frame frame = mFront;
+		recycleReleased(frame.sequence);
+		Canvas canvas = mSurface != null ? lockHardwareCanvas(mSurface)
+			: lockCanvas();
+		if (canvas == null) {
+			return;
+		}
+		try {
+			canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+			if (frame.image == null) {
+				return;
+			}
+			canvas.save();
+			if (canvas.clipRect(frame.imageBounds)) {
+				mPaint.setFilterBitmap(frame.filter);
+				canvas.drawBitmap(frame.image, frame.imageMatrix, mPaint);
+			}
+			canvas.restore();
+			if (frame.overlay != null) {
+				canvas.save();
+				canvas.clipRect(frame.cropWindow, Region.Op.DIFFERENCE);
+				canvas.drawBitmap(frame.overlay, 0, 0, null);
+				canvas.restore();
+			}
+			if (!frame.gridBounds.isEmpty()) {
+				canvas.save();
+				canvas.clipRect(frame.cropWindow);
+				CropDrawingUtils.drawRuleOfThird(canvas, frame.gridPaint,
+					frame.gridBounds);
+				canvas.restore();
+			}
+		} finally {
+			if (mSurface != null) {
+				mSurface.unlockCanvasAndPost(canvas);
+			} else {
+				unlockCanvasAndPost(canvas);
+			}
+		}
+	}
+
+	/**
+	 * @return a hardware canvas, or null if the surface is gone
+	 */
+	@TargetApi(Build.VERSION_CODES.M)
+	private static Canvas lockHardwareCanvas(Surface surface) {
+		try {
+			return surface.lockHardwareCanvas();
+		} catch (IllegalStateException e) {
+			Log.w(LOGTAG, "cannot lock surface", e);
+			return null;
+		}
+	}
+
+	@Override
+	public void onSurfaceTextureAvailable(SurfaceTexture surface, int width,
+										  int height) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			mSurface = new Surface(surface);
+		}
+		mRenderThread = new HandlerThread(LOGTAG,
+			Process.THREAD_PRIORITY_DISPLAY);
+		mRenderThread.start();
+		mRenderHandler = new Handler(mRenderThread.getLooper(),
+			mRenderCallback);
+		requestRender();
+	}
+
+	@Override
+	public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width,
+											int height) {
+		requestRender();
+	}
+
+	@Override
+	public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+		// make sure the render thread is done with the surface before it goes
+		mRenderHandler = null;
+		if (mRenderThread != null) {
+			mRenderThread.quit();
+			try {
+				mRenderThread.join();
+			} catch (InterruptedException e) {
+				Log.w(LOGTAG, "interrupted while stopping render thread");
+				Thread.currentThread().interrupt();
+			}
+			mRenderThread = null;
+		}
+		mRenderQueued.set(false);
+		if (mSurface != null) {
+			mSurface.release();
+			mSurface = null;
+		}
+		// the frames may still refer to them and are drawn again on a new
+		// surface
+		Release release;
+		while ((release = mReleases.poll()) != null) {
+			forgetAndRecycle(release.bitmap);
+		}
+		return true;
+	}
+
+	@Override
+	public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+	}
+}
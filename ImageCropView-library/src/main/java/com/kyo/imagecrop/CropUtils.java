@@ -18,7 +18,7 @@ public class CropUtils {
 	private static final String DEBUG_TAG = "GalleryDebug";
 
 	private static final long POLY64REV = 0x95AC9329AC4BC9B5L;
-	private static final long INITIALCRC = 0xFFFFFFFFFFFFFFFFL;
+	static final long INITIALCRC = 0xFFFFFFFFFFFFFFFFL;
 
 	private static long[] sCrcTable = new long[256];
 
@@ -147,13 +147,25 @@ public class CropUtils {
 	}
 
 	public static final long crc64Long(byte[] buffer) {
-		long crc = INITIALCRC;
-		for (int k = 0, n = buffer.length; k < n; ++k) {
+		return updateCrc64(INITIALCRC, buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Continues crc, {@link #INITIALCRC} for the first chunk, over length
+	 * bytes of buffer from offset.
+	 */
+	public static long updateCrc64(long crc, byte[] buffer, int offset,
+								   int length) {
+		for (int k = offset, n = offset + length; k < n; ++k) {
 			crc = sCrcTable[(((int) crc) ^ buffer[k]) & 0xff] ^ (crc >> 8);
 		}
 		return crc;
 	}
 
+	public static long crc64Long(byte[] buffer, int offset, int length) {
+		return updateCrc64(INITIALCRC, buffer, offset, length);
+	}
+
 	public static byte[] getBytes(String in) {
 		byte[] result = new byte[in.length() * 2];
 		int output = 0;
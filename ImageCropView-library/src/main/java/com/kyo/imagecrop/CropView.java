@@ -1,5 +1,11 @@
 package com.kyo.imagecrop;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -10,29 +16,83 @@ import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Region;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
+import android.view.ViewConfiguration;
+import android.widget.OverScroller;
 
 public class CropView extends View {
 	private static final String LOGTAG = "CropView";
 
+	/**
+	 * Gesture rendering modes, see {@link #setGestureRenderMode(int)}.
+	 */
+	public static final int GESTURE_RENDER_FULL = 0;
+	public static final int GESTURE_RENDER_LOWER_LEVEL = 1;
+	public static final int GESTURE_RENDER_NO_FILTER = 2;
+	// preview, 1/2, 1/4 and 1/8
+	private static final int MIP_LEVEL_COUNT = 4;
+	// mip chains are built here, not on the serial AsyncTask executor that
+	// the app and the preview loads share
+	private static final ThreadPoolExecutor sMipmapExecutor;
+
+	static {
+		sMipmapExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new CropBatch.WorkerFactory("CropView mipmap"));
+		sMipmapExecutor.allowCoreThreadTimeOut(true);
+	}
+
 	private RectF mCanvasRect;
 	private RectF mScreenInCanvas;
 	private RectF mCropInScreen;
 
 	private Bitmap mImage;
+	// mMipLevels[0] is mImage or null, the smaller levels are built in
+	// background
+	private final Bitmap[] mMipLevels = new Bitmap[MIP_LEVEL_COUNT];
+	private BuildMipmapTask mBuildMipmapTask;
+	// builds that did not finish yet, cancelled ones included; they may
+	// still read their source
+	private final List<BuildMipmapTask> mMipmapTasks = new ArrayList<BuildMipmapTask>();
+	// mip levels are (re)built lazily on the next draw
+	private boolean mMipmapDirty = false;
+	private int mGestureRenderMode = GESTURE_RENDER_FULL;
+	private final Matrix mMipDrawMatrix = new Matrix();
+	// when set, drawing happens on its render thread instead of onDraw
+	private CropTextureView mRenderTarget;
+	private final float[] mMatrixValues = new float[9];
 	private Paint mPaint;
 	private Paint mBorderPaint;
 	private Paint mOverlayPaint;
+	private Paint mGridPaint;
 	private CropObject mCropObj;
 
+	// pre-rendered shadow, border and grid, rebuilt on size or crop change
+	private Bitmap mOverlayBitmap;
+	private boolean mOverlayDirty = true;
+	private boolean mShowGrid = false;
+	// on-screen bounds of the image, used for dirty-region invalidation
+	private final RectF mImageRect = new RectF();
+	private final RectF mImageBounds = new RectF();
+	// crop rect minus the border, the overlay is fully transparent there
+	private final RectF mCropWindow = new RectF();
+	private final RectF mDirtyBounds = new RectF();
+	private final Rect mDirtyRect = new Rect();
+
 	private int mRotation = 0;
 	private Matrix mInitialDisplayImageMatrix;
 	private Matrix mDisplayImageMatrix;
 	private Matrix mDisplayCropMatrix;
 	private Matrix mImageCropInverse;
+	// transform to apply once the display matrices are rebuilt
+	private float[] mPendingTransform;
 	// private Matrix mDisplayTemlateMatrix;
 	// private Matrix mDisplayMatrixInverse;
 	private boolean mDirty = false;
@@ -53,6 +113,23 @@ public class CropView extends View {
 	private static final int TOUCH_MODE_DRAG = 1;
 	private static final int TOUCH_MODE_ZOOM = 2;
 	int mTouchMode = TOUCH_MODE_NONE;
+	// latest pointer positions (x0, y0, x1, y1), applied once per frame
+	private final float[] mTouchPoints = new float[4];
+	private boolean mGesturePending = false;
+	private boolean mFramePosted = false;
+	private VelocityTracker mVelocityTracker;
+	private OverScroller mScroller;
+	private int mMinFlingVelocity;
+	private int mMaxFlingVelocity;
+	private int mOverflingDistance;
+	private int mFlingLastX;
+	private int mFlingLastY;
+	private final Runnable mFrameRunnable = new Runnable() {
+		@Override
+		public void run() {
+			doFrame();
+		}
+	};
 
 	public CropView(Context context) {
 		super(context);
@@ -81,6 +158,12 @@ public class CropView extends View {
 		mMarginHorizontal = 0;
 		mMarginVertical = 0;
 		mMinSideSize = (int) (45 * density + 0.5);
+		mOverflingDistance = (int) (24 * density + 0.5);
+
+		ViewConfiguration configuration = ViewConfiguration.get(context);
+		mMinFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+		mMaxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+		mScroller = new OverScroller(context);
 
 		mPaint = new Paint();
 		mPaint.setAntiAlias(true);
@@ -93,64 +176,97 @@ public class CropView extends View {
 		mBorderPaint.setStyle(Paint.Style.STROKE);
 		mBorderPaint.setColor(mBorderColor);
 		mBorderPaint.setStrokeWidth(CropUtils.dip2px(getContext(), 2));
+
+		mGridPaint = new Paint();
+		mGridPaint.setStyle(Paint.Style.STROKE);
+		mGridPaint.setColor(0x80FFFFFF);
+		mGridPaint.setStrokeWidth(CropUtils.dip2px(getContext(), 1));
+	}
+
+	/**
+	 * Shows or hides the rule of third grid inside the crop rect.
+	 */
+	public void setShowGrid(boolean showGrid) {
+		if (mShowGrid != showGrid) {
+			mShowGrid = showGrid;
+			invalidate();
+		}
+	}
+
+	/**
+	 * How the image is drawn while the user is dragging, zooming or flinging.
+	 * Full quality comes back once the gesture settles.
+	 *
+	 * @param mode {@link #GESTURE_RENDER_FULL},
+	 *             {@link #GESTURE_RENDER_LOWER_LEVEL} to draw the next smaller
+	 *             mip level or {@link #GESTURE_RENDER_NO_FILTER} to disable
+	 *             bitmap filtering
+	 */
+	public void setGestureRenderMode(int mode) {
+		mGestureRenderMode = mode;
+	}
+
+	/**
+	 * Moves image and overlay drawing to the render thread of the given
+	 * view, gestures are still handled here. Pass null to draw in
+	 * {@link #onDraw(Canvas)} again.
+	 */
+	public void setRenderTarget(CropTextureView target) {
+		if (mRenderTarget != null && mRenderTarget != target) {
+			// the old render thread may still draw them, it releases them
+			releaseCaches();
+		}
+		mRenderTarget = target;
+		invalidate();
 	}
 
 	public void initialize(Bitmap image, RectF imageOriginalRect, Rect cropRect, int rotation) {
+		releaseMipmap();
 		mImage = image;
+		mMipLevels[0] = image;
 		mRotation = rotation;
 		RectF imageRect = new RectF(0, 0, image.getWidth(), image.getHeight());
 		mCropObj = new CropObject(imageRect, imageOriginalRect, cropRect);
 		mDirty = true;
+		mOverlayDirty = true;
 		invalidate();
 	}
 
+	/**
+	 * @return what the crop rect covers, null if no image is set or the
+	 * crop rect lies outside of it
+	 */
 	public Result getCropResult() {
+		if (mCropObj == null) {
+			return null;
+		}
 		Result result = new Result();
 		RectF imageRect = mCropObj.getImageRect();
 		RectF cropRect = mCropObj.getCropRect();
-		RectF invertedImageRect = new RectF();
-		RectF invertedCropRect = new RectF();
-		Matrix tempMatrix = new Matrix();
 		/**
 		 * image is fixed, crop is translate/scale/rotate
 		 */
-		// get initial image rect
-		mInitialDisplayImageMatrix.mapRect(invertedImageRect, imageRect);
-		// get crop rect
-		tempMatrix.reset();
-		if (!mImageCropInverse.invert(tempMatrix)) {
-			return null;
-		}
-		tempMatrix.preConcat(mDisplayCropMatrix);
-		tempMatrix.mapRect(invertedCropRect, cropRect);
-
-		// get intersection rect
-		float[] cropCorners = CropMath.getCornersFromRect(invertedCropRect);
-		RectF unrotatedCropRect = CropMath.trapToRect(cropCorners);
-
-		float[] unrotatedCropCorners = CropMath
-			.getCornersFromRect(unrotatedCropRect);
-		CropMath.getEdgePoints(invertedImageRect, unrotatedCropCorners);
-		RectF intersectionRect = CropMath.trapToRect(unrotatedCropCorners);
-
-		if (intersectionRect.width() == 0 || intersectionRect.height() == 0) {
+		float[] initialImageMatrix = new float[9];
+		float[] imageCropInverse = new float[9];
+		float[] displayCropMatrix = new float[9];
+		mInitialDisplayImageMatrix.getValues(initialImageMatrix);
+		mImageCropInverse.getValues(imageCropInverse);
+		mDisplayCropMatrix.getValues(displayCropMatrix);
+		float[] intersection = CropGeometry.getCropRect(initialImageMatrix,
+			imageCropInverse, displayCropMatrix, CropMath.toArray(imageRect),
+			CropMath.toArray(cropRect));
+		if (intersection == null) {
 			return null;
 		}
-
-		tempMatrix = new Matrix();
-		tempMatrix.reset();
-		if (!mInitialDisplayImageMatrix.invert(tempMatrix)) {
-			return null;
-		}
-		RectF rawIntersectionRect = new RectF();
-		tempMatrix.mapRect(rawIntersectionRect, intersectionRect);
+		RectF rawIntersectionRect = CropMath.toRectF(intersection);
 
 		RectF displayCropRect = new RectF();
 		mDisplayCropMatrix.mapRect(displayCropRect, cropRect);
 
-		result.rawImageRect = imageRect;
+		// copies, the live ones keep changing while a fling animates
+		result.rawImageRect = new RectF(imageRect);
 		result.rawIntersectionRect = rawIntersectionRect;
-		result.displayImageMatrix = mDisplayImageMatrix;
+		result.displayImageMatrix = new Matrix(mDisplayImageMatrix);
 		result.displayCropRect = displayCropRect;
 
 		Log.d(LOGTAG,
@@ -165,6 +281,24 @@ public class CropView extends View {
 		public RectF rawImageRect;
 		public RectF rawIntersectionRect;
 		public Matrix displayImageMatrix;
+
+		public Result() {
+		}
+
+		/**
+		 * Deep copy, safe to hand to another thread.
+		 */
+		public Result(Result other) {
+			displayCropRect = copy(other.displayCropRect);
+			rawImageRect = copy(other.rawImageRect);
+			rawIntersectionRect = copy(other.rawIntersectionRect);
+			displayImageMatrix = other.displayImageMatrix == null ? null
+				: new Matrix(other.displayImageMatrix);
+		}
+
+		private static RectF copy(RectF rect) {
+			return rect == null ? null : new RectF(rect);
+		}
 	}
 
 	public RectF getCropRect() {
@@ -178,12 +312,19 @@ public class CropView extends View {
 	@SuppressLint("ClickableViewAccessibility")
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
-		if (mDisplayImageMatrix == null || mDisplayCropMatrix == null) {
+		if (mImage == null || mDisplayImageMatrix == null
+			|| mDisplayCropMatrix == null) {
 			return true;
 		}
 
+		if (mVelocityTracker == null) {
+			mVelocityTracker = VelocityTracker.obtain();
+		}
+		mVelocityTracker.addMovement(event);
+
 		switch (event.getAction() & MotionEvent.ACTION_MASK) {
 			case MotionEvent.ACTION_DOWN:
+				mScroller.forceFinished(true);
 				mTouchMode = TOUCH_MODE_DRAG;
 				mLastX = event.getX();
 				mLastY = event.getY();
@@ -191,6 +332,7 @@ public class CropView extends View {
 				mSavedImageCropInverse.set(mImageCropInverse);
 				break;
 			case MotionEvent.ACTION_POINTER_DOWN:
+				applyPendingGesture();
 				mTouchMode = TOUCH_MODE_ZOOM;
 				mSavedImageMatrix.set(mDisplayImageMatrix);
 				mSavedImageCropInverse.set(mImageCropInverse);
@@ -199,40 +341,216 @@ public class CropView extends View {
 				getCenter(mEventCenter, event);
 				break;
 			case MotionEvent.ACTION_MOVE:
-				if (mTouchMode == TOUCH_MODE_ZOOM) {
-					mDisplayImageMatrix.set(mSavedImageMatrix);
-					mImageCropInverse.set(mSavedImageCropInverse);
-					float degrees = getDegrees(event) - mOriginalDegrees;
-					float distance = getDistance(event);
-					float scale = distance / mOriginalDistance;
-					mDisplayImageMatrix.postScale(scale, scale, mEventCenter.x,
-						mEventCenter.y);
-					mImageCropInverse.postScale(scale, scale, mEventCenter.x,
-						mEventCenter.y);
-					mDisplayImageMatrix.postRotate(degrees % 360, mEventCenter.x,
-						mEventCenter.y);
-					mImageCropInverse.postRotate((degrees) % 360, mEventCenter.x,
-						mEventCenter.y);
-					invalidate();
+				// only the latest position matters, historical samples of
+				// the batch are skipped and the matrices are rebuilt once
+				// per frame in doFrame()
+				if (mTouchMode == TOUCH_MODE_ZOOM
+					&& event.getPointerCount() > 1) {
+					mTouchPoints[0] = event.getX(0);
+					mTouchPoints[1] = event.getY(0);
+					mTouchPoints[2] = event.getX(1);
+					mTouchPoints[3] = event.getY(1);
+					mGesturePending = true;
+					postFrame();
 				} else if (mTouchMode == TOUCH_MODE_DRAG) {
-					mDisplayImageMatrix.set(mSavedImageMatrix);
-					mImageCropInverse.set(mSavedImageCropInverse);
-					mDisplayImageMatrix.postTranslate(event.getX() - mLastX,
-						event.getY() - mLastY);
-					mImageCropInverse.postTranslate((event.getX() - mLastX),
-						(event.getY() - mLastY));
-					invalidate();
+					mTouchPoints[0] = event.getX();
+					mTouchPoints[1] = event.getY();
+					mGesturePending = true;
+					postFrame();
 				}
 				break;
 			case MotionEvent.ACTION_UP:
+				applyPendingGesture();
+				if (mTouchMode == TOUCH_MODE_DRAG) {
+					mVelocityTracker.computeCurrentVelocity(1000,
+						mMaxFlingVelocity);
+					fling((int) mVelocityTracker.getXVelocity(),
+						(int) mVelocityTracker.getYVelocity());
+				}
+				mTouchMode = TOUCH_MODE_NONE;
+				mVelocityTracker.recycle();
+				mVelocityTracker = null;
+				// redraw in full quality
+				invalidateImage();
+				break;
 			case MotionEvent.ACTION_CANCEL:
+				applyPendingGesture();
+				mTouchMode = TOUCH_MODE_NONE;
+				mVelocityTracker.recycle();
+				mVelocityTracker = null;
+				invalidateImage();
+				break;
 			case MotionEvent.ACTION_POINTER_UP:
+				applyPendingGesture();
 				mTouchMode = TOUCH_MODE_NONE;
+				invalidateImage();
 				break;
 		}
 		return true;
 	}
 
+	@TargetApi(16)
+	private void postFrame() {
+		if (mFramePosted) {
+			return;
+		}
+		mFramePosted = true;
+		if (Build.VERSION.SDK_INT >= 16) {
+			postOnAnimation(mFrameRunnable);
+		} else {
+			postDelayed(mFrameRunnable, 10);
+		}
+	}
+
+	/**
+	 * Runs at most once per vsync, applies the latest touch state and
+	 * advances a running fling.
+	 */
+	private void doFrame() {
+		mFramePosted = false;
+		if (mDisplayImageMatrix == null || mImageCropInverse == null) {
+			mGesturePending = false;
+			mScroller.forceFinished(true);
+			return;
+		}
+		applyPendingGesture();
+		if (mScroller.computeScrollOffset()) {
+			int x = mScroller.getCurrX();
+			int y = mScroller.getCurrY();
+			mDisplayImageMatrix.postTranslate(x - mFlingLastX, y - mFlingLastY);
+			mImageCropInverse.postTranslate(x - mFlingLastX, y - mFlingLastY);
+			mFlingLastX = x;
+			mFlingLastY = y;
+			invalidateImage();
+			postFrame();
+		}
+	}
+
+	private void applyPendingGesture() {
+		if (!mGesturePending) {
+			return;
+		}
+		mGesturePending = false;
+		float[] p = mTouchPoints;
+		if (mTouchMode == TOUCH_MODE_ZOOM) {
+			mDisplayImageMatrix.set(mSavedImageMatrix);
+			mImageCropInverse.set(mSavedImageCropInverse);
+			float degrees = GeometryMathUtils.getDegrees(p[0], p[1], p[2], p[3])
+				- mOriginalDegrees;
+			float distance = GeometryMathUtils.getDistance(p[0], p[1], p[2],
+				p[3]);
+			float scale = distance / mOriginalDistance;
+			mDisplayImageMatrix.postScale(scale, scale, mEventCenter.x,
+				mEventCenter.y);
+			mImageCropInverse.postScale(scale, scale, mEventCenter.x,
+				mEventCenter.y);
+			mDisplayImageMatrix.postRotate(degrees % 360, mEventCenter.x,
+				mEventCenter.y);
+			mImageCropInverse.postRotate((degrees) % 360, mEventCenter.x,
+				mEventCenter.y);
+			invalidateImage();
+		} else if (mTouchMode == TOUCH_MODE_DRAG) {
+			mDisplayImageMatrix.set(mSavedImageMatrix);
+			mImageCropInverse.set(mSavedImageCropInverse);
+			mDisplayImageMatrix.postTranslate(p[0] - mLastX, p[1] - mLastY);
+			mImageCropInverse.postTranslate((p[0] - mLastX), (p[1] - mLastY));
+			invalidateImage();
+		}
+	}
+
+	/**
+	 * Starts a fling of the image. The fling is bounded so that the image
+	 * keeps overlapping the crop rect, with a small overscroll bounce.
+	 */
+	private void fling(int velocityX, int velocityY) {
+		if (Math.abs(velocityX) < mMinFlingVelocity
+			&& Math.abs(velocityY) < mMinFlingVelocity) {
+			return;
+		}
+		int minX = (int) (mCropInScreen.left - mImageBounds.right);
+		int maxX = (int) (mCropInScreen.right - mImageBounds.left);
+		int minY = (int) (mCropInScreen.top - mImageBounds.bottom);
+		int maxY = (int) (mCropInScreen.bottom - mImageBounds.top);
+		if (minX > 0 || maxX < 0 || minY > 0 || maxY < 0) {
+			// already outside of the bounds, nothing to fling into
+			return;
+		}
+		mFlingLastX = 0;
+		mFlingLastY = 0;
+		mScroller.fling(0, 0, velocityX, velocityY, minX, maxX, minY, maxY,
+			mOverflingDistance, mOverflingDistance);
+		postFrame();
+	}
+
+	/**
+	 * Invalidates the union of the previous and current on-screen image
+	 * bounds, the overlay outside of it is unchanged. Only a software layer
+	 * honors the dirty rect, hardware accelerated views redraw their display
+	 * list as a whole anyway.
+	 */
+	private void invalidateImage() {
+		if (mImage == null) {
+			return;
+		}
+		mDirtyBounds.set(mImageBounds);
+		mCropObj.getImageRect(mImageRect);
+		mDisplayImageMatrix.mapRect(mImageBounds, mImageRect);
+		if (isRenderingOffThread()) {
+			publishFrame();
+		} else if (isHardwareAccelerated()) {
+			invalidate();
+		} else {
+			mDirtyBounds.union(mImageBounds);
+			mDirtyBounds.roundOut(mDirtyRect);
+			// pad for the anti-aliased edge
+			mDirtyRect.inset(-1, -1);
+			invalidate(mDirtyRect);
+		}
+	}
+
+	/**
+	 * TextureView only works in hardware accelerated windows, otherwise the
+	 * render target is ignored.
+	 */
+	private boolean isRenderingOffThread() {
+		return mRenderTarget != null && isHardwareAccelerated();
+	}
+
+	/**
+	 * Hands the current state over to the render target.
+	 */
+	private void publishFrame() {
+		CropTextureView.Frame frame = mRenderTarget.obtainFrame();
+		boolean gesture = isGestureActive();
+		frame.image = selectMipLevel(gesture
+			&& mGestureRenderMode == GESTURE_RENDER_LOWER_LEVEL);
+		frame.imageMatrix.set(mMipDrawMatrix);
+		frame.imageBounds.set(mImageBounds);
+		frame.filter = !gesture
+			|| mGestureRenderMode != GESTURE_RENDER_NO_FILTER;
+		frame.overlay = isOverlayVisible() ? mOverlayBitmap : null;
+		frame.cropWindow.set(mCropWindow);
+		if (mShowGrid) {
+			frame.gridBounds.set(mCropInScreen);
+			frame.gridPaint.set(mGridPaint);
+		} else {
+			frame.gridBounds.setEmpty();
+		}
+		mRenderTarget.publishFrame();
+	}
+
+	/**
+	 * Bitmaps published to the render target are recycled by it once its
+	 * render thread moved past them.
+	 */
+	private void recycleBitmap(Bitmap bitmap) {
+		if (mRenderTarget != null) {
+			mRenderTarget.releaseBitmap(bitmap);
+		} else {
+			bitmap.recycle();
+		}
+	}
+
 	private float getDistance(MotionEvent event) {
 		return GeometryMathUtils.getDistance(event.getX(0), event.getY(0),
 			event.getX(1), event.getY(1));
@@ -265,9 +583,323 @@ public class CropView extends View {
 	}
 
 	public void configChanged() {
+		keepTransform();
+		mDirty = true;
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		mOverlayDirty = true;
+		if (keepTransform()) {
+			mDirty = true;
+		}
+	}
+
+	/**
+	 * Gets the user's zoom, pan and rotation as 9 matrix values mapping
+	 * normalized image coordinates to normalized crop rect coordinates. Being
+	 * independent of view and preview size, it can be restored on a
+	 * recreated view.
+	 *
+	 * @param out array of at least 9 floats
+	 * @return false if there is no transform yet
+	 */
+	public boolean getTransformState(float[] out) {
+		if (mDisplayImageMatrix == null || mDisplayCropMatrix == null) {
+			return false;
+		}
+		Matrix m = new Matrix();
+		if (!mDisplayCropMatrix.invert(m)) {
+			return false;
+		}
+		// image -> screen -> crop
+		m.preConcat(mDisplayImageMatrix);
+		RectF imageRect = mCropObj.getImageRect();
+		RectF cropRect = mCropObj.getCropRect();
+		m.preScale(imageRect.width(), imageRect.height());
+		m.postScale(1f / cropRect.width(), 1f / cropRect.height());
+		m.getValues(out);
+		return true;
+	}
+
+	/**
+	 * Restores a transform from {@link #getTransformState(float[])}. It is
+	 * applied when the display matrices are next built, so it may be called
+	 * before {@link #initialize(Bitmap, RectF, Rect, int)}.
+	 */
+	public void setTransformState(float[] values) {
+		mPendingTransform = new float[9];
+		System.arraycopy(values, 0, mPendingTransform, 0, 9);
+		mDirty = true;
+		invalidate();
+	}
+
+	private boolean keepTransform() {
+		float[] values = new float[9];
+		if (getTransformState(values)) {
+			mPendingTransform = values;
+			return true;
+		}
+		return false;
+	}
+
+	private void applyPendingTransform() {
+		Matrix m = new Matrix();
+		m.setValues(mPendingTransform);
+		mPendingTransform = null;
+		RectF imageRect = mCropObj.getImageRect();
+		RectF cropRect = mCropObj.getCropRect();
+		m.preScale(1f / imageRect.width(), 1f / imageRect.height());
+		m.postScale(cropRect.width(), cropRect.height());
+		m.postConcat(mDisplayCropMatrix);
+		Matrix initialInverse = new Matrix();
+		if (!mInitialDisplayImageMatrix.invert(initialInverse)) {
+			return;
+		}
+		mDisplayImageMatrix.set(m);
+		// gestures are post-applied to both, so inverse = display * initial^-1
+		mImageCropInverse.set(m);
+		mImageCropInverse.preConcat(initialInverse);
+	}
+
+	private boolean isGestureActive() {
+		return mTouchMode != TOUCH_MODE_NONE || !mScroller.isFinished();
+	}
+
+	/**
+	 * Picks the mip level closest to the current on-screen scale and sets
+	 * {@link #mMipDrawMatrix} to draw it.
+	 */
+	private Bitmap selectMipLevel(boolean degraded) {
+		mDisplayImageMatrix.getValues(mMatrixValues);
+		float scaleX = mMatrixValues[Matrix.MSCALE_X];
+		float skewY = mMatrixValues[Matrix.MSKEW_Y];
+		float scale = (float) Math.sqrt(scaleX * scaleX + skewY * skewY);
+		int level = 0;
+		while (level + 1 < MIP_LEVEL_COUNT && mMipLevels[level + 1] != null
+			&& scale * 2 <= 1) {
+			scale *= 2;
+			level++;
+		}
+		if (degraded && level + 1 < MIP_LEVEL_COUNT
+			&& mMipLevels[level + 1] != null) {
+			level++;
+		}
+		Bitmap bitmap = level == 0 ? mImage : mMipLevels[level];
+		mMipDrawMatrix.set(mDisplayImageMatrix);
+		if (level > 0) {
+			mMipDrawMatrix.preScale(
+				(float) mImage.getWidth() / bitmap.getWidth(),
+				(float) mImage.getHeight() / bitmap.getHeight());
+		}
+		return bitmap;
+	}
+
+	private void startBuildMipmap(Bitmap image) {
+		releaseMipmap();
+		mMipmapDirty = false;
+		mMipLevels[0] = image;
+		mBuildMipmapTask = new BuildMipmapTask(image);
+		mMipmapTasks.add(mBuildMipmapTask);
+		mBuildMipmapTask.executeOnExecutor(sMipmapExecutor);
+	}
+
+	private void releaseMipmap() {
+		if (mBuildMipmapTask != null) {
+			mBuildMipmapTask.cancel(false);
+			mBuildMipmapTask = null;
+		}
+		// level 0 is the preview owned by the caller, only dropped here so it
+		// never outlives a swapped or released image
+		mMipLevels[0] = null;
+		for (int i = 1; i < MIP_LEVEL_COUNT; i++) {
+			if (mMipLevels[i] != null) {
+				recycleBitmap(mMipLevels[i]);
+				mMipLevels[i] = null;
+			}
+		}
+		mMipmapDirty = true;
+	}
+
+	/**
+	 * Drops the mip levels and the overlay bitmap, they are rebuilt on the
+	 * next draw.
+	 */
+	public void releaseCaches() {
+		releaseMipmap();
+		if (mOverlayBitmap != null) {
+			recycleBitmap(mOverlayBitmap);
+			mOverlayBitmap = null;
+		}
+		mOverlayDirty = true;
+	}
+
+	/**
+	 * Drops the preview and all caches but keeps the crop transform, which
+	 * is applied again on the next {@link #initialize}.
+	 */
+	public void releaseImage() {
+		keepTransform();
+		releaseCaches();
+		mImage = null;
 		mDirty = true;
 	}
 
+	/**
+	 * Recycles an image that is no longer shown, i.e. replaced by
+	 * {@link #initialize} or dropped by {@link #releaseImage()}, once
+	 * nothing draws it or builds mip levels from it anymore.
+	 */
+	public void recycleImage(Bitmap image) {
+		if (image == mImage) {
+			throw new IllegalArgumentException("image is still shown");
+		}
+		for (BuildMipmapTask task : mMipmapTasks) {
+			if (task.mSource == image) {
+				// a cancelled build may still be scaling it
+				task.mRecycleSource = true;
+				return;
+			}
+		}
+		recycleBitmap(image);
+	}
+
+	/**
+	 * AsyncTask building the smaller mip levels by successive halving.
+	 */
+	private class BuildMipmapTask extends AsyncTask<Void, Void, Bitmap[]> {
+		final Bitmap mSource;
+		// recycle the source once done, see recycleImage()
+		boolean mRecycleSource;
+
+		BuildMipmapTask(Bitmap source) {
+			mSource = source;
+		}
+
+		@Override
+		protected Bitmap[] doInBackground(Void... params) {
+			Bitmap[] levels = new Bitmap[MIP_LEVEL_COUNT];
+			levels[0] = mSource;
+			for (int i = 1; i < MIP_LEVEL_COUNT && !isCancelled(); i++) {
+				int w = levels[i - 1].getWidth() / 2;
+				int h = levels[i - 1].getHeight() / 2;
+				if (w <= 0 || h <= 0) {
+					break;
+				}
+				try {
+					levels[i] = Bitmap.createScaledBitmap(levels[i - 1], w, h,
+						true);
+				} catch (OutOfMemoryError e) {
+					Log.w(LOGTAG, "not enough memory for mip level " + i);
+					break;
+				}
+			}
+			return levels;
+		}
+
+		@Override
+		protected void onPostExecute(Bitmap[] levels) {
+			finish();
+			if (mBuildMipmapTask != this || mImage != levels[0]) {
+				recycleLevels(levels);
+				return;
+			}
+			mBuildMipmapTask = null;
+			for (int i = 1; i < MIP_LEVEL_COUNT; i++) {
+				mMipLevels[i] = levels[i];
+			}
+			invalidate();
+		}
+
+		@Override
+		protected void onCancelled(Bitmap[] levels) {
+			finish();
+			if (levels != null) {
+				recycleLevels(levels);
+			}
+		}
+
+		private void finish() {
+			mMipmapTasks.remove(this);
+			if (mRecycleSource) {
+				recycleBitmap(mSource);
+			}
+		}
+
+		private void recycleLevels(Bitmap[] levels) {
+			for (int i = 1; i < MIP_LEVEL_COUNT; i++) {
+				if (levels[i] != null) {
+					levels[i].recycle();
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		releaseMipmap();
+		removeCallbacks(mFrameRunnable);
+		mFramePosted = false;
+		mGesturePending = false;
+		mScroller.forceFinished(true);
+		if (mVelocityTracker != null) {
+			mVelocityTracker.recycle();
+			mVelocityTracker = null;
+		}
+		if (mOverlayBitmap != null) {
+			recycleBitmap(mOverlayBitmap);
+			mOverlayBitmap = null;
+		}
+		mOverlayDirty = true;
+	}
+
+	/**
+	 * Renders shadows and border into a bitmap of the canvas size. They only
+	 * depend on the crop rect, which is fixed on screen, so this is done once
+	 * per size change instead of every frame. The grid is a few lines inside
+	 * the crop window and drawn every frame, so the window stays clipped out
+	 * of the overlay.
+	 */
+	private void buildOverlay() {
+		int width = (int) mCanvasRect.width();
+		int height = (int) mCanvasRect.height();
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		// also redrawn in place when shared with the render thread: rebuilds
+		// of an unchanged size are rare, e.g. a new image, and the next
+		// frame shows the finished overlay
+		if (mOverlayBitmap == null || mOverlayBitmap.getWidth() != width
+			|| mOverlayBitmap.getHeight() != height) {
+			if (mOverlayBitmap != null) {
+				recycleBitmap(mOverlayBitmap);
+			}
+			mOverlayBitmap = Bitmap.createBitmap(width, height,
+				Bitmap.Config.ARGB_8888);
+		} else {
+			mOverlayBitmap.eraseColor(0);
+		}
+		Canvas canvas = new Canvas(mOverlayBitmap);
+		CropDrawingUtils.drawShadows(canvas, mOverlayPaint, mCropInScreen,
+			mCanvasRect);
+		CropDrawingUtils.drawCropRect(canvas, mBorderPaint, mCropInScreen);
+
+		mCropWindow.set(mCropInScreen);
+		float inset = mBorderPaint.getStrokeWidth();
+		mCropWindow.inset(inset, inset);
+		mOverlayDirty = false;
+	}
+
+	/**
+	 * @return false if the crop window covers the whole canvas, leaving
+	 * nothing to dim or frame
+	 */
+	private boolean isOverlayVisible() {
+		return mOverlayBitmap != null && !mCropWindow.contains(mCanvasRect);
+	}
+
 	@Override
 	public void onDraw(Canvas canvas) {
 
@@ -280,7 +912,7 @@ public class CropView extends View {
 		}
 
 		if (mCanvasRect == null
-			|| (mCanvasRect.width() != canvas.getWidth() && mCanvasRect
+			|| (mCanvasRect.width() != canvas.getWidth() || mCanvasRect
 			.height() != canvas.getHeight())) {
 			mCanvasRect = new RectF(0, 0, canvas.getWidth(), canvas.getHeight());
 			mScreenInCanvas = new RectF(0, 0, canvas.getWidth(),
@@ -315,14 +947,49 @@ public class CropView extends View {
 			mDisplayCropMatrix.mapRect(mCropInScreen);
 
 			mImageCropInverse = new Matrix();
+			if (mPendingTransform != null) {
+				applyPendingTransform();
+			}
+			mCropObj.getImageRect(mImageRect);
+			mDisplayImageMatrix.mapRect(mImageBounds, mImageRect);
+			mOverlayDirty = true;
 		}
 
-		// Draw actual image
-		canvas.drawBitmap(mImage, mDisplayImageMatrix, mPaint);
-		// Draw overlay shadows
-		CropDrawingUtils.drawShadows(canvas, mOverlayPaint, mCropInScreen,
-			mCanvasRect);
-		// Draw crop rect
-		CropDrawingUtils.drawCropRect(canvas, mBorderPaint, mCropInScreen);
+		if (mOverlayDirty) {
+			buildOverlay();
+		}
+		if (mMipmapDirty) {
+			startBuildMipmap(mImage);
+		}
+
+		if (isRenderingOffThread()) {
+			publishFrame();
+			return;
+		}
+
+		// Draw actual image, limited to its on-screen bounds
+		canvas.save();
+		if (canvas.clipRect(mImageBounds)) {
+			boolean gesture = isGestureActive();
+			Bitmap bitmap = selectMipLevel(gesture
+				&& mGestureRenderMode == GESTURE_RENDER_LOWER_LEVEL);
+			mPaint.setFilterBitmap(!gesture
+				|| mGestureRenderMode != GESTURE_RENDER_NO_FILTER);
+			canvas.drawBitmap(bitmap, mMipDrawMatrix, mPaint);
+		}
+		canvas.restore();
+		// Draw cached overlay, skipping the fully transparent crop window
+		if (isOverlayVisible()) {
+			canvas.save();
+			canvas.clipRect(mCropWindow, Region.Op.DIFFERENCE);
+			canvas.drawBitmap(mOverlayBitmap, 0, 0, null);
+			canvas.restore();
+		}
+		if (mShowGrid) {
+			canvas.save();
+			canvas.clipRect(mCropWindow);
+			CropDrawingUtils.drawRuleOfThird(canvas, mGridPaint, mCropInScreen);
+			canvas.restore();
+		}
 	}
 }
@@ -1,8 +1,12 @@
 package com.kyo.imagecrop;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -14,6 +18,7 @@ import android.graphics.Rect;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.webkit.MimeTypeMap;
 
@@ -22,6 +27,7 @@ public final class ImageLoader {
 	public static final String JPEG_MIME_TYPE = "image/jpeg";
 	public static final int DEFAULT_COMPRESS_QUALITY = 95;
 	private static final int BITMAP_LOAD_BACKOUT_ATTEMPTS = 5;
+	private static final AtomicInteger sStreamFallbacks = new AtomicInteger();
 
 	private ImageLoader() {
 	}
@@ -55,9 +61,13 @@ public final class ImageLoader {
 	 * Returns the bounds of the bitmap stored at a given Url.
 	 */
 	public static Rect loadBitmapBounds(Context context, Uri uri) {
+		return loadBitmapBounds(context, CropSource.fromUri(uri));
+	}
+
+	public static Rect loadBitmapBounds(Context context, CropSource source) {
 		BitmapFactory.Options o = new BitmapFactory.Options();
 		o.inJustDecodeBounds = true;
-		loadBitmap(context, uri, o);
+		loadBitmap(context, source, o);
 		return new Rect(0, 0, o.outWidth, o.outHeight);
 	}
 
@@ -65,15 +75,46 @@ public final class ImageLoader {
 	 * Loads a bitmap that has been downsampled using sampleSize from a given
 	 * url.
 	 */
-	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
 	public static Bitmap loadDownsampledBitmap(Context context, Uri uri,
 			int sampleSize) {
+		return loadDownsampledBitmap(context, CropSource.fromUri(uri),
+				sampleSize);
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public static Bitmap loadDownsampledBitmap(Context context,
+			CropSource source, int sampleSize) {
 		BitmapFactory.Options options = new BitmapFactory.Options();
 		if (Build.VERSION.SDK_INT >= 11) {
 			options.inMutable = true;
 		}
 		options.inSampleSize = sampleSize;
-		return loadBitmap(context, uri, options);
+		return loadBitmap(context, source, options);
+	}
+
+	/**
+	 * Like {@link #loadBitmap(Context, Uri, BitmapFactory.Options)}, bytes
+	 * are decoded in place without touching disk.
+	 */
+	public static Bitmap loadBitmap(Context context, CropSource source,
+			BitmapFactory.Options o) {
+		if (source == null) {
+			throw new IllegalArgumentException("bad argument to loadBitmap");
+		}
+		if (source.getUri() != null) {
+			return loadBitmap(context, source.getUri(), o);
+		} else if (source.getYuvFrame() != null) {
+			return loadYuvBitmap(source.getYuvFrame(), o);
+		} else if (source.getData() != null) {
+			return BitmapFactory.decodeByteArray(source.getData(),
+					source.getOffset(), source.getLength(), o);
+		}
+		InputStream is = source.openBufferStream();
+		try {
+			return BitmapFactory.decodeStream(is, null, o);
+		} finally {
+			CropUtils.closeSilently(is);
+		}
 	}
 
 	/**
@@ -85,6 +126,16 @@ public final class ImageLoader {
 		if (uri == null || context == null) {
 			throw new IllegalArgumentException("bad argument to loadBitmap");
 		}
+		ParcelFileDescriptor pfd = openSeekableFileDescriptor(context, uri);
+		if (pfd != null) {
+			try {
+				return BitmapFactory.decodeFileDescriptor(
+						pfd.getFileDescriptor(), null, o);
+			} finally {
+				CropUtils.closeSilently(pfd);
+			}
+		}
+		countStreamFallback();
 		InputStream is = null;
 		try {
 			is = context.getContentResolver().openInputStream(uri);
@@ -97,6 +148,76 @@ public final class ImageLoader {
 		return null;
 	}
 
+	/**
+	 * Converts a yuv frame like BitmapFactory decodes, honoring
+	 * inJustDecodeBounds and inSampleSize.
+	 */
+	private static Bitmap loadYuvBitmap(YuvFrame frame, BitmapFactory.Options o) {
+		int sampleSize = Math.max(1, o.inSampleSize);
+		int width = (frame.getWidth() + sampleSize - 1) / sampleSize;
+		int height = (frame.getHeight() + sampleSize - 1) / sampleSize;
+		o.outWidth = width;
+		o.outHeight = height;
+		if (o.inJustDecodeBounds) {
+			return null;
+		}
+		float[] scale = new float[] {
+				width / (float) frame.getWidth(), 0, 0,
+				0, height / (float) frame.getHeight(), 0,
+				0, 0, 1 };
+		int[] pixels = new int[width * height];
+		YuvConverter.convert(frame, scale, pixels, width, height);
+		Bitmap bitmap = Bitmap.createBitmap(width, height,
+				Bitmap.Config.ARGB_8888);
+		bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+		return bitmap;
+	}
+
+	/**
+	 * Opens uri as a seekable file descriptor, so decoders can read it in
+	 * place instead of buffering a stream.
+	 * 
+	 * @return the descriptor, or null if the provider cannot open one or
+	 *         only offers a pipe
+	 */
+	public static ParcelFileDescriptor openSeekableFileDescriptor(
+			Context context, Uri uri) {
+		ParcelFileDescriptor pfd;
+		try {
+			pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		if (pfd == null) {
+			return null;
+		}
+		// not closed, it does not own the descriptor
+		FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+		try {
+			in.getChannel().position();
+			return pfd;
+		} catch (IOException e) {
+			// pipes and sockets cannot seek
+			CropUtils.closeSilently(pfd);
+			return null;
+		}
+	}
+
+	/**
+	 * Counts a decode that had to read a stream because no seekable source
+	 * was available.
+	 */
+	static void countStreamFallback() {
+		sStreamFallbacks.incrementAndGet();
+	}
+
+	/**
+	 * @return how many decodes fell back to reading a stream
+	 */
+	public static int getStreamFallbackCount() {
+		return sStreamFallbacks.get();
+	}
+
 	/**
 	 * Loads a bitmap at a given URI that is downsampled so that both sides are
 	 * smaller than maxSideLength. The Bitmap's original dimensions are stored
@@ -116,41 +237,39 @@ public final class ImageLoader {
 	 */
 	public static Bitmap loadConstrainedBitmap(Uri uri, Context context,
 			int maxSideLength, Rect originalBounds, boolean useMin) {
-		if (maxSideLength <= 0 || uri == null || context == null) {
+		if (uri == null) {
+			throw new IllegalArgumentException(
+					"bad argument to getScaledBitmap");
+		}
+		return loadConstrainedBitmap(CropSource.fromUri(uri), context,
+				maxSideLength, originalBounds, useMin);
+	}
+
+	/**
+	 * Like {@link #loadConstrainedBitmap(Uri, Context, int, Rect, boolean)}
+	 * for any source.
+	 */
+	public static Bitmap loadConstrainedBitmap(CropSource source,
+			Context context, int maxSideLength, Rect originalBounds,
+			boolean useMin) {
+		if (maxSideLength <= 0 || source == null || context == null) {
 			throw new IllegalArgumentException(
 					"bad argument to getScaledBitmap");
 		}
 		// Get width and height of stored bitmap
-		Rect storedBounds = loadBitmapBounds(context, uri);
+		Rect storedBounds = loadBitmapBounds(context, source);
 		if (originalBounds != null) {
 			originalBounds.set(storedBounds);
 		}
-		int w = storedBounds.width();
-		int h = storedBounds.height();
-
-		// If bitmap cannot be decoded, return null
-		if (w <= 0 || h <= 0) {
-			return null;
-		}
-
-		// Find best downsampling size
-		int imageSide = 0;
-		if (useMin) {
-			imageSide = Math.min(w, h);
-		} else {
-			imageSide = Math.max(w, h);
-		}
-		int sampleSize = 1;
-		while (imageSide > maxSideLength) {
-			imageSide >>>= 1;
-			sampleSize <<= 1;
-		}
+		int sampleSize = CropGeometry.getConstrainedSampleSize(
+				storedBounds.width(), storedBounds.height(), maxSideLength,
+				useMin);
 
-		// Make sure sample size is reasonable
-		if (sampleSize <= 0 || 0 >= (int) (Math.min(w, h) / sampleSize)) {
+		// If bitmap cannot be decoded or sampled down that far, return null
+		if (sampleSize == 0) {
 			return null;
 		}
-		return loadDownsampledBitmap(context, uri, sampleSize);
+		return loadDownsampledBitmap(context, source, sampleSize);
 	}
 
 	/**
@@ -214,6 +333,55 @@ public final class ImageLoader {
 		return bmap;
 	}
 
+	/**
+	 * Reads the Exif and ICC segments from the header of a jpeg source,
+	 * without decoding it.
+	 *
+	 * @return null for yuv frames and sources that are not jpeg
+	 */
+	public static JpegMetadata readJpegMetadata(Context context,
+			CropSource source) throws IOException {
+		InputStream is;
+		if (source.getUri() != null) {
+			is = context.getContentResolver().openInputStream(source.getUri());
+		} else if (source.getYuvFrame() != null) {
+			return null;
+		} else if (source.getData() != null) {
+			is = new ByteArrayInputStream(source.getData(), source.getOffset(),
+					source.getLength());
+		} else {
+			is = source.openBufferStream();
+		}
+		if (is == null) {
+			throw new IOException("cannot open " + source);
+		}
+		try {
+			return JpegMetadata.read(new BufferedInputStream(is));
+		} finally {
+			CropUtils.closeSilently(is);
+		}
+	}
+
+	/**
+	 * @return the orientation set on source, otherwise read from the uri or
+	 *         the Exif of the bytes, 0 if there is none
+	 */
+	public static int getImageOrientation(Context context, CropSource source) {
+		if (source.getOrientation() >= 0) {
+			return source.getOrientation();
+		} else if (source.getUri() != null) {
+			return getImageOrientation(context, source.getUri());
+		} else if (source.getYuvFrame() != null) {
+			return source.getYuvFrame().getRotation();
+		}
+		try {
+			JpegMetadata metadata = readJpegMetadata(context, source);
+			return metadata != null ? metadata.getOrientation() : 0;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
 	/**
 	 * @return 0, 90, 180 or 270. 0 could be returned if there is no data about
 	 *         rotation
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2015, KyoSherlock
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kyo.imagecrop;
+
+import android.net.Uri;
+
+/**
+ * Size, format and destination of a crop output.
+ */
+public class OutputSpec {
+
+	public static final int DEFAULT_QUALITY = 90;
+	/**
+	 * Encodes with {@code Bitmap.compress}.
+	 */
+	public static final int ENCODER_PLATFORM = 0;
+	/**
+	 * Encodes jpeg with {@link JpegEncoder} on all cores.
+	 */
+	public static final int ENCODER_PARALLEL_JPEG = 1;
+
+	private final int mWidth;
+	private final int mHeight;
+	private String mFormat;
+	private int mQuality = DEFAULT_QUALITY;
+	private long mMaxBytes;
+	private int mBandHeight;
+	private int mEncoder = ENCODER_PLATFORM;
+	private int mKernel;
+	private boolean mCopyMetadata;
+	private boolean mCopyLocation;
+	private CropSink mSink;
+
+	public OutputSpec(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("bad output size " + width
+				+ "x" + height);
+		}
+		mWidth = width;
+		mHeight = height;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @param format "jpg", "png" or "webp", jpg by default
+	 */
+	public void setFormat(String format) {
+		mFormat = format;
+	}
+
+	public String getFormat() {
+		return CropFileUtils.getImageFileExtension(mFormat);
+	}
+
+	/**
+	 * @param quality 0 to 100, ignored by png
+	 */
+	public void setQuality(int quality) {
+		if (quality < 0 || quality > 100) {
+			throw new IllegalArgumentException("bad quality " + quality);
+		}
+		mQuality = quality;
+	}
+
+	public int getQuality() {
+		return mQuality;
+	}
+
+	/**
+	 * Caps the encoded size. Lossy formats are encoded with the highest
+	 * quality up to {@link #getQuality()} that fits; the crop fails if none
+	 * does, or if a png is larger.
+	 *
+	 * @param maxBytes the cap, 0 for none
+	 */
+	public void setMaxBytes(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	public long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * @param encoder {@link #ENCODER_PLATFORM} by default, or
+	 *                {@link #ENCODER_PARALLEL_JPEG} for large jpeg outputs
+	 */
+	public void setEncoder(int encoder) {
+		if (encoder != ENCODER_PLATFORM && encoder != ENCODER_PARALLEL_JPEG) {
+			throw new IllegalArgumentException("bad encoder " + encoder);
+		}
+		mEncoder = encoder;
+	}
+
+	public int getEncoder() {
+		return mEncoder;
+	}
+
+	/**
+	 * Scales the decoded region to the output with {@link Resampler} and
+	 * kernel instead of drawing it with bilinear filtering, which aliases
+	 * on large reductions. Applies to crops without rotation that stay
+	 * within the image, others are still drawn, as are banded outputs.
+	 *
+	 * @param kernel a {@code Resampler.KERNEL} constant, 0 to draw
+	 */
+	public void setResampleKernel(int kernel) {
+		if (kernel != 0 && kernel != Resampler.KERNEL_BOX
+			&& kernel != Resampler.KERNEL_BILINEAR
+			&& kernel != Resampler.KERNEL_LANCZOS) {
+			throw new IllegalArgumentException("bad kernel " + kernel);
+		}
+		mKernel = kernel;
+	}
+
+	public int getResampleKernel() {
+		return mKernel;
+	}
+
+	/**
+	 * Copies the Exif data and ICC profile of a jpeg source into a jpeg
+	 * output, with orientation and dimensions rewritten for the output.
+	 * Location data is wiped unless {@link #setCopyLocation} is set too.
+	 */
+	public void setCopyMetadata(boolean copy) {
+		mCopyMetadata = copy;
+	}
+
+	public boolean isCopyMetadata() {
+		return mCopyMetadata;
+	}
+
+	/**
+	 * Keeps the GPS data when copying metadata, only if the user agreed to
+	 * share it.
+	 */
+	public void setCopyLocation(boolean copy) {
+		mCopyLocation = copy;
+	}
+
+	public boolean isCopyLocation() {
+		return mCopyLocation;
+	}
+
+	/**
+	 * Renders the output in bands of rows and streams each band through
+	 * {@link PngEncoder}, so that memory stays proportional to the band
+	 * instead of the whole output, e.g. for print size exports. Needs the
+	 * png format. The output is rendered on its own, not derived from
+	 * other renditions of the same crop.
+	 *
+	 * @param rows rows per band, 0 to render the output in one piece
+	 */
+	public void setBandHeight(int rows) {
+		if (rows < 0) {
+			throw new IllegalArgumentException("bad band height " + rows);
+		}
+		mBandHeight = rows;
+	}
+
+	public int getBandHeight() {
+		return mBandHeight;
+	}
+
+	/**
+	 * @param destination where to write the output, a new file in
+	 *                    {@link CropOutputStore} if null
+	 */
+	public void setDestination(Uri destination) {
+		mSink = destination == null ? null : CropSink.toUri(destination);
+	}
+
+	public Uri getDestination() {
+		return mSink == null ? null : mSink.getUri();
+	}
+
+	/**
+	 * @param sink where to write the output, a new file in
+	 *             {@link CropOutputStore} if null
+	 */
+	public void setSink(CropSink sink) {
+		mSink = sink;
+	}
+
+	public CropSink getSink() {
+		return mSink;
+	}
+
+	/**
+	 * @return a copy of this spec that writes to sink
+	 */
+	OutputSpec withSink(CropSink sink) {
+		OutputSpec copy = new OutputSpec(mWidth, mHeight);
+		copy.mFormat = mFormat;
+		copy.mQuality = mQuality;
+		copy.mMaxBytes = mMaxBytes;
+		copy.mBandHeight = mBandHeight;
+		copy.mEncoder = mEncoder;
+		copy.mKernel = mKernel;
+		copy.mCopyMetadata = mCopyMetadata;
+		copy.mCopyLocation = mCopyLocation;
+		copy.mSink = sink;
+		return copy;
+	}
+
+	/**
+	 * Describes everything but the sink, for {@link CropResultCache}.
+	 */
+	String getFingerprint() {
+		return mWidth + "x" + mHeight + ":" + getFormat() + ":" + mQuality
+			+ ":" + mMaxBytes + ":" + mBandHeight + ":" + mEncoder + ":"
+			+ mKernel + ":" + mCopyMetadata + ":" + mCopyLocation;
+	}
+}